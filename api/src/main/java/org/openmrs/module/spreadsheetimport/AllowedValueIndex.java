@@ -0,0 +1,276 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.spreadsheetimport.objects.NameValue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cached, name sorted index of the values a pre-specified value may take for a table. The index of
+ * a table is loaded on first use and reloaded once it is older than the TTL configured in
+ * {@link #GP_ALLOWED_VALUE_CACHE_TTL}. Pages are served by prefix search on the lower cased name.
+ */
+public class AllowedValueIndex {
+
+    protected static final Log log = LogFactory.getLog(AllowedValueIndex.class);
+
+    public static final String GP_ALLOWED_VALUE_CACHE_TTL = "spreadsheetimport.allowedValueCacheTtlSeconds";
+
+    private static final long DEFAULT_TTL_SECONDS = 600;
+
+    private static final Map<String, Entry> indexes = new ConcurrentHashMap<String, Entry>();
+
+    private static class Entry {
+
+        final List<NameValue> values;
+
+        final String[] sortKeys;
+
+        final long loadedAt;
+
+        Entry(List<NameValue> values, String[] sortKeys) {
+            this.values = values;
+            this.sortKeys = sortKeys;
+            this.loadedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * One page of allowed values
+     */
+    public static class Page {
+
+        private final List<NameValue> values;
+
+        private final int total;
+
+        private final int start;
+
+        private Page(List<NameValue> values, int total, int start) {
+            this.values = values;
+            this.total = total;
+            this.start = start;
+        }
+
+        public List<NameValue> getValues() {
+            return values;
+        }
+
+        /**
+         * @return number of values matching the search, across all pages
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        public int getStart() {
+            return start;
+        }
+    }
+
+    private static final Comparator<NameValue> BY_NAME = new Comparator<NameValue>() {
+
+        public int compare(NameValue o1, NameValue o2) {
+            return sortKey(o1).compareTo(sortKey(o2));
+        }
+    };
+
+    private static String sortKey(NameValue nameValue) {
+        return nameValue.getName() == null ? "" : nameValue.getName().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns all allowed values of a table sorted by name
+     */
+    public static List<NameValue> getAll(String tableName) throws Exception {
+        return getEntry(tableName).values;
+    }
+
+    /**
+     * Returns a page of the allowed values of a table whose name starts with the given prefix,
+     * ignoring case
+     *
+     * @param tableName the referenced table
+     * @param prefix name prefix, or blank for all values
+     * @param start index of the first value to return within the matches
+     * @param limit maximum number of values to return
+     */
+    public static Page getPage(String tableName, String prefix, int start, int limit) throws Exception {
+        Entry entry = getEntry(tableName);
+
+        int from = 0;
+        int to = entry.sortKeys.length;
+        if (StringUtils.isNotBlank(prefix)) {
+            String key = prefix.trim().toLowerCase(Locale.ENGLISH);
+            from = lowerBound(entry.sortKeys, key);
+            to = from;
+            while (to < entry.sortKeys.length && entry.sortKeys[to].startsWith(key)) {
+                to++;
+            }
+        }
+
+        int total = to - from;
+        int pageFrom = Math.min(from + Math.max(start, 0), to);
+        int pageTo = Math.min(pageFrom + Math.max(limit, 0), to);
+        return new Page(entry.values.subList(pageFrom, pageTo), total, pageFrom - from);
+    }
+
+    /**
+     * Drops the cached index of all tables
+     */
+    public static void invalidate() {
+        indexes.clear();
+    }
+
+    private static int lowerBound(String[] keys, String key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static Entry getEntry(String tableName) throws Exception {
+        Entry entry = indexes.get(tableName);
+        if (entry == null || System.currentTimeMillis() - entry.loadedAt > getTtlMillis()) {
+            // concurrent loads of the same table are harmless, the last one wins
+            entry = load(tableName);
+            indexes.put(tableName, entry);
+        }
+        return entry;
+    }
+
+    private static long getTtlMillis() {
+        String value = Context.getAdministrationService().getGlobalProperty(GP_ALLOWED_VALUE_CACHE_TTL);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Long.parseLong(value.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + GP_ALLOWED_VALUE_CACHE_TTL + ": " + value);
+            }
+        }
+        return DEFAULT_TTL_SECONDS * 1000;
+    }
+
+    private static Entry load(String tableName) throws Exception {
+        if (SchemaMetadataCache.get().getColumns(tableName).isEmpty()) {
+            throw new IllegalArgumentException("Unknown table: " + tableName);
+        }
+
+        // Primary key
+        String primaryKey = tableName + "_id"; // Guess
+        List<String> primaryKeys = SchemaMetadataCache.get().getPrimaryKeys(tableName);
+        if (!primaryKeys.isEmpty()) {
+            primaryKey = primaryKeys.get(0);
+        }
+
+        List<NameValue> values = new ArrayList<NameValue>();
+        Connection conn = DatabaseBackend.openConnection();
+        Statement s = null;
+        try {
+            s = conn.createStatement();
+
+            ResultSet rs = null;
+
+            // Try if table is person, then look for person_name
+            if ("person".equals(tableName)) {
+                try {
+                    rs = s.executeQuery("SELECT CONCAT(given_name, ' ', family_name) name,  `person_name`.`person_id` primary_key FROM  `users` INNER JOIN `person_name` on `users`.`person_id` = `person_name`.`person_id` INNER JOIN `user_role` on `users`.`user_id` = `user_role`.`user_id` WHERE `user_role`.`role` = 'Provider'");
+                } catch (Exception e) {
+                    log.debug(e.toString());
+                }
+            }
+
+            // Try if table is concept: fully specified names, searchable by prefix instead of being
+            // limited to concepts already used in obs
+            if (rs == null && "concept".equals(tableName)) {
+                try {
+                    rs = s.executeQuery("select name, concept_id from concept_name where locale='en' and concept_name_type='FULLY_SPECIFIED' and voided = 0");
+                } catch (Exception e) {
+                    log.debug(e.toString());
+                }
+            }
+
+            // Try 1: name field in tableName
+            if (rs == null) {
+                try {
+                    rs = s.executeQuery("select name, " + primaryKey + " from " + tableName);
+                } catch (Exception e) {
+                    log.debug(e.toString());
+                }
+            }
+
+            // Try 2: name field in table_name
+            if (rs == null) {
+                try {
+                    rs = s.executeQuery("select name, " + primaryKey + " from " + tableName + "_name");
+                } catch (Exception e) {
+                    log.debug(e.toString());
+                }
+            }
+
+            // Try 3: just use table_id as both key and value
+            if (rs == null) {
+                rs = s.executeQuery("select " + primaryKey + ", " + primaryKey + " from " + tableName);
+            }
+
+            while (rs.next()) {
+                NameValue nameValue = new NameValue();
+                nameValue.setName(rs.getString(1));
+                nameValue.setValue(rs.getString(2));
+                values.add(nameValue);
+            }
+            rs.close();
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                }
+            }
+            try {
+                conn.close();
+            } catch (SQLException e) {
+            }
+        }
+
+        Collections.sort(values, BY_NAME);
+        String[] sortKeys = new String[values.size()];
+        for (int i = 0; i < sortKeys.length; i++) {
+            sortKeys[i] = sortKey(values.get(i));
+        }
+        return new Entry(Collections.unmodifiableList(values), sortKeys);
+    }
+}
@@ -0,0 +1,351 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bulk load mode of a migration connection, enabled by {@value #GP_BULK_LOAD_SESSION}. While the
+ * session is open, foreign key and unique checks are off for the connection, and rows are committed
+ * several at a time instead of one by one, starting with {@value #GP_COMMIT_ROWS} rows and adjusted
+ * by a {@link CommitSizeController}. A failed row is still rolled back on its own, to a savepoint
+ * taken before it.
+ * <p>
+ * A deadlock makes the database roll back the whole transaction, with the rows imported since the
+ * last commit. The chunk is then lost: {@link #isChunkLost()} is set and the {@link ChunkListener}
+ * told, so that nothing is recorded for those rows. The listener is likewise told when a chunk is
+ * committed, which is when its rows are imported for good.
+ * <p>
+ * Since the database no longer rejects them, rows which break a constraint are looked for once the
+ * load is done: {@link #finish(List)} counts the rows inserted by the session which refer to missing
+ * rows, or repeat an identifier, and reports them. The rows of the session are told apart as those
+ * created by its user after the largest ids found when it began, so the checks assume that nobody
+ * else writes as that user during the load; other users' rows are not counted.
+ */
+public class BulkLoadSession {
+
+    protected static final Log log = LogFactory.getLog(BulkLoadSession.class);
+
+    public static final String GP_BULK_LOAD_SESSION = "spreadsheetimport.bulkLoadSession";
+
+    public static final String GP_COMMIT_ROWS = "spreadsheetimport.bulkLoadCommitRows";
+
+    public static final int DEFAULT_COMMIT_ROWS = 1000;
+
+    private static final String[][] ID_COLUMNS = {
+            {"encounter", "encounter_id"},
+            {"obs", "obs_id"},
+            {"patient_identifier", "patient_identifier_id"}
+    };
+
+    /**
+     * Checks run after the load: description of the rows found, table whose new rows are checked and
+     * a query counting them, with :id the largest id of the table before the load and :creator the
+     * session's user
+     */
+    private static final String[][] CHECKS = {
+            {"encounters of missing patients", "encounter",
+                    "select count(*) from encounter e left join patient p on p.patient_id = e.patient_id "
+                            + "where e.encounter_id > :id and e.creator = :creator and p.patient_id is null"},
+            {"obs of missing persons", "obs",
+                    "select count(*) from obs o left join person p on p.person_id = o.person_id "
+                            + "where o.obs_id > :id and o.creator = :creator and p.person_id is null"},
+            {"obs of missing encounters", "obs",
+                    "select count(*) from obs o left join encounter e on e.encounter_id = o.encounter_id "
+                            + "where o.obs_id > :id and o.creator = :creator and o.encounter_id is not null and e.encounter_id is null"},
+            {"obs of missing concepts", "obs",
+                    "select count(*) from obs o left join concept c on c.concept_id = o.concept_id "
+                            + "where o.obs_id > :id and o.creator = :creator and c.concept_id is null"},
+            {"obs in missing obs groups", "obs",
+                    "select count(*) from obs o left join obs g on g.obs_id = o.obs_group_id "
+                            + "where o.obs_id > :id and o.creator = :creator and o.obs_group_id is not null and g.obs_id is null"},
+            {"identifiers of missing patients", "patient_identifier",
+                    "select count(*) from patient_identifier i left join patient p on p.patient_id = i.patient_id "
+                            + "where i.patient_identifier_id > :id and i.creator = :creator and p.patient_id is null"},
+            {"duplicate identifiers", "patient_identifier",
+                    "select count(*) from patient_identifier i join patient_identifier d on d.identifier = i.identifier "
+                            + "and d.identifier_type = i.identifier_type and d.patient_identifier_id < i.patient_identifier_id "
+                            + "and d.voided = 0 where i.patient_identifier_id > :id and i.creator = :creator and i.voided = 0"},
+            {"duplicate uuids", "encounter",
+                    "select count(*) from encounter e join encounter d on d.uuid = e.uuid and d.encounter_id < e.encounter_id "
+                            + "where e.encounter_id > :id and e.creator = :creator"}
+    };
+
+    private final Connection conn;
+
+    private final String name;
+
+    private final CommitSizeController controller;
+
+    private final Map<String, Long> maxIdsBefore = new HashMap<String, Long>();
+
+    // user the rows of the session are created by
+    private final Integer creator;
+
+    private int uncommittedRows;
+
+    private long chunkStart = System.nanoTime();
+
+    private Savepoint savepoint;
+
+    private ChunkListener listener;
+
+    private ImportThrottle throttle;
+
+    private boolean chunkLost;
+
+    private int lostRows;
+
+    /**
+     * Told when the rows imported since the last commit are committed, or rolled back with the
+     * transaction
+     */
+    public interface ChunkListener {
+
+        /**
+         * @param rows number of rows committed, the first rows imported since the last commit
+         */
+        void chunkCommitted(int rows) throws SQLException;
+
+        void chunkRolledBack();
+    }
+
+    private BulkLoadSession(Connection conn, String name, CommitSizeController controller) {
+        this.conn = conn;
+        this.name = name;
+        this.controller = controller;
+        this.creator = Context.getAuthenticatedUser().getId();
+    }
+
+    /**
+     * @return true if migration connections are put in bulk load mode
+     */
+    public static boolean isEnabled() {
+        String value = Context.getAdministrationService().getGlobalProperty(GP_BULK_LOAD_SESSION);
+        return Boolean.valueOf(StringUtils.trimToEmpty(value));
+    }
+
+    /**
+     * Puts a connection in bulk load mode, if {@value #GP_BULK_LOAD_SESSION} is true
+     *
+     * @param conn connection the rows are imported with
+     * @param name name of the dataset, used in the report
+     * @return the session, or null if rows are to be committed one by one with all checks on
+     */
+    public static BulkLoadSession begin(Connection conn, String name) throws SQLException {
+        if (!isEnabled()) {
+            return null;
+        }
+        BulkLoadSession session = new BulkLoadSession(conn, name, CommitSizeController.fromGlobalProperties(getInitialCommitRows()));
+        for (String[] idColumn : ID_COLUMNS) {
+            session.maxIdsBefore.put(idColumn[0], queryLong(conn, "select coalesce(max(" + idColumn[1] + "), 0) from " + idColumn[0]));
+        }
+        conn.setAutoCommit(false);
+        setChecks(conn, false);
+        log.info("Importing " + name + " in bulk load mode, committing " + session.controller.getCommitRows() + " rows at first");
+        return session;
+    }
+
+    /**
+     * Marks the start of a row, which {@link #endRow(boolean, Exception)} commits or rolls back
+     */
+    public void startRow() throws SQLException {
+        conn.setAutoCommit(false);
+        savepoint = conn.setSavepoint();
+    }
+
+    public void setChunkListener(ChunkListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param throttle throttle the rows of a chunk are taken from once it is committed, rather than
+     *                 row by row while the chunk holds its locks
+     */
+    public void setThrottle(ImportThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @param rollback true if the row failed, or is to be rolled back anyway
+     * @param cause exception the row failed with, or null
+     */
+    public void endRow(boolean rollback, Exception cause) throws SQLException {
+        if (savepoint != null) {
+            if (rollback) {
+                if (CommitSizeController.isDeadlock(cause)) {
+                    // the savepoint went with the transaction
+                    loseChunk();
+                    return;
+                }
+                try {
+                    conn.rollback(savepoint);
+                } catch (SQLException e) {
+                    log.warn("Unable to roll back a row of " + name + " on its own: " + e.getMessage());
+                    loseChunk();
+                    return;
+                }
+            } else {
+                conn.releaseSavepoint(savepoint);
+                uncommittedRows++;
+            }
+            savepoint = null;
+        }
+        if (uncommittedRows >= controller.getCommitRows()) {
+            commit();
+        }
+    }
+
+    /**
+     * Records that a row failed on a lock wait timeout or deadlock, so that smaller chunks are
+     * committed
+     */
+    public void lockWaited() {
+        controller.lockWaited();
+    }
+
+    /**
+     * Commits the remaining rows, turns the checks back on and reports the rows which break a
+     * constraint, if any. Only rows created by the session's user since it began are checked, which
+     * includes rows written meanwhile by others logged in as the same user.
+     *
+     * @param messages receives a message per kind of broken constraint found
+     */
+    public void finish(List<String> messages) throws SQLException {
+        try {
+            commit();
+        } finally {
+            setChecks(conn, true);
+        }
+        String settled = "Bulk load of " + name + " settled on " + controller.describe();
+        log.info(settled);
+        messages.add(settled);
+        long start = System.nanoTime();
+        for (String[] check : CHECKS) {
+            long count = queryLong(conn, check[2].replace(":id", String.valueOf(maxIdsBefore.get(check[1])))
+                    .replace(":creator", String.valueOf(creator)));
+            if (count > 0) {
+                String message = "Bulk load of " + name + " left " + count + " " + check[0];
+                log.warn(message);
+                messages.add(message);
+            }
+        }
+        ImportMetrics.stop(ImportMetrics.VALIDATION, name, start);
+    }
+
+    public int getCommitRows() {
+        return controller.getCommitRows();
+    }
+
+    /**
+     * @return true if uncommitted rows were rolled back by the database, with the transaction
+     */
+    public boolean isChunkLost() {
+        return chunkLost;
+    }
+
+    public int getLostRows() {
+        return lostRows;
+    }
+
+    private void commit() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            conn.commit();
+        } catch (SQLException e) {
+            loseChunk();
+            throw e;
+        }
+        ImportMetrics.stop(ImportMetrics.COMMIT, name, start);
+        long end = System.nanoTime();
+        int rows = uncommittedRows;
+        controller.chunkCommitted(rows, end - chunkStart);
+        uncommittedRows = 0;
+        if (listener != null) {
+            listener.chunkCommitted(rows);
+        }
+        // waits are outside of the chunks, so that they are not timed as part of them
+        if (throttle != null) {
+            throttle.acquireRows(rows);
+        }
+        ImportThrottle.afterCommit();
+        chunkStart = System.nanoTime();
+    }
+
+    /**
+     * Gives up the rows imported since the last commit, which the database has rolled back
+     */
+    private void loseChunk() {
+        savepoint = null;
+        chunkLost = true;
+        lostRows += uncommittedRows;
+        log.warn("Bulk load of " + name + " lost the " + uncommittedRows + " rows imported since the last commit");
+        uncommittedRows = 0;
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            log.debug("Unable to roll back " + name + ": " + e.getMessage());
+        }
+        chunkStart = System.nanoTime();
+        if (listener != null) {
+            listener.chunkRolledBack();
+        }
+    }
+
+    private static int getInitialCommitRows() {
+        String value = Context.getAdministrationService().getGlobalProperty(GP_COMMIT_ROWS);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + GP_COMMIT_ROWS + ": " + value);
+            }
+        }
+        return DEFAULT_COMMIT_ROWS;
+    }
+
+    private static void setChecks(Connection conn, boolean on) throws SQLException {
+        Statement s = conn.createStatement();
+        try {
+            s.execute("set session foreign_key_checks = " + (on ? 1 : 0) + ", unique_checks = " + (on ? 1 : 0));
+        } finally {
+            s.close();
+        }
+    }
+
+    private static long queryLong(Connection conn, String sql) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(sql);
+        try {
+            ResultSet rs = ps.executeQuery();
+            long result = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            return result;
+        } finally {
+            ps.close();
+        }
+    }
+}
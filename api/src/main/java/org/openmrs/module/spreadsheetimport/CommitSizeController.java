@@ -0,0 +1,169 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the number of rows committed at a time while a dataset is imported. Chunks which commit
+ * within {@value #GP_CHUNK_MILLIS} milliseconds, without lock waits, let the next chunk grow by the
+ * minimum size; a slower chunk, or one with a lock wait, halves it. The size stays within
+ * {@value #GP_MIN_COMMIT_ROWS} and {@value #GP_MAX_COMMIT_ROWS}; setting both to the same value pins
+ * it.
+ * <p>
+ * Datasets expanding into many inserts per row thus settle on small chunks, and those of a single
+ * insert per row on large ones. {@link #describe()} reports the size settled on, to be configured
+ * for later runs.
+ */
+public class CommitSizeController {
+
+    protected static final Log log = LogFactory.getLog(CommitSizeController.class);
+
+    public static final String GP_MIN_COMMIT_ROWS = "spreadsheetimport.bulkLoadMinCommitRows";
+
+    public static final String GP_MAX_COMMIT_ROWS = "spreadsheetimport.bulkLoadMaxCommitRows";
+
+    public static final String GP_CHUNK_MILLIS = "spreadsheetimport.bulkLoadChunkMillis";
+
+    public static final int DEFAULT_MIN_COMMIT_ROWS = 100;
+
+    public static final int DEFAULT_MAX_COMMIT_ROWS = 10000;
+
+    public static final int DEFAULT_CHUNK_MILLIS = 2000;
+
+    private final int minRows;
+
+    private final int maxRows;
+
+    private final long targetNanos;
+
+    private int commitRows;
+
+    private int lockWaits;
+
+    private int chunks;
+
+    private long rows;
+
+    private int totalLockWaits;
+
+    public CommitSizeController(int initialRows, int minRows, int maxRows, long targetMillis) {
+        this.minRows = Math.max(1, minRows);
+        this.maxRows = Math.max(this.minRows, maxRows);
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.commitRows = Math.min(this.maxRows, Math.max(this.minRows, initialRows));
+    }
+
+    /**
+     * @param initialRows size of the first chunk
+     * @return a controller with the limits configured in the global properties
+     */
+    public static CommitSizeController fromGlobalProperties(int initialRows) {
+        return new CommitSizeController(initialRows, getInt(GP_MIN_COMMIT_ROWS, DEFAULT_MIN_COMMIT_ROWS),
+                getInt(GP_MAX_COMMIT_ROWS, DEFAULT_MAX_COMMIT_ROWS), getInt(GP_CHUNK_MILLIS, DEFAULT_CHUNK_MILLIS));
+    }
+
+    /**
+     * @return number of rows to commit at a time
+     */
+    public int getCommitRows() {
+        return commitRows;
+    }
+
+    /**
+     * Records a row of the current chunk which waited for a lock, or was chosen as deadlock victim
+     */
+    public void lockWaited() {
+        lockWaits++;
+    }
+
+    /**
+     * Adjusts the size of the next chunk
+     *
+     * @param chunkRows rows committed
+     * @param nanos time from the start of the chunk to the end of its commit
+     */
+    public void chunkCommitted(int chunkRows, long nanos) {
+        if (chunkRows == 0) {
+            return;
+        }
+        chunks++;
+        rows += chunkRows;
+        totalLockWaits += lockWaits;
+        int previous = commitRows;
+        if (lockWaits > 0 || nanos > targetNanos) {
+            commitRows = Math.max(minRows, commitRows / 2);
+        } else if (chunkRows >= commitRows) {
+            // only full chunks tell whether a larger one would still be fast enough
+            commitRows = Math.min(maxRows, commitRows + minRows);
+        }
+        lockWaits = 0;
+        if (commitRows != previous && log.isDebugEnabled()) {
+            log.debug("Commit size " + previous + " -> " + commitRows + " after " + chunkRows + " rows in "
+                    + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms");
+        }
+    }
+
+    /**
+     * @return the size settled on and how it was reached
+     */
+    public String describe() {
+        return commitRows + " rows per commit (" + chunks + " commits of " + (chunks == 0 ? 0 : rows / chunks)
+                + " rows on average, " + totalLockWaits + " lock waits)";
+    }
+
+    /**
+     * @return true if the exception of a failed row was caused by a lock wait timeout or a deadlock
+     */
+    public static boolean isLockWait(Exception e) {
+        String sqlState = getSqlState(e);
+        // deadlock, and lock wait timeout as mapped by Connector/J
+        return "40001".equals(sqlState) || "41000".equals(sqlState);
+    }
+
+    /**
+     * @return true if the exception of a failed row was caused by a deadlock, which rolls back the
+     * whole transaction rather than the failed statement
+     */
+    public static boolean isDeadlock(Exception e) {
+        return "40001".equals(getSqlState(e));
+    }
+
+    private static String getSqlState(Exception e) {
+        if (e instanceof SpreadsheetImportSQLSyntaxException) {
+            return ((SpreadsheetImportSQLSyntaxException) e).getSqlErrorState();
+        } else if (e instanceof SQLException) {
+            return ((SQLException) e).getSQLState();
+        }
+        return null;
+    }
+
+    private static int getInt(String property, int defaultValue) {
+        String value = Context.getAdministrationService().getGlobalProperty(property);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + property + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -20,12 +20,10 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.spreadsheetimport.objects.NameValue;
 
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
 import java.sql.Date;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.SQLSyntaxErrorException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -34,7 +32,6 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -82,270 +79,74 @@ public class DatabaseBackend {
     /**
      * Map: key = tableName.column, value = Table: Column
      */
-    private static Map<String, String> tableColumnMap = null;
-
-    private static Map<String, List<String>> tableColumnListMap = null;
-
     public static Map<String, List<String>> getTableColumnListMap() throws Exception {
-        if (tableColumnListMap == null)
-            reverseEngineerDatabaseTable();
-        return tableColumnListMap;
+        return SchemaMetadataCache.get().getTableColumnListMap();
     }
 
     public static Map<String, String> getTableColumnMap() throws Exception {
-        if (tableColumnMap == null)
-            reverseEngineerDatabaseTable();
-        return tableColumnMap;
+        return SchemaMetadataCache.get().getTableColumnMap();
     }
 
-    private static void reverseEngineerDatabaseTable() throws Exception {
-        tableColumnMap = new TreeMap<String, String>();
-        tableColumnListMap = new TreeMap<String, List<String>>();
-        Connection conn = null;
-        Exception exception = null;
-        try {
-            // Connect to db
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
-
-            Properties p = Context.getRuntimeProperties();
-            String url = p.getProperty("connection.url");
-
-            conn = DriverManager.getConnection(url, p.getProperty("connection.username"),
-                    p.getProperty("connection.password"));
-
-            // All tables
-            DatabaseMetaData dmd = conn.getMetaData();
-            ResultSet rs = dmd.getTables(null, null, "", null);
-            while (rs.next()) {
-                String tableName = rs.getString("TABLE_NAME");
-
-                // All columns
-                List<String> columnNames = new ArrayList<String>();
-                ResultSet rsColumns = dmd.getColumns(null, null, tableName, "");
-                while (rsColumns.next()) {
-                    columnNames.add(rsColumns.getString("COLUMN_NAME"));
-                }
-                rsColumns.close();
-
-//				// Remove imported keys
-                ResultSet rsImportedKeys = dmd.getImportedKeys(null, null, tableName);
-                while (rsImportedKeys.next()) {
-                    String columnName = rsImportedKeys.getString("FKCOLUMN_NAME");
-                    if (columnNames.contains(columnName) && "obs".equalsIgnoreCase(tableName) && !"value_coded".equalsIgnoreCase(columnName)) { // hack: only allow obs.value_coded to go through
-                        columnNames.remove(columnName);
-                    }
-                }
-                rsImportedKeys.close();
-
-                List<String> clonedColumns = new ArrayList<String>();
-                clonedColumns.addAll(columnNames);
-
-                // Add to map
-                for (String columnName : clonedColumns) {
-                    String tableDotColumn = tableName + "." + columnName;
-                    tableColumnMap.put(tableDotColumn, makePrettyTableDotColumn(tableDotColumn));
-                }
-
-                // Remove primary key
-                ResultSet rsPrimaryKeys = dmd.getPrimaryKeys(null, null, tableName);
-                while (rsPrimaryKeys.next()) {
-                    String columnName = rsPrimaryKeys.getString("COLUMN_NAME");
-                    if (columnNames.contains(columnName)) {
-                        columnNames.remove(columnName);
-                    }
-                }
-                rsPrimaryKeys.close();
-
-                tableColumnListMap.put(tableName, columnNames);
-
-            }
-        } catch (Exception e) {
-            log.debug(e.toString());
-            exception = e;
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (Exception e) {
-                }
-            }
-        }
-
-        if (exception != null) {
-            throw exception;
-        }
-    }
-
-
+    /**
+     * Returns all allowed values of a table, sorted by name. Served from {@link AllowedValueIndex};
+     * use {@link AllowedValueIndex#getPage(String, String, int, int)} for large tables.
+     */
     public static List<NameValue> getMapNameToAllowedValue(String tableName) throws Exception {
-        List<NameValue> retVal = new ArrayList<NameValue>();
-
-//		Map<String, String> result = new LinkedHashMap<String, String>();
-        Connection conn = null;
-        Statement s = null;
-        Exception exception = null;
-        try {
-            // Connect to db
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
-
-            Properties p = Context.getRuntimeProperties();
-            String url = p.getProperty("connection.url");
-
-            conn = DriverManager.getConnection(url, p.getProperty("connection.username"),
-                    p.getProperty("connection.password"));
-
-            s = conn.createStatement();
-
-            // Primary key
-            String primaryKey = tableName + "_id"; // Guess
-            DatabaseMetaData dmd = conn.getMetaData();
-            ResultSet rsPrimaryKeys = dmd.getPrimaryKeys(null, null, tableName);
-            if (rsPrimaryKeys.next()) {
-                primaryKey = rsPrimaryKeys.getString("COLUMN_NAME");
-            }
-            rsPrimaryKeys.close();
-
-            ResultSet rs = null;
-
-            // Try if table is person, then look for person_name
-            if ("person".equals(tableName)) {
-                try {
-                    rs = s.executeQuery("SELECT CONCAT(given_name, ' ', family_name) name,  `person_name`.`person_id` primary_key FROM  `users` INNER JOIN `person_name` on `users`.`person_id` = `person_name`.`person_id` INNER JOIN `user_role` on `users`.`user_id` = `user_role`.`user_id` WHERE `user_role`.`role` = 'Provider'");
-                } catch (Exception e) {
-                    log.debug(e.toString());
-                }
-            }
-
-            // Try if table is concept
-            // concept_name TODO: provide a means to filter only concepts to be used. This slows down page rendering for a large concept dictionary
-            if (rs == null && "concept".equals(tableName)) {
-                try {
-                    rs = s.executeQuery("select concept_id, concept_id from concept_name where locale='en' and concept_name_type='FULLY_SPECIFIED' and concept_id in(select distinct concept_id from obs) order by concept_id asc");
-                } catch (Exception e) {
-                    log.debug(e.toString());
-                }
-            }
-
-            // Try 1: name field in tableName
-            if (rs == null) {
-                try {
-                    rs = s.executeQuery("select name, " + primaryKey + " from " + tableName + " order by name");
-                } catch (Exception e) {
-                    log.debug(e.toString());
-                }
-            }
-
-            // Try 2: name field in table_name
-            if (rs == null) {
-                try {
-                    rs = s.executeQuery("select name, " + primaryKey + " from " + tableName + "_name order by name");
-                } catch (Exception e) {
-                    log.debug(e.toString());
-                }
-            }
-
-            // Try 3: just use table_id as both key and value
-            if (rs == null) {
-                rs = s.executeQuery("select " + primaryKey + ", " + primaryKey + " from " + tableName);
-            }
-
-            while (rs.next()) {
-                NameValue nameValue = new NameValue();
-                nameValue.setName(rs.getString(1));
-                nameValue.setValue(rs.getString(2));
-                retVal.add(nameValue);
-            }
-            rs.close();
-        } catch (Exception e) {
-            log.debug(e.toString());
-            exception = e;
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (Exception e) {
-                }
-            }
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (Exception e) {
-                }
-            }
-        }
-
-        if (exception != null) {
-            throw exception;
-        } else {
-            return retVal;
-        }
+        return new ArrayList<NameValue>(AllowedValueIndex.getAll(tableName));
     }
 
+    /**
+     * Returns the tables referenced by the NOT NULL foreign keys of a table, mapped to the foreign key
+     * column. Served from {@link SchemaMetadataCache}; the returned map is a copy which callers may
+     * modify.
+     */
     public static Map<String, String> getMapOfImportedKeyTableNameToColumnNamesForTable(String tableName) throws Exception {
-        Map<String, String> result = new HashMap<String, String>();
-        Connection conn = null;
-        Exception exception = null;
-        try {
-            // Connect to db
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
-
-            Properties p = Context.getRuntimeProperties();
-            String url = p.getProperty("connection.url");
-
-            conn = DriverManager.getConnection(url, p.getProperty("connection.username"),
-                    p.getProperty("connection.password"));
-
-            // Not NULLable columns
-            DatabaseMetaData dmd = conn.getMetaData();
-            List<String> columnNames = new ArrayList<String>();
-            ResultSet rsColumns = dmd.getColumns(null, null, tableName, "");
-            while (rsColumns.next()) {
-                if (!rsColumns.getString("IS_NULLABLE").equals("YES")) {
-                    columnNames.add(rsColumns.getString("COLUMN_NAME"));
-                }
-            }
-            rsColumns.close();
-
-            // Imported keys
-            ResultSet rsImportedKeys = dmd.getImportedKeys(null, null, tableName);
-            while (rsImportedKeys.next()) {
-                String columnName = rsImportedKeys.getString("FKCOLUMN_NAME");
-                if (columnNames.contains(columnName)) {
-                    result.put(rsImportedKeys.getString("PKTABLE_NAME"), columnName);
-                }
-            }
-            rsImportedKeys.close();
-        } catch (Exception e) {
-            log.debug(e.toString());
-            exception = e;
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (Exception e) {
-                }
-            }
-        }
+        return new HashMap<String, String>(SchemaMetadataCache.get().getRequiredImportedKeys(tableName));
+    }
 
-        if (exception != null) {
-            throw exception;
-        } else {
-            return result;
-        }
+    /**
+     * Imports one row in a transaction of its own on the given connection
+     *
+     * @param rowData template columns grouped by the table row they are inserted into
+     * @param values values of the row; generated keys are written back to it
+     * @param groupedObsPlan grouped observations of the dataset, or null
+     * @param groupedObsRow values of the row read with the plan
+     * @return the id of the encounter created or updated, or null
+     */
+    public static String importData(Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData, RowValues values,
+                                    String encounterDate, String patientId, GroupedObsPlan groupedObsPlan,
+                                    GroupedObsPlan.Row groupedObsRow, boolean rollbackTransaction, Connection conn) throws Exception {
+        return importData(rowData, values, encounterDate, patientId, groupedObsPlan, groupedObsRow, rollbackTransaction, conn, null, null);
     }
 
-    public static String importData(Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData,
-                                    String encounterDate, String patientId, List<GroupedObservations> groupedObservations,
-                                    boolean rollbackTransaction, Connection conn) throws Exception {
+    /**
+     * Imports one row on the given connection, within the transaction of a bulk load session
+     *
+     * @param session bulk load session of the connection, which commits the row with later ones; if
+     *                null the row is committed in a transaction of its own
+     * @param visits visits of the patient imported by the previous rows, or null to look them all up
+     * @see #importData(Map, RowValues, String, String, GroupedObsPlan, GroupedObsPlan.Row, boolean, Connection)
+     */
+    public static String importData(Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData, RowValues values,
+                                    String encounterDate, String patientId, GroupedObsPlan groupedObsPlan,
+                                    GroupedObsPlan.Row groupedObsRow, boolean rollbackTransaction, Connection conn,
+                                    BulkLoadSession session, PatientVisitCache visits) throws Exception {
         //Connection conn = null;
         Statement s = null;
         Exception exception = null;
         String sql = null;
+        String tableName = null;
+        boolean failed = false;
 
         String encounterId = null;
+        GroupedObsWriter groupedObsWriter = new GroupedObsWriter();
         try {
 
-            conn.setAutoCommit(false);
+            if (session != null) {
+                session.startRow();
+            } else {
+                conn.setAutoCommit(false);
+            }
 
             s = conn.createStatement();
 
@@ -354,10 +155,14 @@ public class DatabaseBackend {
             // Import
             for (UniqueImport uniqueImport : rowData.keySet()) {
 
-                String tableName = uniqueImport.getTableName();
+                tableName = uniqueImport.getTableName();
                 if (tableName.equals("patient_identifier") || tableName.equals("person_name")) {
                     continue;
                 }
+                // time spent in the database is subtracted from the time to build the insert
+                long tableStart = System.nanoTime();
+                long statementNanos = 0;
+                long t;
                 boolean isEncounter = "encounter".equals(tableName);
                 boolean isPerson = "person".equals(tableName);
                 boolean isPatientIdentifier = "patient_identifier".equals(tableName);
@@ -372,9 +177,9 @@ public class DatabaseBackend {
                 if (isEncounter) {
                     Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
                     for (SpreadsheetImportTemplateColumn column : columnSet) {
-                        Object columnValue = column.getValue();
+                        Object columnValue = values.getValue(column);
                         if (!columnValue.equals("") && columnValue != null) {
-                            column.setGeneratedKey(columnValue.toString());
+                            values.setGeneratedKey(column, columnValue.toString());
                             skip = true;
                             importedTables.add("encounter"); // fake as just imported encounter
                             break;
@@ -390,7 +195,7 @@ public class DatabaseBackend {
                 if (isObservation) {
                     Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
                     for (SpreadsheetImportTemplateColumn column : columnSet) {
-                        Object columnValue = column.getValue();
+                        Object columnValue = values.getValue(column);
                         if (columnValue.equals("")) {
                             skip = true;
                             importedTables.add("observation"); // fake as just imported observation, not meaningful, just for consistency purpose
@@ -416,24 +221,16 @@ public class DatabaseBackend {
                             if ("identifier".equals(columnName)) {
                                 isIdentifierExist = true;
 
-                                String patientIdentifierString = "";
-                                if (patientIdentifierColumn.getValue() instanceof Integer) {
-                                    Integer val = (Integer) patientIdentifierColumn.getValue();
-                                    patientIdentifierString = String.valueOf(val.intValue());
-                                } else if (patientIdentifierColumn.getValue() instanceof Double) {
-                                    Double val = (Double) patientIdentifierColumn.getValue();
-                                    patientIdentifierString = String.valueOf(val.intValue());
-                                } else {
-                                    patientIdentifierString = patientIdentifierColumn.getValue().toString();
-                                }
-
-                                sql = "select patient_id from patient_identifier where identifier = " + patientIdentifierString + " and identifier_type=16";
+                                String patientIdentifierString = toDuplicateCheckValue(values.getValue(patientIdentifierColumn));
 
-                                //System.out.println("Searching for existing patient of id " + patientIdentifierString);
-
-                                ResultSet rs = s.executeQuery(sql);
-                                if (rs.next()) {
-                                    patientId = rs.getString(1);
+                                // the identifier type pre-specified for the column, otherwise the source primary identifier type
+                                t = System.nanoTime();
+                                String existingPatientId = IdentifierPatientIndex.getPatientId(conn,
+                                        getPrespecifiedPatientIdentifierTypeIdFromPatientIdentifierColumn(patientIdentifierColumn),
+                                        patientIdentifierString);
+                                statementNanos += ImportMetrics.stop(ImportMetrics.EXECUTE, tableName, t);
+                                if (existingPatientId != null) {
+                                    patientId = existingPatientId;
 
                                     //System.out.println("Found patient with patient_id = " + patientId);
 
@@ -441,7 +238,7 @@ public class DatabaseBackend {
                                     // TODO: can this be modified to allow for inserting multiple identifiers?
                                     Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
                                     for (SpreadsheetImportTemplateColumn column : columnSet) {
-                                        column.setGeneratedKey(patientId);
+                                        values.setGeneratedKey(column, patientId);
                                     }
 
                                     importedTables.add("person"); // fake as just imported person
@@ -452,7 +249,6 @@ public class DatabaseBackend {
 
                                     skip = true;
                                 }
-                                rs.close();
                                 break;
                             }
                         }
@@ -474,9 +270,9 @@ public class DatabaseBackend {
                         for (SpreadsheetImportTemplateColumn personColumn : rowData.get(uniqueImport)) {
                             String columnName = personColumn.getColumnName();
                             if ("birth_date".equals(columnName))
-                                birthdate = personColumn.getValue();
+                                birthdate = values.getValue(personColumn);
                             if ("gender".equals(columnName))
-                                gender = personColumn.getValue();
+                                gender = values.getValue(personColumn);
                         }
 
                         // getting first name, last name, middle name from person
@@ -486,23 +282,25 @@ public class DatabaseBackend {
                         for (SpreadsheetImportTemplateColumn personNameColumn : personNameColumns) {
                             String columnName = personNameColumn.getColumnName();
                             if ("given_name".equals(columnName))
-                                givenName = personNameColumn.getValue();
+                                givenName = values.getValue(personNameColumn);
                             if ("family_name".equals(columnName))
-                                familyName = personNameColumn.getValue();
+                                familyName = values.getValue(personNameColumn);
                             if ("middle_name".equals(columnName))
-                                middleName = personNameColumn.getValue();
+                                middleName = values.getValue(personNameColumn);
                         }
 
 
                         // find matching person name
                         sql = "select person.person_id from person_name join person where gender " + (gender == null || gender.equals("") ? "is NULL" : "= " + gender) + " and birthdate " + (birthdate == null || birthdate.equals("") ? "is NULL" : "= " + birthdate) + " and given_name " + (givenName == null || givenName.equals("") ? "is NULL" : "= " + givenName) + " and family_name " + (familyName == null || familyName.equals("") ? "is NULL" : "= " + familyName) + " and middle_name " + (middleName == null || middleName.equals("") ? "is NULL" : "= " + middleName);
+                        t = System.nanoTime();
                         ResultSet rs = s.executeQuery(sql);
+                        statementNanos += ImportMetrics.stop(ImportMetrics.EXECUTE, tableName, t);
                         String personId = null;
                         if (rs.next()) {
                             // matched => no need to insert person, use the found patient_id as person_id
                             Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
                             for (SpreadsheetImportTemplateColumn column : columnSet) {
-                                column.setGeneratedKey(personId);// TODO: check to see if this will not always be NULL. It hasn't been set anywhere
+                                values.setGeneratedKey(column, personId);// TODO: check to see if this will not always be NULL. It hasn't been set anywhere
                             }
 
                             importedTables.add("person"); // fake as just imported person
@@ -551,7 +349,7 @@ public class DatabaseBackend {
                                     Set<SpreadsheetImportTemplateColumn> obsColumns = rowData.get(u);
                                     for (SpreadsheetImportTemplateColumn obsColumn : obsColumns) {
                                         if ("obs_datetime".equals(obsColumn.getColumnName())) {
-                                            String obsColumnValue = obsColumn.getValue().toString();
+                                            String obsColumnValue = values.getValue(obsColumn).toString();
                                             obsColumnValue = obsColumnValue.substring(1, obsColumnValue.length() - 1);
                                             Date obsColumnValueDate = java.sql.Date.valueOf(obsColumnValue);
                                             if (obsColumnValueDate.before(encounterDatetime))
@@ -572,27 +370,11 @@ public class DatabaseBackend {
 
                     // Check for duplicates
                     if (column.getDisallowDuplicateValue()) {
-                        String ColValue = "";
-                        if (column.getValue() instanceof Integer) {
-                            Integer val = (Integer) column.getValue();
-                            ColValue = String.valueOf(val.intValue());
-                        } else if (column.getValue() instanceof Double) {
-                            Double val = (Double) column.getValue();
-                            ColValue = String.valueOf(val.intValue());
-                        } else {
-                            ColValue = column.getValue().toString();
-                        }
-
-                        sql = "select " + column.getColumnName() + " from " + column.getTableName() + " where " + column.getColumnName() + " = " + ColValue;
-                        if (log.isDebugEnabled()) {
-                            log.debug(sql);
-                            //System.out.println(sql);
-                        }
-                        ResultSet rs = s.executeQuery(sql);
-                        boolean foundDuplicate = rs.next();
-                        rs.close();
+                        t = System.nanoTime();
+                        boolean foundDuplicate = DuplicateValueIndex.isDuplicate(conn, column.getTableName(), column.getColumnName(), toDuplicateCheckValue(values.getValue(column)));
+                        statementNanos += ImportMetrics.stop(ImportMetrics.VALIDATION, tableName, t);
                         if (foundDuplicate) {
-                            throw new SpreadsheetImportDuplicateValueException(column);
+                            throw new SpreadsheetImportDuplicateValueException(column, values.getValue(column));
                         }
                     }
 
@@ -606,7 +388,7 @@ public class DatabaseBackend {
                         columnValues += ",";
                     }
                     columnNames += column.getColumnName();
-                    columnValues += column.getValue().toString();
+                    columnValues += values.getValue(column).toString();
 
                 }
 
@@ -641,7 +423,7 @@ public class DatabaseBackend {
                     Map<String, String> mapPrimaryKeyColumnNameToGeneratedKey = new HashMap<String, String>();
                     for (SpreadsheetImportTemplateColumnColumn columnColumn : columnColumnsImportBefore) {
                         String primaryKeyColumnName = columnColumn.getColumnName();
-                        String columnGeneratedKey = columnColumn.getColumnImportFirst().getGeneratedKey();
+                        String columnGeneratedKey = values.getGeneratedKey(columnColumn.getColumnImportFirst());
 
                         if (mapPrimaryKeyColumnNameToGeneratedKey.containsKey(primaryKeyColumnName)) {
                             String mapGeneratedKey = mapPrimaryKeyColumnNameToGeneratedKey.get(primaryKeyColumnName);
@@ -662,7 +444,10 @@ public class DatabaseBackend {
                             if (log.isDebugEnabled()) {
                                 log.debug(sql);
                             }
+                            t = System.nanoTime();
                             s.executeUpdate(sql, Statement.RETURN_GENERATED_KEYS);
+                            statementNanos += ImportMetrics.stop(ImportMetrics.EXECUTE, "patient", t);
+                            ImportMetrics.increment(ImportMetrics.STATEMENTS, "patient");
 //							ResultSet rs = s.getGeneratedKeys();
 //							rs.next();
 //							if (!columnGeneratedKey.equals(rs.getString(1))) {
@@ -719,8 +504,6 @@ public class DatabaseBackend {
                 columnNames += ",creator";
                 columnValues += "," + Context.getAuthenticatedUser().getId();
 
-                //TODO: provide a predefined list of table names with uuids
-                DatabaseMetaData dmd = null;
                 /**
                  * visit,encounter,obs,patient_program,
                  */
@@ -733,14 +516,9 @@ public class DatabaseBackend {
                                 uniqueImport.getTableName().equals("patient_program"))) {
                     columnNames += ",uuid";
                     columnValues += ",uuid()";
-                } else {
-                    dmd = conn.getMetaData();
-                    ResultSet rsColumns = dmd.getColumns(null, null, uniqueImport.getTableName(), "uuid");
-                    if (rsColumns.next()) {
-                        columnNames += ",uuid";
-                        columnValues += ",uuid()";
-                    }
-                    rsColumns.close();
+                } else if (SchemaMetadataCache.get().getColumns(uniqueImport.getTableName()).contains("uuid")) {
+                    columnNames += ",uuid";
+                    columnValues += ",uuid()";
                 }
 
                 // add date created
@@ -766,14 +544,20 @@ public class DatabaseBackend {
                     getVisitQry = getVisitQry.replace(":startDatetime", encStartDatetime);
                     getVisitQry = getVisitQry.replace(":endDatetime", encEndDatetime);
                     getVisitQry = getVisitQry.replace(":patientID", patientId);
-                    String existingVisitId = null;
+                    // rows of a patient come together, so a visit of an earlier row is usually cached
+                    String existingVisitId = visits != null ? visits.get(patientId, encounterDate) : null;
                     //System.out.println("Get visit query: " + getVisitQry);
 
-                    ResultSet rs = s.executeQuery(getVisitQry);
-                    if (rs.next()) {
-                        existingVisitId = rs.getString(1);
+                    if (existingVisitId == null) {
+                        t = System.nanoTime();
+                        ResultSet rs = s.executeQuery(getVisitQry);
+                        statementNanos += ImportMetrics.stop(ImportMetrics.EXECUTE, "visit", t);
+                        if (rs.next()) {
+                            existingVisitId = rs.getString(1);
+                        }
                         rs.close();
-                    } else {
+                    }
+                    if (existingVisitId == null) {
                         String insertVisitQry = "insert into visit(patient_id, visit_type_id, date_started, date_stopped, creator, date_created, uuid) \n" +
                                 "    values(:patientID,1,':dateStarted',':dateStopped',:creator,now(),uuid())";
                         //replace date started string
@@ -783,15 +567,23 @@ public class DatabaseBackend {
                         insertVisitQry = insertVisitQry.replace(":creator", Context.getAuthenticatedUser().getId().toString());
                         //System.out.println("Insert visit query: " + insertVisitQry);
 
+                        t = System.nanoTime();
                         s.executeUpdate(insertVisitQry, Statement.RETURN_GENERATED_KEYS);
+                        statementNanos += ImportMetrics.stop(ImportMetrics.EXECUTE, "visit", t);
+                        ImportMetrics.increment(ImportMetrics.STATEMENTS, "visit");
+                        t = System.nanoTime();
                         ResultSet visitRs = s.getGeneratedKeys();
                         visitRs.next();
                         existingVisitId = visitRs.getString(1);
                         visitRs.close();
+                        statementNanos += ImportMetrics.stop(ImportMetrics.GENERATED_KEYS, "visit", t);
 
 
                     }
                     if (existingVisitId != null) {
+                        if (visits != null) {
+                            visits.put(encounterDate, existingVisitId);
+                        }
                         //System.out.println("Adding visit columns to query ");
                         columnNames += ",visit_id ";
                         columnValues += "," + existingVisitId + " ";
@@ -811,6 +603,8 @@ public class DatabaseBackend {
                 if (log.isDebugEnabled()) {
                     log.debug(sql);
                 }
+                ImportMetrics.timer(ImportMetrics.SQL_BUILD, tableName).record(System.nanoTime() - tableStart - statementNanos);
+                ImportMetrics.increment(ImportMetrics.STATEMENTS, tableName);
 
                 //introduce batch processing for encounter obs
 
@@ -821,7 +615,10 @@ public class DatabaseBackend {
                 } else {
                     // move all previous code to this block
                     //TODO: cleanup code after testing
+                    t = System.nanoTime();
                     s.executeUpdate(sql, Statement.RETURN_GENERATED_KEYS);
+                    ImportMetrics.stop(ImportMetrics.EXECUTE, tableName, t);
+                    t = System.nanoTime();
                     ResultSet rs = s.getGeneratedKeys();
                     rs.next();
 
@@ -829,116 +626,47 @@ public class DatabaseBackend {
                         encounterId = rs.getString(1);
                     }
                     for (SpreadsheetImportTemplateColumn column : columnSet) {
-                        column.setGeneratedKey(rs.getString(1));
+                        values.setGeneratedKey(column, rs.getString(1));
                     }
                     rs.close();
+                    ImportMetrics.stop(ImportMetrics.GENERATED_KEYS, tableName, t);
+                }
+
+                // later rows, of this import too, must not repeat the values just inserted
+                for (SpreadsheetImportTemplateColumn column : columnSet) {
+                    if (column.getDisallowDuplicateValue() && !isEncounter) {
+                        DuplicateValueIndex.add(conn, column.getTableName(), column.getColumnName(), toDuplicateCheckValue(values.getValue(column)));
+                    }
                 }
                 // SPECIAL TREATMENT: update Encounter ID back to the Excel file by returning it to the caller
                 if (isEncounter) {
-                    // process grouped obs
-                    if (groupedObservations != null && !groupedObservations.isEmpty()) {
-                        for (GroupedObservations gObs : groupedObservations) {
-
-                            if (gObs.getHasData()) {
-                                Integer groupConceptId = gObs.getGroupConceptId();
-                                String obsGroupId = null;
-
-                                columnNames = "";
-                                columnValues = "";
-                                columnNames += "date_created";
-                                columnValues += "now()";
-                                columnNames += ",person_id";
-                                columnValues += "," + patientId;
-                                columnNames += ",encounter_id";
-                                columnValues += "," + encounterId;
-                                columnNames += ",obs_datetime";
-                                columnValues += ",'" + encounterDate + "'";
-                                columnNames += ",creator";
-                                columnValues += "," + Context.getAuthenticatedUser().getId();
-                                columnNames += ",uuid";
-                                columnValues += ",uuid()";
-                                columnNames += ",concept_id";
-                                columnValues += "," + groupConceptId;
-
-                                String gObsQry = "insert into obs (" + columnNames + ")" + " values ("
-                                        + columnValues + ")";
-
-                                Statement grpConceptSt = conn.createStatement();
-                                grpConceptSt.executeUpdate(gObsQry, Statement.RETURN_GENERATED_KEYS);
-                                ResultSet grpConceptRs = grpConceptSt.getGeneratedKeys();
-                                grpConceptRs.next();
-                                obsGroupId = grpConceptRs.getString(1);
-                                grpConceptRs.close();
-
-                                for (Map.Entry<String, DatasetColumn> e : gObs.getDatasetColumns().entrySet()) {
-                                    // we only want entries
-
-                                    DatasetColumn column = e.getValue();
-
-                                    if (column.getValue() != null && StringUtils.isNotBlank(column.getValue())) {
-
-                                        columnNames = "";
-                                        columnValues = "";
-                                        columnNames += "date_created";
-                                        columnValues += "now()";
-                                        columnNames += ",person_id";
-                                        columnValues += "," + patientId;
-                                        columnNames += ",encounter_id";
-                                        columnValues += "," + encounterId;
-                                        columnNames += ",obs_datetime";
-                                        columnValues += ",'" + encounterDate + "'";
-                                        columnNames += ",creator";
-                                        columnValues += "," + Context.getAuthenticatedUser().getId();
-                                        columnNames += ",uuid";
-                                        columnValues += ",uuid()";
-                                        columnNames += ",concept_id";
-                                        columnValues += "," + column.getQuestionConceptId();
-                                        columnNames += ",obs_group_id";
-                                        columnValues += "," + obsGroupId;
-
-                                        if (column.getQuestionConceptDatatype().equals("value_coded")) {
-                                            columnNames += ",value_coded";
-                                            columnValues += "," + column.getValue();
-                                        } else if (column.getQuestionConceptDatatype().equals("value_text")) {
-                                            columnNames += ",value_text";
-                                            columnValues += "," + column.getValue();
-                                        } else if (column.getQuestionConceptDatatype().equals("value_datetime")) {
-                                            columnNames += ",value_datetime";
-                                            columnValues += "," + column.getValue();
-                                        } else if (column.getQuestionConceptDatatype().equals("value_numeric")) {
-                                            columnNames += ",value_numeric";
-                                            columnValues += "," + column.getValue();
-                                        }
-
-                                        String childObsQry = "insert into obs (" + columnNames + ")" + " values ("
-                                                + columnValues + ")";
-                                        grpConceptSt.addBatch(childObsQry);
-
-                                    }
-
-                                }
-                                // execute batch here
-                                grpConceptSt.executeBatch();
-                                grpConceptSt.close();
-                            }
-                        }
+                    // grouped obs are written in two batches, parents then members, before the row is committed
+                    if (groupedObsPlan != null) {
+                        groupedObsWriter.add(patientId, encounterId, encounterDate, Context.getAuthenticatedUser().getId(), groupedObsPlan, groupedObsRow);
+                    }
                 }
-            }
 
             importedTables.add(uniqueImport.getTableName());
         }
 
+        long batchStart = System.nanoTime();
         s.executeBatch();
+        ImportMetrics.stop(ImportMetrics.EXECUTE, "obs", batchStart);
+        groupedObsWriter.flush(conn);
 
-    } catch(
-    SQLSyntaxErrorException e) {
-        e.printStackTrace();
-        throw new SpreadsheetImportSQLSyntaxException(sql, e.getMessage());
-    } catch(Exception e) {
+    } catch (SpreadsheetImportDuplicateValueException e) {
+        failed = true;
+        throw e;
+    } catch (Exception e) {
         log.debug(e.toString());
-        e.printStackTrace();
+        failed = true;
         exception = e;
-        throw new SpreadsheetImportSQLSyntaxException(sql, e.getMessage()); // TODO: for web debug purpose only, should comment out later
+        SpreadsheetImportSQLSyntaxException syntaxException = new SpreadsheetImportSQLSyntaxException(sql, e.getMessage());
+        syntaxException.setTableName(tableName);
+        if (e instanceof SQLException) {
+            syntaxException.setSqlErrorState(((SQLException) e).getSQLState());
+        }
+        throw syntaxException; // TODO: for web debug purpose only, should comment out later
     } finally {
         if (s != null) {
             try {
@@ -946,12 +674,24 @@ public class DatabaseBackend {
             } catch (Exception e) {
             }
         }
-        if (conn != null) {
-            if (rollbackTransaction) {
+        if (visits != null && (rollbackTransaction || failed)) {
+            // visits inserted by the row are gone
+            visits.clear();
+        }
+        if (session != null) {
+            session.endRow(rollbackTransaction || failed, exception);
+        } else if (conn != null) {
+            long commitStart = System.nanoTime();
+            // a failed row is rolled back as a whole so that the import can go on with the next one
+            if (rollbackTransaction || failed) {
                 conn.rollback();
             } else {
                 conn.commit();
             }
+            ImportMetrics.stop(ImportMetrics.COMMIT, null, commitStart);
+            if (!rollbackTransaction && !failed) {
+                ImportThrottle.afterCommit();
+            }
             try {
                 //conn.close(); TODO: remove this after test
             } catch (Exception e) {
@@ -966,24 +706,65 @@ public class DatabaseBackend {
         return encounterId;
 }
 
-    public static void validateData(Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData) throws SQLException, SpreadsheetImportTemplateValidationException {
-        Connection conn = null;
+    /**
+     * Renders a column value for {@link DuplicateValueIndex} and {@link IdentifierPatientIndex};
+     * numbers are compared as integers
+     */
+    private static String toDuplicateCheckValue(Object value) {
+        if (value instanceof Integer) {
+            return String.valueOf(((Integer) value).intValue());
+        } else if (value instanceof Double) {
+            return String.valueOf(((Double) value).intValue());
+        }
+        return value.toString();
+    }
+
+    /**
+     * Opens a new connection to the OpenMRS database using the runtime properties. The caller owns
+     * the connection and must close it.
+     *
+     * @return a new connection
+     * @throws SQLException if the driver cannot be loaded or the connection cannot be opened
+     */
+    public static Connection openConnection() throws SQLException {
+        try {
+            Class.forName("com.mysql.jdbc.Driver").newInstance();
+        } catch (Exception e) {
+            throw new SQLException("Unable to load the MySQL driver: " + e.getMessage());
+        }
+
+        Properties p = Context.getRuntimeProperties();
+        String url = p.getProperty("connection.url");
+
+        return DriverManager.getConnection(url, p.getProperty("connection.username"),
+                p.getProperty("connection.password"));
+    }
+
+    public static void validateData(Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData, RowValues values) throws SQLException, SpreadsheetImportTemplateValidationException {
+        Connection conn = openConnection();
+        try {
+            validateData(rowData, values, conn);
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    /**
+     * Validates a row against the database using the supplied connection, which is left open so that
+     * a caller validating many rows can reuse it.
+     */
+    public static void validateData(Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData, RowValues values, Connection conn) throws SQLException, SpreadsheetImportTemplateValidationException {
         Statement s = null;
         String sql = null;
         SQLException exception = null;
         ResultSet rs = null;
+        long start = System.nanoTime();
 
         try {
 
-            // Connect to db
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
-
-            Properties p = Context.getRuntimeProperties();
-            String url = p.getProperty("connection.url");
-
-            conn = DriverManager.getConnection(url, p.getProperty("connection.username"),
-                    p.getProperty("connection.password"));
-
             s = conn.createStatement();
 
             for (UniqueImport uniqueImport : rowData.keySet()) {
@@ -997,13 +778,13 @@ public class DatabaseBackend {
 
                         if ("value_coded".equals(columnName)) {
                             // skip if empty
-                            if (obsColumn.getValue().equals(""))
+                            if (values.getValue(obsColumn).equals(""))
                                 continue;
 
                             // verify the answers are the concepts which are possible answers
-                            //sql = "select answer_concept from concept_answer join concept_name on concept_answer.answer_concept = concept_name.concept_id where concept_name.name = '" + obsColumn.getValue() + "' and concept_answer.concept_id = '" + conceptId + "'";
+                            //sql = "select answer_concept from concept_answer join concept_name on concept_answer.answer_concept = concept_name.concept_id where concept_name.name = '" + values.getValue(obsColumn) + "' and concept_answer.concept_id = '" + conceptId + "'";
                             //TODO: any concept should be permitted as answer to a question. Commenting the parts below for now
-                            /*sql = "select answer_concept from concept_answer where answer_concept = '" + obsColumn.getValue() + "' and concept_id = '" + conceptId + "'";
+                            /*sql = "select answer_concept from concept_answer where answer_concept = '" + values.getValue(obsColumn) + "' and concept_id = '" + conceptId + "'";
 							rs = s.executeQuery(sql);
 							if (!rs.next()) {
 								sql = "select name from concept_name where locale='en' and concept_id = " + conceptId;
@@ -1014,13 +795,13 @@ public class DatabaseBackend {
 							}*/
                         } else if ("value_text".equals(columnName)) {
                             // skip if empty
-                            if (obsColumn.getValue().equals(""))
+                            if (values.getValue(obsColumn).equals(""))
                                 continue;
 
                             // verify the number of characters is less than the allowed length
                         } else if ("value_numeric".equals(columnName)) {
                             // skip if empty
-                            if (obsColumn.getValue().equals(""))
+                            if (values.getValue(obsColumn).equals(""))
                                 continue;
 
                             // verify it's within the range specified in the concept definition
@@ -1032,7 +813,7 @@ public class DatabaseBackend {
                             double lowAbsolute = rs.getDouble(2);
                             double value = 0.0;
                             try {
-                                value = Double.parseDouble(obsColumn.getValue().toString());
+                                value = Double.parseDouble(values.getValue(obsColumn).toString());
                             } catch (NumberFormatException nfe) {
                                 throw new SpreadsheetImportTemplateValidationException("concept value is not a number");
                             }
@@ -1044,11 +825,11 @@ public class DatabaseBackend {
 							}*/
                         } else if ("value_datetime".equals(columnName) || "obs_datetime".equals(columnName)) {
                             // skip if empty
-                            if (obsColumn.getValue().equals("") || obsColumn.getValue().equals(null) || obsColumn.getValue().equals("null") || obsColumn.getValue().equals("NULL"))
+                            if (values.getValue(obsColumn).equals("") || values.getValue(obsColumn).equals(null) || values.getValue(obsColumn).equals("null") || values.getValue(obsColumn).equals("NULL"))
                                 continue;
 
                             // verify datetime is defined and it can not be in the future
-                            String value = obsColumn.getValue().toString();
+                            String value = values.getValue(obsColumn).toString();
                             //System.out.println("Date value: " + value);
                             String date = value + " 00:00:00"; // this is required for timestamp
 							/*if (Timestamp.valueOf(value).after(new Timestamp(System.currentTimeMillis())))
@@ -1073,17 +854,17 @@ public class DatabaseBackend {
                             throw new SpreadsheetImportTemplateValidationException("invalid prespecified patient identifier type ID");
 
                         String format = rs.getString(1);
-                        if (format != null && format.trim().length() != 0 && piColumn.getValue() != null && !piColumn.getValue().equals("")) {
+                        if (format != null && format.trim().length() != 0 && values.getValue(piColumn) != null && !values.getValue(piColumn).equals("")) {
                             // detect if value is numeric and try formatting the cell value to string
                             String value = "";
-                            if (piColumn.getValue() instanceof Integer) {
-                                Integer val = (Integer) piColumn.getValue();
+                            if (values.getValue(piColumn) instanceof Integer) {
+                                Integer val = (Integer) values.getValue(piColumn);
                                 value = String.valueOf(val);
-                            } else if (piColumn.getValue() instanceof Double) {
-                                Double val = (Double) piColumn.getValue();
+                            } else if (values.getValue(piColumn) instanceof Double) {
+                                Double val = (Double) values.getValue(piColumn);
                                 value = String.valueOf(val.intValue());
                             } else {
-                                value = piColumn.getValue().toString();
+                                value = values.getValue(piColumn).toString();
                             }
                             Pattern pattern = Pattern.compile(format);
                             Matcher matcher = pattern.matcher(value);
@@ -1097,12 +878,6 @@ public class DatabaseBackend {
         } catch (SQLException e) {
             log.debug(e.toString());
             exception = e;
-        } catch (IllegalAccessException e) {
-            log.debug(e.toString());
-        } catch (InstantiationException e) {
-            log.debug(e.toString());
-        } catch (ClassNotFoundException e) {
-            log.debug(e.toString());
         } finally {
             if (rs != null)
                 try {
@@ -1115,12 +890,7 @@ public class DatabaseBackend {
                 } catch (SQLException e) {
                 }
             }
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                }
-            }
+            ImportMetrics.stop(ImportMetrics.VALIDATION, null, start);
         }
 
         if (exception != null) {
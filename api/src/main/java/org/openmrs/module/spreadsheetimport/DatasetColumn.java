@@ -6,7 +6,6 @@ package org.openmrs.module.spreadsheetimport;
 public class DatasetColumn {
     private Integer questionConceptId;
     private String questionConceptDatatype;
-    private String value;
 
     public DatasetColumn(Integer questionConceptId, String questionConceptDatatype) {
         this.questionConceptId = questionConceptId;
@@ -28,12 +27,4 @@ public class DatasetColumn {
     public void setQuestionConceptDatatype(String questionConceptDatatype) {
         this.questionConceptDatatype = questionConceptDatatype;
     }
-
-    public String getValue() {
-        return value;
-    }
-
-    public void setValue(String value) {
-        this.value = value;
-    }
 }
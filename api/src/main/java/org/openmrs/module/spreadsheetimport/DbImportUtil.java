@@ -17,6 +17,7 @@ import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.commons.validator.GenericTypeValidator;
 import org.apache.commons.validator.GenericValidator;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -37,6 +38,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
@@ -44,6 +46,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -51,7 +54,9 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -120,11 +125,14 @@ public class DbImportUtil {
 //			mapUiToCs.put(ui, new TreeSet<SpreadsheetImportTemplateColumn>());
 //		}
 
+        // Foreign keys come from the shared metadata cache, so no connection is needed per table
+        SchemaMetadataCache.Snapshot metadata = SchemaMetadataCache.get();
+
         // Find requirements
         for (UniqueImport key : mapUiToCs.keySet()) {
             String tableName = key.getTableName();
 
-            Map<String, String> mapIkTnToCn = DatabaseBackend.getMapOfImportedKeyTableNameToColumnNamesForTable(tableName);
+            Map<String, String> mapIkTnToCn = new HashMap<String, String>(metadata.getRequiredImportedKeys(tableName));
 
             if ("patient_identifier".equals(tableName))
                 mapIkTnToCn.put("patient", "patient_id");
@@ -257,7 +265,6 @@ public class DbImportUtil {
                                         List<String> messages, boolean rollbackTransaction, String mainPtIdType, String groupedObsConfigFile, String migrationDatabase) throws Exception {
         MysqlDataSource dataSource = null;
         Connection conn = null;
-        Statement s = null;
         String sql = null;
         List<String> columnNames = new Vector<String>();
 
@@ -282,8 +289,6 @@ public class DbImportUtil {
 
             //conn.setAutoCommit(false);
 
-            s = conn.createStatement();
-
             DatabaseMetaData dmd = conn.getMetaData();
             ResultSet rsColumns = dmd.getColumns(migrationDatabase, null, tableToProcess, null);
 
@@ -307,6 +312,9 @@ public class DbImportUtil {
         columnNamesOnlyInTemplate.removeAll(columnNames);
         if (columnNamesOnlyInTemplate.isEmpty() == false) {
             messages.add("required column names not present: " + toString(columnNamesOnlyInTemplate));
+            if (conn != null) {
+                conn.close();
+            }
             return null;
         }
 
@@ -326,222 +334,286 @@ public class DbImportUtil {
             //messages.add("Extra column names present, these will not be processed: " + toString(columnNamesOnlyInSheet));
         }
 
-        // Process rows
-        String tableName = tableToTemplateMap.get(template.getId());
-
-        String query = "select * from :migrationDatabase.:tableName";
-        query = query.replace(":migrationDatabase", migrationDatabase);
-        query = query.replace(":tableName", tableName);
-        ResultSet rs = s.executeQuery(query);
-
-        // load json config for dataset
-        List<GroupedObservations> gObs = null;
-        if (groupedObsConfigFile != null && StringUtils.isNotBlank(groupedObsConfigFile)) {
-            gObs = DbImportUtil.getGroupedDatasetConfigForTemplate(groupedObsConfigFile);
-        }
-        int recordCount = 0;
-
-        if (rs.next() == false) {
-            System.out.println("Empty dataset. Will skip processing");
-            return "Empty dataset. Will skip processing";
-        } else {
-            do {
-
-                boolean rowHasData = false;
-                // attempt to process the extra encounter_datetime
-                String encounterDateColumn = "Encounter_Date";
-                String mainIdentifierColumn = "Person_Id";
-                String internalIdColumn = "patient_id";
-                String patientIdColVal = rs.getString(mainIdentifierColumn);
-                String internalIdVal = rs.getString(internalIdColumn);
-                String patientId = rs.getString(internalIdColumn);
-                //String patientId = null;
-
-
-                // ==========================
-            /*Statement getPatientSt = conn.createStatement();
-            String patientIdsql = "select patient_id from patient_identifier where identifier = " + patientIdColVal + " and identifier_type=" + mainPtIdType;
-
-
-            ResultSet getPatientRs = getPatientSt.executeQuery(patientIdsql);
-            if (getPatientRs.next()) {
-                patientId = getPatientRs.getString(1);
-
+        try {
+            // Process rows
+            String tableName = tableToTemplateMap.get(template.getId());
+
+            // simple templates are imported by the database in a few statements per chunk of rows
+            // rows are skipped one by one in delta mode, so those imports stay row by row, and trial
+            // runs too, so that they report the rows which would fail
+            boolean deltaMode = !rollbackTransaction && RowFingerprintIndex.isEnabled();
+            String afterPatientId = null;
+            if (StringUtils.isBlank(groupedObsConfigFile) && !deltaMode && !rollbackTransaction && TemplatePushdown.isEnabled()) {
+                TemplatePushdown pushdown = TemplatePushdown.compile(conn, template, migrationDatabase, tableName);
+                if (pushdown != null) {
+                    try {
+                        int imported = pushdown.execute(conn, false, ImportThrottle.forDataset(template.getName()));
+                        ImportMetrics.add(ImportMetrics.ROWS_READ, tableName, imported);
+                        ImportMetrics.add(ImportMetrics.ROWS_IMPORTED, tableName, imported);
+                        DbImportUtil.updateMigrationProgressMapProperty(template.getName(), "processedCount", String.valueOf(imported));
+                        return imported == 0 ? "Empty dataset. Will skip processing" : "Successful import";
+                    } catch (SQLException e) {
+                        // the rows of the failed chunk on go row by row, which records the failing ones
+                        ImportMetrics.add(ImportMetrics.ROWS_READ, tableName, pushdown.getImportedRows());
+                        ImportMetrics.add(ImportMetrics.ROWS_IMPORTED, tableName, pushdown.getImportedRows());
+                        afterPatientId = pushdown.getImportedThroughPatientId();
+                        log.warn("Set based import of " + template.getName() + " failed after " + pushdown.getImportedRows()
+                                + " rows, importing the rest row by row: " + e.getMessage());
+                    }
+                }
             }
-            if (getPatientRs != null) {
-                getPatientRs.close();
-            }*/
-
-                // ==========================
-                String rowEncDate = null;
-                int encDateColumnIdx = columnNames.indexOf(encounterDateColumn);
-
-                if (encDateColumnIdx >= 0) {
-                    if (rs.getDate(encounterDateColumn) != null) {
-                        java.util.Date encDate = rs.getDate(encounterDateColumn);
-                        rowEncDate = DATE_FORMAT.format(encDate);// "'" + new java.sql.Timestamp(encDate.getTime()).toString() + "'";
 
+            // rows are read and decoded ahead on other threads while this one writes them, a patient at a time
+            SourceRowPipeline pipeline = SourceRowPipeline.open(migrationDatabase, tableName, afterPatientId);
+            int recordCount = 0;
+            int failedCount = 0;
+            BulkLoadSession session = null;
+            RowFingerprintIndex fingerprints = null;
+            try {
+                // load json config for dataset and resolve its columns against the query once
+                GroupedObsPlan gObsPlan = null;
+                if (groupedObsConfigFile != null && StringUtils.isNotBlank(groupedObsConfigFile)) {
+                    List<GroupedObservations> gObs = DbImportUtil.getGroupedDatasetConfigForTemplate(groupedObsConfigFile);
+                    if (gObs != null) {
+                        gObsPlan = GroupedObsPlan.compile(gObs, pipeline.getMetaData());
                     }
+                }
+                int errorBudget = ImportErrorSink.getErrorBudget();
+                ImportErrorSink errorSink = ImportErrorSink.getInstance();
+                ImportThrottle throttle = ImportThrottle.forDataset(template.getName());
+                PatientVisitCache visits = new PatientVisitCache();
+                if (deltaMode) {
+                    fingerprints = RowFingerprintIndex.load(conn, template.getName());
+                }
+                pipeline.start(template, gObsPlan, fingerprints, Context.getLocale());
 
+                SourceRowPipeline.DecodedRow row = pipeline.take();
+                if (row == null) {
+                    log.info("Empty dataset " + tableName + ", skipping it");
+                    return "Empty dataset. Will skip processing";
+                }
+                if (!rollbackTransaction) {
+                    session = BulkLoadSession.begin(conn, template.getName());
+                }
+                CommittedRows committedRows = new CommittedRows(conn, tableName, fingerprints, visits);
+                if (session != null) {
+                    session.setChunkListener(committedRows);
+                    session.setThrottle(throttle);
                 }
                 Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData = template
                         .getMapOfUniqueImportToColumnSetSortedByImportIdx();
+                do {
+                    // just count even if patientId is null
+                    recordCount++;
+                    DbImportUtil.updateMigrationProgressMapProperty(template.getName(), "processedCount", String.valueOf(recordCount));
+                    ImportMetrics.increment(ImportMetrics.ROWS_READ, tableName);
 
-                for (UniqueImport uniqueImport : rowData.keySet()) {
-                    Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
-                    for (SpreadsheetImportTemplateColumn column : columnSet) {
-
-                        Object value = null;
-
-                        if (GenericValidator.isInt(rs.getString(column.getName()))) {
-                            value = rs.getInt(column.getName());
-                        } else if (GenericValidator.isFloat(rs.getString(column.getName()))) {
-                            value = rs.getDouble(column.getName());
-                        } else if (GenericValidator.isDouble(rs.getString(column.getName()))) {
-                            value = rs.getDouble(column.getName());
-                        } else if (GenericValidator.isDate(rs.getString(column.getName()), Context.getLocale())) {
-                            java.util.Date date = rs.getDate(rs.getString(column.getName()));
-                            value = "'" + new java.sql.Timestamp(date.getTime()).toString() + "'";
-                        } else {
-                            value = rs.getString(column.getName());
-                            if (value != null && !value.equals("")) {
-                                value = "'" + rs.getString(column.getName()).replace("'","") + "'";
-                            }
-                        }
-                        // check for empty cell (new Encounter)
-                        if (value == null) {
-                            rowHasData = true;
-                            column.setValue("");
-                            continue;
-                        }
-
-                        if (value != null) {
-                            rowHasData = true;
-                            column.setValue(value);
-                        } else {
-                            column.setValue("");
-                        }
+                    if (row.isUnchanged()) {
+                        // imported by an earlier run and unchanged since
+                        ImportMetrics.increment(ImportMetrics.ROWS_SKIPPED, tableName);
+                        continue;
                     }
-                }
 
-                for (UniqueImport uniqueImport : rowData.keySet()) {
-                    Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
-                    boolean isFirst = true;
-                    for (SpreadsheetImportTemplateColumn column : columnSet) {
-
-                        if (isFirst) {
-                            // Should be same for all columns in unique import
-//							System.out.println("SpreadsheetImportUtil.importTemplate: column.getColumnPrespecifiedValues(): " + column.getColumnPrespecifiedValues().size());
-                            if (column.getColumnPrespecifiedValues().size() > 0) {
-                                Set<SpreadsheetImportTemplateColumnPrespecifiedValue> columnPrespecifiedValueSet = column.getColumnPrespecifiedValues();
-                                for (SpreadsheetImportTemplateColumnPrespecifiedValue columnPrespecifiedValue : columnPrespecifiedValueSet) {
-//									System.out.println(columnPrespecifiedValue.getPrespecifiedValue().getValue());
+                    if (row.hasData() && StringUtils.isNotBlank(row.getPatientId())) {
+                        if (session == null) {
+                            // a session takes the rows of a chunk once it is committed
+                            throttle.acquireRow();
+                        }
+                        // recorded before the import, since a bulk load session may commit it right away
+                        committedRows.imported(row);
+                        try {
+                            DatabaseBackend.importData(rowData, row.getValues(), row.getEncounterDate(), row.getPatientId(),
+                                    gObsPlan, row.getGroupedObsRow(), rollbackTransaction, conn, session, visits);
+                            if (rollbackTransaction) {
+                                // a trial run rolls every row back
+                                committedRows.chunkRolledBack();
+                            } else if (session == null) {
+                                committedRows.chunkCommitted(1);
+                            }
+                        } catch (Exception e) {
+                            // the row has been rolled back, record it and go on with the next one
+                            committedRows.failed(row);
+                            failedCount++;
+                            ImportMetrics.increment(ImportMetrics.ROWS_FAILED, tableName);
+                            errorSink.record(ImportErrorSink.ImportError.of(template.getName(), row.getSourceKey(), recordCount, e));
+                            if (session != null && CommitSizeController.isLockWait(e)) {
+                                session.lockWaited();
+                            }
+                            if (session != null && session.isChunkLost()) {
+                                // the rows since the last commit are gone too, and must not be taken as imported
+                                messages.add(describeRowError(e));
+                                messages.add("Stopped importing " + template.getName() + ": the database rolled back the last "
+                                        + session.getLostRows() + " uncommitted rows, run the migration again to import them");
+                                session.finish(messages);
+                                if (fingerprints != null) {
+                                    fingerprints.flush(conn);
+                                }
+                                return null;
+                            }
+                            if (errorBudget >= 0 && failedCount > errorBudget) {
+                                messages.add(describeRowError(e));
+                                messages.add("Stopped importing " + template.getName() + " after " + failedCount
+                                        + " failed rows, see spreadsheetimport_import_error");
+                                if (session != null) {
+                                    session.finish(messages);
+                                }
+                                if (fingerprints != null) {
+                                    fingerprints.flush(conn);
                                 }
+                                return null;
                             }
                         }
+                    } else {
+                        ImportMetrics.increment(ImportMetrics.ROWS_SKIPPED, tableName);
                     }
-                }
 
+                } while ((row = pipeline.take()) != null);
+            } finally {
+                pipeline.close();
+            }
 
-                /**
-                 * Extract values of grouped observations here
-                 */
-                if (gObs != null) {
-                    for (GroupedObservations gO : gObs) {
-                        boolean groupHasData = false;
-                        for (Map.Entry<String, DatasetColumn> e : gO.getDatasetColumns().entrySet()) {
-                            String k = e.getKey();
-                            DatasetColumn v = e.getValue();
-
-                            Object value = null;
-
-                            if (GenericValidator.isInt(rs.getString(k))) {
-                                value = rs.getInt(k);
-                            } else if (GenericValidator.isFloat(rs.getString(k))) {
-                                value = rs.getDouble(k);
-                            } else if (GenericValidator.isDouble(rs.getString(k))) {
-                                value = rs.getDouble(k);
-                            } else if (GenericValidator.isDate(rs.getString(k), Context.getLocale())) {
-                                java.util.Date date = rs.getDate(rs.getString(k));
-                                value = "'" + new java.sql.Timestamp(date.getTime()).toString() + "'";
-                            } else {
-                                value = rs.getString(k);
-                                if (value != null && StringUtils.isNotBlank(value.toString())) {
-                                    value = "'" + rs.getString(k) + "'";
-                                }
-                            }
+            if (session != null) {
+                session.finish(messages);
+            }
+            if (fingerprints != null) {
+                fingerprints.flush(conn);
+            }
 
-                            if (value != null && StringUtils.isNotBlank(value.toString())) {
-                                v.setValue(value.toString());
-                                if (!groupHasData) {
-                                    groupHasData = true;
-                                    gO.setHasData(true);
-                                }
-                            }
-                        }
-                        gO.setHasData(groupHasData);
+            if (failedCount > 0) {
+                messages.add(failedCount + " rows of " + template.getName()
+                        + " could not be imported, see spreadsheetimport_import_error");
+            }
 
-                    }
+            return "Successful import";
+        } finally {
+            // closed on every path, including rows failing outside the per row handling
+            try {
+                if (conn != null) {
+                    conn.close();
                 }
+            } catch (SQLException e) {
+                log.debug("Unable to close connection: " + e.getMessage());
+            }
+        }
+    }
 
-                // just count even if patientId is null
-                recordCount++;
-                DbImportUtil.updateMigrationProgressMapProperty(template.getName(), "processedCount", String.valueOf(recordCount));
+    /**
+     * Counts the rows of a dataset imported, and records their fingerprints, once they are
+     * committed. Rows imported in a bulk load session are only committed with their chunk, and are
+     * dropped if the chunk is rolled back.
+     */
+    private static class CommittedRows implements BulkLoadSession.ChunkListener {
 
-                if (rowHasData && StringUtils.isNotBlank(patientId)) {
-                    Exception exception = null;
-                    try {
-                        //DatabaseBackend.validateData(rowData);
-                        String encounterId = DatabaseBackend.importData(rowData, rowEncDate, patientId, gObs, rollbackTransaction, conn);
-
-
-                    /*if (recordCount == 1) {
-                        System.out.println(new Date().toString() + ":: Completed processing record 1 ::  for template " + template.getName());
-                    } else if (recordCount%1000 == 0) {
-                        System.out.println(new Date().toString() + ":: Completed processing record :: " + recordCount + " for template " + template.getName());
-                    }*/
-                    /*if (encounterId != null) {
-                        for (UniqueImport uniqueImport : rowData.keySet()) {
-                            Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
-                            for (SpreadsheetImportTemplateColumn column : columnSet) {
-                                //Write generated encounter_id in the Encounter ID column
-                                if ("encounter".equals(column.getTableName())) {
-                                    System.out.println("New encounter: " + encounterId);
-                                }
-                            }
-                        }
-                    }*/
-                    } catch (SpreadsheetImportTemplateValidationException e) {
-                        messages.add("Validation failed: " + e.getMessage());
-                        return null;
-                    } catch (SpreadsheetImportDuplicateValueException e) {
-                        messages.add("found duplicate value for column " + e.getColumn().getName() + " with value " + e.getColumn().getValue());
-                        return null;
-                    } catch (SpreadsheetImportSQLSyntaxException e) {
-                        e.printStackTrace();
-                        messages.add("SQL syntax error: \"" + e.getSqlErrorMessage() + "\".<br/>Attempted SQL Statement: \"" + e.getSqlStatement() + "\"");
-                        return null;
-                    } catch (Exception e) {
-                        exception = e;
-                    }
-                    if (exception != null) {
-                        throw exception;
-                    }
-                }
+        private final Connection conn;
+
+        private final String tableName;
+
+        private final RowFingerprintIndex fingerprints;
+
+        private final PatientVisitCache visits;
 
-            } while (rs.next());
+        // rows imported since the last commit, the last one possibly being imported
+        private final LinkedList<SourceRowPipeline.DecodedRow> uncommitted = new LinkedList<SourceRowPipeline.DecodedRow>();
+
+        CommittedRows(Connection conn, String tableName, RowFingerprintIndex fingerprints, PatientVisitCache visits) {
+            this.conn = conn;
+            this.tableName = tableName;
+            this.fingerprints = fingerprints;
+            this.visits = visits;
         }
 
-        try {
-            if (conn != null) {
-                conn.close();
+        void imported(SourceRowPipeline.DecodedRow row) {
+            uncommitted.add(row);
+        }
+
+        void failed(SourceRowPipeline.DecodedRow row) {
+            if (!uncommitted.isEmpty() && uncommitted.getLast() == row) {
+                uncommitted.removeLast();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
 
+        public void chunkCommitted(int rows) throws SQLException {
+            for (int i = 0; i < rows && !uncommitted.isEmpty(); i++) {
+                SourceRowPipeline.DecodedRow row = uncommitted.removeFirst();
+                ImportMetrics.increment(ImportMetrics.ROWS_IMPORTED, tableName);
+                if (fingerprints != null) {
+                    fingerprints.add(conn, row.getFingerprint(), row.getSourceKey());
+                }
+            }
+        }
+
+        public void chunkRolledBack() {
+            uncommitted.clear();
+            // visits inserted by the chunk are gone
+            visits.clear();
+        }
+    }
+
+    /**
+     * @return the message shown for a row which could not be imported
+     */
+    private static String describeRowError(Exception e) {
+        if (e instanceof SpreadsheetImportTemplateValidationException) {
+            return "Validation failed: " + e.getMessage();
+        } else if (e instanceof SpreadsheetImportDuplicateValueException) {
+            SpreadsheetImportDuplicateValueException de = (SpreadsheetImportDuplicateValueException) e;
+            return "found duplicate value for column " + de.getColumn().getName() + " with value " + de.getValue();
+        } else if (e instanceof SpreadsheetImportSQLSyntaxException) {
+            SpreadsheetImportSQLSyntaxException se = (SpreadsheetImportSQLSyntaxException) e;
+            return "SQL syntax error: \"" + se.getSqlErrorMessage() + "\".<br/>Attempted SQL Statement: \""
+                    + se.getSqlStatement() + "\"";
+        }
+        return e.toString();
+    }
 
-        return "Successful import";
+    /**
+     * Decodes a raw value read from a migration dataset column. Integers, decimals and dates in the
+     * short format of the given locale are returned as Integer, Double and Timestamp; anything else
+     * is returned unchanged.
+     *
+     * @param raw the column value as read with ResultSet.getString, may be null
+     * @param locale locale used to recognise dates
+     * @return the decoded value, or null if raw is null
+     */
+    public static Object decodeSourceValue(String raw, Locale locale) {
+        if (raw == null) {
+            return null;
+        }
+        if (GenericValidator.isInt(raw)) {
+            return Integer.valueOf(raw);
+        }
+        if (GenericValidator.isFloat(raw) || GenericValidator.isDouble(raw)) {
+            return Double.valueOf(raw);
+        }
+        if (GenericValidator.isDate(raw, locale)) {
+            Date date = GenericTypeValidator.formatDate(raw, locale);
+            if (date != null) {
+                return new Timestamp(date.getTime());
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * Renders a decoded value the way importData expects it: numbers as they are, dates and text
+     * quoted. Text of template columns has single quotes removed and is quoted unless empty; text of
+     * grouped observations is quoted unless blank.
+     *
+     * @param decoded value returned by {@link #decodeSourceValue(String, Locale)}
+     * @param templateColumn true for template columns, false for grouped observation columns
+     */
+    public static Object toSqlValue(Object decoded, boolean templateColumn) {
+        if (decoded instanceof Timestamp) {
+            return "'" + decoded.toString() + "'";
+        }
+        if (decoded instanceof String) {
+            String text = (String) decoded;
+            if (templateColumn) {
+                return text.equals("") ? text : "'" + text.replace("'", "") + "'";
+            }
+            return StringUtils.isNotBlank(text) ? "'" + text + "'" : text;
+        }
+        return decoded;
     }
 
     /**
@@ -563,19 +635,19 @@ public class DbImportUtil {
         String NEXT_OF_KIN_NAME = "830bef6d-b01f-449d-9f8d-ac0fede8dbd3";
         String NEXT_OF_KIN_RELATIONSHIP = "d0aa9fd1-2ac5-45d8-9c5e-4317c622c8f5";
         String SUBCHIEF_NAME = "40fa0c9c-7415-43ff-a4eb-c7c73d7b1a7a";
-        String TELEPHONE_CONTACT = "b2c38640-2603-4629-aebd-3b54f33f1e3a";
-        String EMAIL_ADDRESS = "b8d0b331-1d2d-4a9a-b741-1816f498bdb6";
-        String ALTERNATE_PHONE_CONTACT = "94614350-84c8-41e0-ac29-86bc107069be";
-        String NEAREST_HEALTH_CENTER = "27573398-4651-4ce5-89d8-abec5998165c";
+        String TELEPHONE_CONTACT = MigrationMetadata.TELEPHONE_CONTACT;
+        String EMAIL_ADDRESS = MigrationMetadata.EMAIL_ADDRESS;
+        String ALTERNATE_PHONE_CONTACT = MigrationMetadata.ALTERNATE_PHONE_CONTACT;
+        String NEAREST_HEALTH_CENTER = MigrationMetadata.NEAREST_HEALTH_CENTER;
         String GUARDIAN_FIRST_NAME = "8caf6d06-9070-49a5-b715-98b45e5d427b";
         String GUARDIAN_LAST_NAME = "0803abbd-2be4-4091-80b3-80c6940303df";
 
         String CWC_NUMBER = "1dc8b419-35f2-4316-8d68-135f0689859b";
         String DISTRICT_REGISTRATION_NUMBER = "d8ee3b8c-a8fc-4d6b-af6a-9423be5f8906";
         String HEI_UNIQUE_NUMBER = "0691f522-dd67-4eeb-92c8-af5083baf338";
-        String NATIONAL_ID = "49af6cdc-7968-4abb-bf46-de10d7f4859f";
-        String UNIQUE_PATIENT_NUMBER = "05ee9cf4-7242-4a17-b4d4-00f707265c8a";
-        String IQCARE_PERSON_PK = "b3d6de9f-f215-4259-9805-8638c887e46b"; // this should be retired once migration is complete
+        String NATIONAL_ID = MigrationMetadata.NATIONAL_ID;
+        String UNIQUE_PATIENT_NUMBER = MigrationMetadata.UNIQUE_PATIENT_NUMBER;
+        String IQCARE_PERSON_PK = MigrationMetadata.IQCARE_PERSON_PK; // this should be retired once migration is complete
 
         List<String> identifierTypeList = Arrays.asList(UNIQUE_PATIENT_NUMBER, NATIONAL_ID, IQCARE_PERSON_PK);
 
@@ -659,6 +731,7 @@ public class DbImportUtil {
 
 
         Connection conn = null;
+        ImportThrottle throttle = ImportThrottle.forDataset("Demographics");
         Statement s = null;
         Integer upnIdType = null;
         Integer natIdIdType = null;
@@ -677,47 +750,10 @@ public class DbImportUtil {
                     p.getProperty("connection.password"));
             conn.setAutoCommit(false);
 
-            String sqlIQCareNumberStr = "select patient_identifier_type_id from patient_identifier_type where uuid='" + IQCARE_PERSON_PK + "'";
-            ResultSet rsIqCare = null;
-            try {
-                Statement sGetIQCareType = conn.createStatement();
-                rsIqCare = sGetIQCareType.executeQuery(sqlIQCareNumberStr);
-                if (rsIqCare.next()) {
-                    iqCarePkType = rsIqCare.getInt(1);
-                    rsIqCare.close();
-                }
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-
-            // get UPN encounter type
-            String sqlUpnStr = "select patient_identifier_type_id from patient_identifier_type where uuid='" + UNIQUE_PATIENT_NUMBER + "'";
-            ResultSet rs1 = null;
-            try {
-                Statement sGetUPNType = conn.createStatement();
-                rs1 = sGetUPNType.executeQuery(sqlUpnStr);
-                if (rs1.next()) {
-                    upnIdType = rs1.getInt(1);
-                    rs1.close();
-                }
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-
-            // get National ID encounter type
-            String sqlNatIdStr = "select patient_identifier_type_id from patient_identifier_type where uuid='" + NATIONAL_ID + "'";
-            ResultSet rs2 = null;
-            try {
-                Statement sGetNatIdType = conn.createStatement();
-                rs2 = sGetNatIdType.executeQuery(sqlNatIdStr);
-                if (rs2.next()) {
-                    natIdIdType = rs2.getInt(1);
-                    rs2.close();
-                }
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-
+            MigrationMetadata metadata = MigrationMetadata.get();
+            iqCarePkType = metadata.getIdentifierTypeId(IQCARE_PERSON_PK);
+            upnIdType = metadata.getIdentifierTypeId(UNIQUE_PATIENT_NUMBER);
+            natIdIdType = metadata.getIdentifierTypeId(NATIONAL_ID);
 
             s = conn.createStatement();
 
@@ -875,6 +911,7 @@ public class DbImportUtil {
 
                 recordCount++;
                 DbImportUtil.updateMigrationProgressMapProperty("Demographics", "processedCount", String.valueOf(recordCount));
+                throttle.acquireRow(conn);
 
                 /*if (recordCount == 1) {
                     System.out.println(new Date().toString() + ":: Completed processing record 1 ::  in demographics dataset");
@@ -969,39 +1006,14 @@ public class DbImportUtil {
     protected static List<GroupedObservations> getGroupedDatasetConfigForTemplate(String fileName) {
         File configFile = OpenmrsUtil.getDirectoryInApplicationDataDirectory(Context.getAdministrationService().getGlobalProperty(GP_MIGRATION_CONFIG_DIR));
         String fullFilePath = configFile.getPath() + File.separator + fileName;
-        JSONParser jsonParser = new JSONParser();
         try {
             //Read JSON file
             FileReader reader = new FileReader(fullFilePath);
-            Object obj = jsonParser.parse(reader);
-
-            JSONArray obsGrp = (JSONArray) obj;
-            List<GroupedObservations> grpObsForDataset = new ArrayList<GroupedObservations>();
-            for (int i = 0; i < obsGrp.size(); i++) {
-                JSONObject o = (JSONObject) obsGrp.get(i);
-                Long groupingConcept = (Long) (o.get("groupingConcept"));// this value is read as Long
-                JSONArray dsColumns = (JSONArray) o.get("datasetColumns"); // get col definitions
-
-                Map<String, DatasetColumn> datasetColumns = new HashMap<String, DatasetColumn>();
-
-                for (int j = 0; j < dsColumns.size(); j++) {
-                    JSONObject colDef = (JSONObject) dsColumns.get(j);
-                    String colName = (String) colDef.get("name");
-                    Long colConceptQuestion = (Long) colDef.get("questionConcept");
-                    String colConceptDataType = (String) colDef.get("dataType");
-                    DatasetColumn cl = new DatasetColumn(colConceptQuestion.intValue(), colConceptDataType);
-                    // key is column name, value is DatasetColumn object
-                    datasetColumns.put(colName, new DatasetColumn(colConceptQuestion.intValue(), colConceptDataType));
-                }
-
-                GroupedObservations gObs = new GroupedObservations();
-                gObs.setGroupConceptId(groupingConcept.intValue());
-                gObs.setDatasetColumns(datasetColumns);
-                grpObsForDataset.add(gObs);
-
+            try {
+                return parseGroupedDatasetConfig(reader);
+            } finally {
+                reader.close();
             }
-            return grpObsForDataset;
-
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (IOException e) {
@@ -1013,10 +1025,40 @@ public class DbImportUtil {
     }
 
     /**
-     *
-     * @return a LinkedHashMap <dataset, GroupedObsConfig>
-     *     This is an ordered map
+     * Parses a grouped observations config: an array of groups, each with a groupingConcept and the
+     * datasetColumns (name, questionConcept, dataType) which make up the group.
      */
+    public static List<GroupedObservations> parseGroupedDatasetConfig(Reader reader) throws IOException, ParseException {
+        JSONParser jsonParser = new JSONParser();
+        Object obj = jsonParser.parse(reader);
+
+        JSONArray obsGrp = (JSONArray) obj;
+        List<GroupedObservations> grpObsForDataset = new ArrayList<GroupedObservations>();
+        for (int i = 0; i < obsGrp.size(); i++) {
+            JSONObject o = (JSONObject) obsGrp.get(i);
+            Long groupingConcept = (Long) (o.get("groupingConcept"));// this value is read as Long
+            JSONArray dsColumns = (JSONArray) o.get("datasetColumns"); // get col definitions
+
+            Map<String, DatasetColumn> datasetColumns = new HashMap<String, DatasetColumn>();
+
+            for (int j = 0; j < dsColumns.size(); j++) {
+                JSONObject colDef = (JSONObject) dsColumns.get(j);
+                String colName = (String) colDef.get("name");
+                Long colConceptQuestion = (Long) colDef.get("questionConcept");
+                String colConceptDataType = (String) colDef.get("dataType");
+                // key is column name, value is DatasetColumn object
+                datasetColumns.put(colName, new DatasetColumn(colConceptQuestion.intValue(), colConceptDataType));
+            }
+
+            GroupedObservations gObs = new GroupedObservations();
+            gObs.setGroupConceptId(groupingConcept.intValue());
+            gObs.setDatasetColumns(datasetColumns);
+            grpObsForDataset.add(gObs);
+
+        }
+        return grpObsForDataset;
+    }
+
     public static Map<String, String> getProcessingOrderAndGroupedObsConfig() {
         File configFile = OpenmrsUtil.getDirectoryInApplicationDataDirectory(Context.getAdministrationService().getGlobalProperty(GP_MIGRATION_CONFIG_DIR));
         String fullFilePath = configFile.getPath() + File.separator + "TemplateDatasetMap.json";
@@ -1078,6 +1120,7 @@ public class DbImportUtil {
             }
 
             Connection conn = null;
+            ImportThrottle throttle = ImportThrottle.forDataset("Labs");
             Statement s = null;
 
             try {
@@ -1172,6 +1215,7 @@ public class DbImportUtil {
 
                     recordCount++;
                     DbImportUtil.updateMigrationProgressMapProperty("Labs", "processedCount", String.valueOf(recordCount));
+                    throttle.acquireRow(conn);
 
                 }
 
@@ -1220,6 +1264,7 @@ public class DbImportUtil {
         try {
 
             Connection conn = null;
+            ImportThrottle throttle = ImportThrottle.forDataset("Lab (VL and CD4)");
             Statement s = null;
 
             try {
@@ -1239,8 +1284,7 @@ public class DbImportUtil {
                 String query = "select * from :migrationDatabase.:labDataset";
                 query = query.replace(":migrationDatabase", migrationDatabase);
                 query = query.replace(":labDataset", "tr_vital_labs");
-                LabOrderDetails.setLabOrderDetails();
-                LabOrderDetails labMetadata = LabOrderDetails.labOrderDetails;
+                LabOrderDetails labMetadata = LabOrderDetails.resolve(MigrationMetadata.get());
 
 
                 ResultSet rs = s.executeQuery(query);
@@ -1418,6 +1462,7 @@ public class DbImportUtil {
 
                     recordCount++;
                     DbImportUtil.updateMigrationProgressMapProperty("Lab (VL and CD4)", "processedCount", String.valueOf(recordCount));
+                    throttle.acquireRow(conn);
 
                 }
 
@@ -1495,6 +1540,7 @@ public class DbImportUtil {
         try {
 
             Connection conn = null;
+            ImportThrottle throttle = ImportThrottle.forDataset("Users");
             Statement s = null;
 
             try {
@@ -1607,6 +1653,7 @@ public class DbImportUtil {
                     }
                     recordCount++;
                     DbImportUtil.updateMigrationProgressMapProperty("Users", "processedCount", String.valueOf(recordCount));
+                    throttle.acquireRow(conn);
                 }
 
             } catch (IllegalAccessException e) {
@@ -1656,6 +1703,7 @@ public class DbImportUtil {
         try {
 
             Connection conn = null;
+            ImportThrottle throttle = ImportThrottle.forDataset("Patient Relationships");
             Statement s = null;
 
             try {
@@ -1684,8 +1732,7 @@ public class DbImportUtil {
                         "values (now(), uuid(), ?, ?, ?, ?);";
 
                 PreparedStatement addRelationshipDetails = conn.prepareStatement(addRelationshipQuery, Statement.RETURN_GENERATED_KEYS);
-                RelationshipDetails.setRelationshipDetails();
-                RelationshipDetails relMetadata = RelationshipDetails.relationshipDetails;
+                RelationshipDetails relMetadata = RelationshipDetails.resolve(MigrationMetadata.get());
 
                 while (rs.next()) {
                     Integer personA = ((Long) rs.getLong("Person_a_person_id")).intValue();
@@ -1724,6 +1771,7 @@ public class DbImportUtil {
                     }
                     recordCount++;
                     DbImportUtil.updateMigrationProgressMapProperty("Patient Relationships", "processedCount", String.valueOf(recordCount));
+                    throttle.acquireRow(conn);
                 }
 
             } catch (IllegalAccessException e) {
@@ -1821,7 +1869,7 @@ public class DbImportUtil {
                 countQuery = countQuery.replace(":tableName", entry.getKey());
                 ResultSet countRs = s.executeQuery(countQuery);
                 countRs.next();
-                SpreadsheetImportTemplate template = spreadsheetImportService.getTemplateById(entry.getValue());
+                SpreadsheetImportTemplate template = spreadsheetImportService.getTemplateForImport(entry.getValue());
                 DbImportUtil.updateMigrationProgressMapProperty(template.getName(), "totalRowCount", String.valueOf(countRs.getInt("rowCount")));
                 DbImportUtil.updateMigrationProgressMapProperty(template.getName(), "processedCount", String.valueOf(0));
 
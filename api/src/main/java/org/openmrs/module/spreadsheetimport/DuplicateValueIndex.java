@@ -0,0 +1,131 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers whether a value already exists in a column marked disallow duplicate value, without a
+ * query per row. The existing values of a column are loaded once, as 64 bit hashes, the first time
+ * the column is checked; values are added as rows are imported, so duplicates within an import are
+ * found as well. Only a hash hit is confirmed with a query, which keeps the index small and makes
+ * it safe to add values of rows which are later rolled back. The hashes are kept in a
+ * {@link ValueHashTable} without values.
+ * <p>
+ * Values are compared trimmed and lower cased, like MySQL's default collations do. Call
+ * {@link #invalidate()} at the start of an import so that values written by others are seen.
+ */
+public class DuplicateValueIndex {
+
+    protected static final Log log = LogFactory.getLog(DuplicateValueIndex.class);
+
+    private static final Map<String, ValueHashTable> indexes = new ConcurrentHashMap<String, ValueHashTable>();
+
+    /**
+     * Checks whether a value is already present in a column
+     *
+     * @param conn connection to check with, used to load the column on first use
+     * @param tableName table of the column
+     * @param columnName column marked disallow duplicate value
+     * @param value the value as rendered for SQL: numbers as they are, text quoted
+     * @return true if the column already holds the value
+     */
+    public static boolean isDuplicate(Connection conn, String tableName, String columnName, String value) throws SQLException {
+        String text = ValueHashTable.unquote(value);
+        if (!getIndex(conn, tableName, columnName).contains(ValueHashTable.normalize(text))) {
+            return false;
+        }
+
+        // confirm, the hash may collide or belong to a row which was rolled back
+        String sql = "select 1 from " + tableName + " where " + columnName + " = ? limit 1";
+        if (log.isDebugEnabled()) {
+            log.debug(sql + " [" + text + "]");
+        }
+        PreparedStatement ps = conn.prepareStatement(sql);
+        try {
+            ps.setString(1, text);
+            ResultSet rs = ps.executeQuery();
+            boolean found = rs.next();
+            rs.close();
+            return found;
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * Adds a value which has just been imported into a column
+     */
+    public static void add(Connection conn, String tableName, String columnName, String value) throws SQLException {
+        getIndex(conn, tableName, columnName).put(ValueHashTable.normalize(ValueHashTable.unquote(value)), 0, 0);
+    }
+
+    /**
+     * Discards the loaded columns; they are reloaded on next use
+     */
+    public static void invalidate() {
+        indexes.clear();
+    }
+
+    private static ValueHashTable getIndex(Connection conn, String tableName, String columnName) throws SQLException {
+        String key = tableName + "." + columnName;
+        ValueHashTable index = indexes.get(key);
+        if (index == null) {
+            synchronized (indexes) {
+                index = indexes.get(key);
+                if (index == null) {
+                    index = load(conn, tableName, columnName);
+                    indexes.put(key, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    private static ValueHashTable load(Connection conn, String tableName, String columnName) throws SQLException {
+        long start = System.currentTimeMillis();
+        ValueHashTable index = new ValueHashTable(false);
+        Statement s = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            // stream the values rather than buffering the whole column in the MySQL driver
+            try {
+                s.setFetchSize(Integer.MIN_VALUE);
+            } catch (SQLException e) {
+                log.debug("Driver does not stream result sets: " + e.getMessage());
+            }
+            ResultSet rs = s.executeQuery("select " + columnName + " from " + tableName + " where " + columnName
+                    + " is not null");
+            while (rs.next()) {
+                index.put(ValueHashTable.normalize(rs.getString(1)), 0, 0);
+            }
+            rs.close();
+        } finally {
+            s.close();
+        }
+        if (log.isInfoEnabled()) {
+            log.info("Loaded " + index.size() + " values of " + tableName + "." + columnName + " for duplicate checks in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        return index;
+    }
+}
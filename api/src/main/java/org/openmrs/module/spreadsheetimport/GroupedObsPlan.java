@@ -0,0 +1,248 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.validator.GenericTypeValidator;
+import org.apache.commons.validator.GenericValidator;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The grouped observations of a dataset compiled against its result set. Every dataset column is
+ * resolved once to its position in the result set and to the obs value column it is written to, so
+ * reading a row neither looks columns up by name nor touches the configuration.
+ * <p>
+ * A plan is immutable and may be shared by threads; the values of a row are kept in a {@link Row},
+ * one per reading thread, which is cleared for every row.
+ */
+public class GroupedObsPlan {
+
+    /**
+     * Obs value columns, indexed by the targets of the plan
+     */
+    public static final String[] VALUE_COLUMNS = {"value_coded", "value_text", "value_datetime", "value_numeric"};
+
+    /**
+     * Target of dataset columns whose data type is not an obs value column
+     */
+    public static final int NO_TARGET = -1;
+
+    private static final int VALUE_DATETIME = 2;
+
+    private final int[] groupConceptIds;
+
+    // columns of group g are firstColumn[g] to firstColumn[g + 1] - 1
+    private final int[] firstColumn;
+
+    private final int[] resultSetIndexes;
+
+    private final int[] questionConceptIds;
+
+    private final int[] targets;
+
+    /**
+     * Values of the current row, one slot per compiled column
+     */
+    public static class Row {
+
+        private final String[] values;
+
+        private final boolean[] groupHasData;
+
+        private Row(int columns, int groups) {
+            values = new String[columns];
+            groupHasData = new boolean[groups];
+        }
+
+        /**
+         * @param column index of the column in the plan
+         * @return the value to bind, or null if the column is blank in this row
+         */
+        public String getValue(int column) {
+            return values[column];
+        }
+
+        public boolean hasData(int group) {
+            return groupHasData[group];
+        }
+    }
+
+    private GroupedObsPlan(int[] groupConceptIds, int[] firstColumn, int[] resultSetIndexes, int[] questionConceptIds,
+                           int[] targets) {
+        this.groupConceptIds = groupConceptIds;
+        this.firstColumn = firstColumn;
+        this.resultSetIndexes = resultSetIndexes;
+        this.questionConceptIds = questionConceptIds;
+        this.targets = targets;
+    }
+
+    /**
+     * Compiles the grouped observations configured for a dataset
+     *
+     * @param groupedObservations as read by {@link DbImportUtil#getGroupedDatasetConfigForTemplate(String)}
+     * @param metaData meta data of the dataset query
+     * @throws SQLException if a configured column is not returned by the query
+     */
+    public static GroupedObsPlan compile(List<GroupedObservations> groupedObservations, ResultSetMetaData metaData) throws SQLException {
+        Map<String, Integer> indexByLabel = new HashMap<String, Integer>();
+        for (int i = metaData.getColumnCount(); i >= 1; i--) {
+            // the first of equally named columns wins, like ResultSet.findColumn
+            indexByLabel.put(metaData.getColumnLabel(i).toLowerCase(Locale.ENGLISH), i);
+        }
+
+        int[] groupConceptIds = new int[groupedObservations.size()];
+        int[] firstColumn = new int[groupedObservations.size() + 1];
+        List<Integer> resultSetIndexes = new ArrayList<Integer>();
+        List<Integer> questionConceptIds = new ArrayList<Integer>();
+        List<Integer> targets = new ArrayList<Integer>();
+        for (int g = 0; g < groupedObservations.size(); g++) {
+            GroupedObservations group = groupedObservations.get(g);
+            groupConceptIds[g] = group.getGroupConceptId();
+            firstColumn[g] = resultSetIndexes.size();
+            for (Map.Entry<String, DatasetColumn> e : group.getDatasetColumns().entrySet()) {
+                Integer index = indexByLabel.get(e.getKey().toLowerCase(Locale.ENGLISH));
+                if (index == null) {
+                    throw new SQLException("Grouped observation column " + e.getKey() + " is not in the dataset");
+                }
+                resultSetIndexes.add(index);
+                questionConceptIds.add(e.getValue().getQuestionConceptId());
+                targets.add(targetOf(e.getValue().getQuestionConceptDatatype()));
+            }
+        }
+        firstColumn[groupedObservations.size()] = resultSetIndexes.size();
+        return new GroupedObsPlan(groupConceptIds, firstColumn, toArray(resultSetIndexes), toArray(questionConceptIds),
+                toArray(targets));
+    }
+
+    /**
+     * @param datatype data type of a dataset column, the name of an obs value column
+     * @return index of the value column in {@link #VALUE_COLUMNS}, or {@link #NO_TARGET}
+     */
+    public static int targetOf(String datatype) {
+        for (int i = 0; i < VALUE_COLUMNS.length; i++) {
+            if (VALUE_COLUMNS[i].equals(datatype)) {
+                return i;
+            }
+        }
+        return NO_TARGET;
+    }
+
+    public Row newRow() {
+        return new Row(resultSetIndexes.length, groupConceptIds.length);
+    }
+
+    /**
+     * Reads the grouped observation values of the current row of a dataset. Values are kept as bare
+     * strings to bind; only dates in the short format of the locale are rewritten, as timestamps.
+     *
+     * @param rs result set positioned on the row to read
+     * @param row receives the values, replacing those of the previous row
+     * @param locale locale used to recognise dates
+     */
+    public void extract(ResultSet rs, Row row, Locale locale) throws SQLException {
+        for (int g = 0; g < groupConceptIds.length; g++) {
+            boolean groupHasData = false;
+            for (int c = firstColumn[g]; c < firstColumn[g + 1]; c++) {
+                groupHasData |= store(row, c, rs.getString(resultSetIndexes[c]), locale);
+            }
+            row.groupHasData[g] = groupHasData;
+        }
+    }
+
+    /**
+     * Reads the grouped observation values of a dataset row read ahead of its import
+     *
+     * @param values values of the row as read with ResultSet.getString, value of result set column i
+     *               at index i - 1
+     * @see #extract(ResultSet, Row, Locale)
+     */
+    public void extract(String[] values, Row row, Locale locale) {
+        for (int g = 0; g < groupConceptIds.length; g++) {
+            boolean groupHasData = false;
+            for (int c = firstColumn[g]; c < firstColumn[g + 1]; c++) {
+                groupHasData |= store(row, c, values[resultSetIndexes[c] - 1], locale);
+            }
+            row.groupHasData[g] = groupHasData;
+        }
+    }
+
+    /**
+     * @return true if the value is not blank
+     */
+    private boolean store(Row row, int c, String value, Locale locale) {
+        if (StringUtils.isBlank(value)) {
+            row.values[c] = null;
+            return false;
+        }
+        if (targets[c] == VALUE_DATETIME && GenericValidator.isDate(value, locale)) {
+            Date date = GenericTypeValidator.formatDate(value, locale);
+            if (date != null) {
+                value = new Timestamp(date.getTime()).toString();
+            }
+        }
+        row.values[c] = value;
+        return true;
+    }
+
+    public int getGroupCount() {
+        return groupConceptIds.length;
+    }
+
+    public int getGroupConceptId(int group) {
+        return groupConceptIds[group];
+    }
+
+    /**
+     * @return index of the first column of a group; the columns of a group are contiguous
+     */
+    public int getFirstColumn(int group) {
+        return firstColumn[group];
+    }
+
+    /**
+     * @return index after the last column of a group
+     */
+    public int getEndColumn(int group) {
+        return firstColumn[group + 1];
+    }
+
+    public int getQuestionConceptId(int column) {
+        return questionConceptIds[column];
+    }
+
+    /**
+     * @return index in {@link #VALUE_COLUMNS} of the column's obs value, or {@link #NO_TARGET}
+     */
+    public int getTarget(int column) {
+        return targets[column];
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Buffers grouped observations and writes them in two batches: first the obs group parents, then
+ * all their members. Parents get their uuid here, so when the driver does not return the keys of a
+ * batch the obs_group_id of the members is read back by uuid.
+ */
+public class GroupedObsWriter {
+
+    private static final String PARENT_SQL = "insert into obs "
+            + "(date_created, person_id, encounter_id, obs_datetime, creator, uuid, concept_id) "
+            + "values (now(), ?, ?, ?, ?, ?, ?)";
+
+    private static final String MEMBER_SQL = "insert into obs "
+            + "(date_created, person_id, encounter_id, obs_datetime, creator, uuid, concept_id, obs_group_id, "
+            + "value_coded, value_text, value_datetime, value_numeric) "
+            + "values (now(), ?, ?, ?, ?, uuid(), ?, ?, ?, ?, ?, ?)";
+
+    private static final int UUID_LOOKUP_CHUNK = 500;
+
+    private final List<Group> groups = new ArrayList<Group>();
+
+    private static class Group {
+
+        final String patientId;
+
+        final String encounterId;
+
+        final String obsDatetime;
+
+        final Integer creator;
+
+        final Integer conceptId;
+
+        final String uuid = UUID.randomUUID().toString();
+
+        final List<Member> members = new ArrayList<Member>();
+
+        Group(String patientId, String encounterId, String obsDatetime, Integer creator, Integer conceptId) {
+            this.patientId = patientId;
+            this.encounterId = encounterId;
+            this.obsDatetime = obsDatetime;
+            this.creator = creator;
+            this.conceptId = conceptId;
+        }
+    }
+
+    private static class Member {
+
+        final Integer conceptId;
+
+        // index in GroupedObsPlan.VALUE_COLUMNS
+        final int target;
+
+        final String value;
+
+        Member(Integer conceptId, int target, String value) {
+            this.conceptId = conceptId;
+            this.target = target;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Buffers the groups with data of an encounter
+     *
+     * @param patientId person of the observations
+     * @param encounterId encounter the observations belong to
+     * @param obsDatetime date of the observations
+     * @param creator user id
+     * @param plan grouped observations of the dataset
+     * @param row values of the current row
+     */
+    public void add(String patientId, String encounterId, String obsDatetime, Integer creator, GroupedObsPlan plan,
+                    GroupedObsPlan.Row row) {
+        for (int g = 0; g < plan.getGroupCount(); g++) {
+            if (!row.hasData(g)) {
+                continue;
+            }
+            Group group = new Group(patientId, encounterId, obsDatetime, creator, plan.getGroupConceptId(g));
+            for (int c = plan.getFirstColumn(g); c < plan.getEndColumn(g); c++) {
+                if (row.getValue(c) != null) {
+                    group.members.add(new Member(plan.getQuestionConceptId(c), plan.getTarget(c), row.getValue(c)));
+                }
+            }
+            groups.add(group);
+        }
+    }
+
+    /**
+     * @return number of buffered groups
+     */
+    public int size() {
+        return groups.size();
+    }
+
+    /**
+     * Writes the buffered groups, using the caller's transaction, and empties the buffer
+     */
+    public void flush(Connection conn) throws SQLException {
+        if (groups.isEmpty()) {
+            return;
+        }
+        try {
+            List<String> parentIds = insertParents(conn);
+            insertMembers(conn, parentIds);
+        } finally {
+            groups.clear();
+        }
+    }
+
+    private List<String> insertParents(Connection conn) throws SQLException {
+        List<String> parentIds = new ArrayList<String>(groups.size());
+        PreparedStatement ps = conn.prepareStatement(PARENT_SQL, Statement.RETURN_GENERATED_KEYS);
+        try {
+            for (Group group : groups) {
+                ps.setString(1, group.patientId);
+                ps.setString(2, group.encounterId);
+                ps.setString(3, group.obsDatetime);
+                ps.setObject(4, group.creator);
+                ps.setString(5, group.uuid);
+                ps.setObject(6, group.conceptId);
+                ps.addBatch();
+            }
+            long t = System.nanoTime();
+            ps.executeBatch();
+            ImportMetrics.stop(ImportMetrics.EXECUTE, "obs", t);
+            ImportMetrics.add(ImportMetrics.STATEMENTS, "obs", groups.size());
+
+            t = System.nanoTime();
+            ResultSet keys = ps.getGeneratedKeys();
+            while (keys.next()) {
+                parentIds.add(keys.getString(1));
+            }
+            keys.close();
+            if (parentIds.size() != groups.size()) {
+                parentIds = selectParentIdsByUuid(conn);
+            }
+            ImportMetrics.stop(ImportMetrics.GENERATED_KEYS, "obs", t);
+        } finally {
+            ps.close();
+        }
+        return parentIds;
+    }
+
+    private List<String> selectParentIdsByUuid(Connection conn) throws SQLException {
+        Map<String, String> idByUuid = new HashMap<String, String>();
+        for (int start = 0; start < groups.size(); start += UUID_LOOKUP_CHUNK) {
+            int end = Math.min(start + UUID_LOOKUP_CHUNK, groups.size());
+            StringBuilder sql = new StringBuilder("select uuid, obs_id from obs where uuid in (");
+            for (int i = start; i < end; i++) {
+                sql.append(i == start ? "?" : ",?");
+            }
+            PreparedStatement ps = conn.prepareStatement(sql.append(")").toString());
+            try {
+                for (int i = start; i < end; i++) {
+                    ps.setString(i - start + 1, groups.get(i).uuid);
+                }
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    idByUuid.put(rs.getString(1), rs.getString(2));
+                }
+                rs.close();
+            } finally {
+                ps.close();
+            }
+        }
+
+        List<String> parentIds = new ArrayList<String>(groups.size());
+        for (Group group : groups) {
+            String id = idByUuid.get(group.uuid);
+            if (id == null) {
+                throw new SQLException("obs group " + group.uuid + " was not inserted");
+            }
+            parentIds.add(id);
+        }
+        return parentIds;
+    }
+
+    private void insertMembers(Connection conn, List<String> parentIds) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(MEMBER_SQL);
+        int count = 0;
+        try {
+            for (int i = 0; i < groups.size(); i++) {
+                Group group = groups.get(i);
+                for (Member member : group.members) {
+                    ps.setString(1, group.patientId);
+                    ps.setString(2, group.encounterId);
+                    ps.setString(3, group.obsDatetime);
+                    ps.setObject(4, group.creator);
+                    ps.setObject(5, member.conceptId);
+                    ps.setString(6, parentIds.get(i));
+                    for (int v = 0; v < GroupedObsPlan.VALUE_COLUMNS.length; v++) {
+                        if (v == member.target) {
+                            ps.setString(7 + v, member.value);
+                        } else {
+                            ps.setNull(7 + v, Types.VARCHAR);
+                        }
+                    }
+                    ps.addBatch();
+                    count++;
+                }
+            }
+            if (count > 0) {
+                long t = System.nanoTime();
+                ps.executeBatch();
+                ImportMetrics.stop(ImportMetrics.EXECUTE, "obs", t);
+                ImportMetrics.add(ImportMetrics.STATEMENTS, "obs", count);
+            }
+        } finally {
+            ps.close();
+        }
+    }
+}
@@ -11,7 +11,6 @@ import java.util.Map;
 public class GroupedObservations {
     private Integer groupConceptId;
     private Map<String, DatasetColumn> datasetColumns = new HashMap<String, DatasetColumn>(); // key is column name, value is DatasetColumn object
-    private Boolean hasData;
 
     public GroupedObservations() {
     }
@@ -42,12 +41,4 @@ public class GroupedObservations {
             datasetColumns.put(key, column);
         }
     }
-
-    public Boolean getHasData() {
-        return hasData;
-    }
-
-    public void setHasData(Boolean hasData) {
-        this.hasData = hasData;
-    }
 }
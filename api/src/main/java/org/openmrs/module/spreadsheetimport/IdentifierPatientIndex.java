@@ -0,0 +1,184 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves patient identifiers of one identifier type to patient ids. All identifiers of the type
+ * are loaded on first use into a {@link ValueHashTable} of identifiers and patient ids, so patients
+ * which already existed are found without a query. A hash hit is only taken when the identifier
+ * itself matches, so identifiers sharing a hash are never mixed up.
+ * <p>
+ * Identifiers which are not in the index, or held by several patients, are looked up with a query.
+ * What the query finds is not added, since it may be a row of an import transaction which is later
+ * rolled back.
+ * <p>
+ * The identifier type defaults to the one configured in
+ * {@value MigrationRunner#GP_SOURCE_PRIMARY_IDENTIFIER_TYPE}. Call {@link #invalidate()} at the
+ * start of an import so that patients created by others are seen.
+ */
+public class IdentifierPatientIndex {
+
+    protected static final Log log = LogFactory.getLog(IdentifierPatientIndex.class);
+
+    // patient id of identifiers held by several patients, found by a query like missing ones
+    private static final int AMBIGUOUS = 0;
+
+    private static final Map<String, IdentifierPatientIndex> indexes = new ConcurrentHashMap<String, IdentifierPatientIndex>();
+
+    private static volatile String sourcePrimaryIdentifierTypeId;
+
+    private final String identifierTypeId;
+
+    // normalized identifiers, with their patient id
+    private final ValueHashTable patientIds = new ValueHashTable(true);
+
+    private IdentifierPatientIndex(String identifierTypeId) {
+        this.identifierTypeId = identifierTypeId;
+    }
+
+    /**
+     * Finds the patient with an identifier
+     *
+     * @param conn connection used to load the index and to look up misses
+     * @param identifierTypeId patient_identifier_type_id of the identifier, or null for the source
+     *            primary identifier type
+     * @param identifier the identifier, as rendered for SQL or not
+     * @return the patient id, or null if no patient has the identifier
+     */
+    public static String getPatientId(Connection conn, String identifierTypeId, String identifier) throws SQLException {
+        if (identifierTypeId == null) {
+            if (sourcePrimaryIdentifierTypeId == null) {
+                sourcePrimaryIdentifierTypeId = getSourcePrimaryIdentifierTypeId(conn);
+            }
+            identifierTypeId = sourcePrimaryIdentifierTypeId;
+            if (identifierTypeId == null) {
+                return null;
+            }
+        }
+        String value = ValueHashTable.unquote(identifier);
+        int patientId = getIndex(conn, identifierTypeId).find(value);
+        if (patientId > 0) {
+            return String.valueOf(patientId);
+        }
+        return getIndex(conn, identifierTypeId).lookUp(conn, value);
+    }
+
+    /**
+     * Discards the loaded indexes; they are reloaded on next use
+     */
+    public static void invalidate() {
+        indexes.clear();
+        sourcePrimaryIdentifierTypeId = null;
+    }
+
+    /**
+     * @return id of the identifier type configured as the source primary identifier type, or null if
+     *         it does not exist
+     */
+    public static String getSourcePrimaryIdentifierTypeId(Connection conn) throws SQLException {
+        String uuid = Context.getAdministrationService().getGlobalProperty(MigrationRunner.GP_SOURCE_PRIMARY_IDENTIFIER_TYPE);
+        if (StringUtils.isBlank(uuid)) {
+            return null;
+        }
+        PreparedStatement ps = conn.prepareStatement("select patient_identifier_type_id from patient_identifier_type where uuid = ?");
+        try {
+            ps.setString(1, uuid.trim());
+            ResultSet rs = ps.executeQuery();
+            String id = rs.next() ? rs.getString(1) : null;
+            rs.close();
+            return id;
+        } finally {
+            ps.close();
+        }
+    }
+
+    private static IdentifierPatientIndex getIndex(Connection conn, String identifierTypeId) throws SQLException {
+        IdentifierPatientIndex index = indexes.get(identifierTypeId);
+        if (index == null) {
+            synchronized (indexes) {
+                index = indexes.get(identifierTypeId);
+                if (index == null) {
+                    index = new IdentifierPatientIndex(identifierTypeId);
+                    index.load(conn);
+                    indexes.put(identifierTypeId, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    private void load(Connection conn) throws SQLException {
+        long start = System.currentTimeMillis();
+        PreparedStatement ps = conn.prepareStatement("select identifier, patient_id from patient_identifier where identifier_type = ?",
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            // stream the identifiers rather than buffering them all in the MySQL driver
+            try {
+                ps.setFetchSize(Integer.MIN_VALUE);
+            } catch (SQLException e) {
+                log.debug("Driver does not stream result sets: " + e.getMessage());
+            }
+            ps.setString(1, identifierTypeId);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                if (rs.getString(1) != null) {
+                    patientIds.put(ValueHashTable.normalize(rs.getString(1)), rs.getInt(2), AMBIGUOUS);
+                }
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        if (log.isInfoEnabled()) {
+            log.info("Loaded " + patientIds.size() + " identifiers of type " + identifierTypeId + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * @return the patient id, or 0 if the identifier is not indexed or held by several patients
+     */
+    private int find(String identifier) {
+        return patientIds.get(ValueHashTable.normalize(identifier), 0);
+    }
+
+    private String lookUp(Connection conn, String identifier) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("select patient_id from patient_identifier where identifier = ? and identifier_type = ?");
+        try {
+            ps.setString(1, identifier);
+            ps.setString(2, identifierTypeId);
+            ResultSet rs = ps.executeQuery();
+            String patientId = null;
+            if (rs.next()) {
+                patientId = rs.getString(1);
+            }
+            rs.close();
+            return patientId;
+        } finally {
+            ps.close();
+        }
+    }
+}
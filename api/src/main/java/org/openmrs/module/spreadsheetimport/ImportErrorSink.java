@@ -0,0 +1,301 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records rows which failed to import in the spreadsheetimport_import_error table. Errors are queued
+ * and written in batches by a background thread, so a failing row costs the import no more than a
+ * queue insert. The queue is bounded: when it is full, errors are only logged.
+ */
+public class ImportErrorSink {
+
+    protected static final Log log = LogFactory.getLog(ImportErrorSink.class);
+
+    /**
+     * Number of failed rows after which a dataset is abandoned; 0 stops at the first failed row and a
+     * negative value never stops
+     */
+    public static final String GP_ERROR_BUDGET = "spreadsheetimport.errorBudget";
+
+    public static final int DEFAULT_ERROR_BUDGET = 1000;
+
+    private static final int CAPACITY = 10000;
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final int MAX_TEXT_LENGTH = 4000;
+
+    private static final String INSERT = "insert into spreadsheetimport_import_error "
+            + "(dataset, source_key, row_number, table_name, sql_state, message, sql_statement, date_created) "
+            + "values (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static ImportErrorSink instance;
+
+    private final BlockingQueue<ImportError> queue = new ArrayBlockingQueue<ImportError>(CAPACITY);
+
+    // queued or being written
+    private final AtomicLong pending = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    /**
+     * A row which could not be imported
+     */
+    public static class ImportError {
+
+        private final String dataset;
+
+        private final String sourceKey;
+
+        private final int rowNumber;
+
+        private final String tableName;
+
+        private final String sqlState;
+
+        private final String message;
+
+        private final String sqlStatement;
+
+        private final Timestamp dateCreated = new Timestamp(System.currentTimeMillis());
+
+        public ImportError(String dataset, String sourceKey, int rowNumber, String tableName, String sqlState,
+                           String message, String sqlStatement) {
+            this.dataset = dataset;
+            this.sourceKey = sourceKey;
+            this.rowNumber = rowNumber;
+            this.tableName = tableName;
+            this.sqlState = sqlState;
+            this.message = message;
+            this.sqlStatement = sqlStatement;
+        }
+
+        /**
+         * Describes the exception thrown while importing a row
+         *
+         * @param dataset dataset or template name
+         * @param sourceKey identifier of the row in the source, e.g. the Person_Id
+         * @param rowNumber 1 based position of the row in the dataset
+         * @param e the exception
+         */
+        public static ImportError of(String dataset, String sourceKey, int rowNumber, Exception e) {
+            if (e instanceof SpreadsheetImportSQLSyntaxException) {
+                SpreadsheetImportSQLSyntaxException se = (SpreadsheetImportSQLSyntaxException) e;
+                return new ImportError(dataset, sourceKey, rowNumber, se.getTableName(), se.getSqlErrorState(),
+                        se.getSqlErrorMessage(), se.getSqlStatement());
+            }
+            if (e instanceof SpreadsheetImportDuplicateValueException) {
+                SpreadsheetImportDuplicateValueException de = (SpreadsheetImportDuplicateValueException) e;
+                return new ImportError(dataset, sourceKey, rowNumber, de.getColumn().getTableName(), null,
+                        "duplicate value " + de.getValue() + " for column " + de.getColumn().getName(), null);
+            }
+            String sqlState = e instanceof SQLException ? ((SQLException) e).getSQLState() : null;
+            return new ImportError(dataset, sourceKey, rowNumber, null, sqlState, e.toString(), null);
+        }
+
+        public String getDataset() {
+            return dataset;
+        }
+
+        public String getSourceKey() {
+            return sourceKey;
+        }
+
+        public int getRowNumber() {
+            return rowNumber;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public String getSqlState() {
+            return sqlState;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getSqlStatement() {
+            return sqlStatement;
+        }
+
+        public String toString() {
+            return dataset + " row " + rowNumber + " (" + sourceKey + "), table " + tableName + ", SQL state " + sqlState
+                    + ": " + message;
+        }
+    }
+
+    private ImportErrorSink() {
+        writer = new Thread(new Runnable() {
+
+            public void run() {
+                writeQueuedErrors();
+            }
+        }, "spreadsheetimport-error-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return the running sink, started on first use
+     */
+    public static synchronized ImportErrorSink getInstance() {
+        if (instance == null) {
+            instance = new ImportErrorSink();
+        }
+        return instance;
+    }
+
+    /**
+     * Writes the queued errors and stops the writer thread
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.flush(TimeUnit.SECONDS.toMillis(30));
+            instance.running = false;
+            instance.writer.interrupt();
+            instance = null;
+        }
+    }
+
+    /**
+     * @return the error budget configured in {@value #GP_ERROR_BUDGET}
+     */
+    public static int getErrorBudget() {
+        String value = Context.getAdministrationService().getGlobalProperty(GP_ERROR_BUDGET);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + GP_ERROR_BUDGET + ": " + value);
+            }
+        }
+        return DEFAULT_ERROR_BUDGET;
+    }
+
+    /**
+     * Queues an error without blocking
+     *
+     * @return false if the queue was full and the error was only logged
+     */
+    public boolean record(ImportError error) {
+        pending.incrementAndGet();
+        if (queue.offer(error)) {
+            return true;
+        }
+        pending.decrementAndGet();
+        dropped.incrementAndGet();
+        log.warn("Import error queue full, not recorded: " + error);
+        return false;
+    }
+
+    /**
+     * Waits until the queued errors are written
+     *
+     * @param timeoutMillis maximum time to wait
+     * @return true if everything was written in time
+     */
+    public boolean flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return pending.get() == 0;
+    }
+
+    /**
+     * @return number of errors which were only logged because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void writeQueuedErrors() {
+        List<ImportError> batch = new ArrayList<ImportError>(BATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                ImportError first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                if (queue.isEmpty()) {
+                    break;
+                }
+            }
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+            try {
+                write(batch);
+            } catch (Exception e) {
+                log.error("Unable to record " + batch.size() + " import errors", e);
+                for (ImportError error : batch) {
+                    log.warn(error);
+                }
+            } finally {
+                pending.addAndGet(-batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<ImportError> batch) throws SQLException {
+        Connection conn = DatabaseBackend.openConnection();
+        try {
+            PreparedStatement ps = conn.prepareStatement(INSERT);
+            for (ImportError error : batch) {
+                ps.setString(1, error.getDataset());
+                ps.setString(2, error.getSourceKey());
+                ps.setInt(3, error.getRowNumber());
+                ps.setString(4, error.getTableName());
+                ps.setString(5, error.getSqlState());
+                ps.setString(6, StringUtils.abbreviate(error.getMessage(), MAX_TEXT_LENGTH));
+                ps.setString(7, StringUtils.abbreviate(error.getSqlStatement(), MAX_TEXT_LENGTH));
+                ps.setTimestamp(8, error.dateCreated);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            ps.close();
+        } finally {
+            conn.close();
+        }
+    }
+}
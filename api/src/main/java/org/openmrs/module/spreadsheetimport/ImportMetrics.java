@@ -0,0 +1,391 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timers and counters for the stages of a row import: reading the source, decoding values,
+ * validation, building SQL, executing it, fetching generated keys and committing. Every metric is
+ * kept per dataset and per table. The dataset is bound to the importing thread with
+ * {@link #setDataset(String)}; tables are passed by the instrumented code.
+ * <p>
+ * Metrics live for the lifetime of the module and are shown on the Import Metrics page and over JMX
+ * as {@value #OBJECT_NAME}.
+ */
+public class ImportMetrics {
+
+    protected static final Log log = LogFactory.getLog(ImportMetrics.class);
+
+    public static final String OBJECT_NAME = "org.openmrs.module.spreadsheetimport:type=ImportMetrics";
+
+    public static final String SOURCE_READ = "source.read";
+
+    public static final String VALUE_DECODE = "value.decode";
+
+    public static final String VALIDATION = "validation";
+
+    public static final String SQL_BUILD = "sql.build";
+
+    public static final String EXECUTE = "execute";
+
+    public static final String GENERATED_KEYS = "generatedKeys.fetch";
+
+    public static final String COMMIT = "commit";
+
+    public static final String ROWS_READ = "rows.read";
+
+    public static final String ROWS_IMPORTED = "rows.imported";
+
+    public static final String ROWS_SKIPPED = "rows.skipped";
+
+    public static final String ROWS_FAILED = "rows.failed";
+
+    public static final String STATEMENTS = "statements";
+
+    public static final String VISIT_CACHE_HITS = "visitCache.hits";
+
+    public static final String VISIT_CACHE_MISSES = "visitCache.misses";
+
+    /**
+     * Dataset or table of metrics which are not specific to one
+     */
+    public static final String ANY = "*";
+
+    private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+    private static final ThreadLocal<String> currentDataset = new ThreadLocal<String>();
+
+    private static final Comparator<Metric> BY_DATASET_TABLE_NAME = new Comparator<Metric>() {
+
+        public int compare(Metric a, Metric b) {
+            int result = a.getDataset().compareTo(b.getDataset());
+            if (result == 0) {
+                result = a.getTable().compareTo(b.getTable());
+            }
+            return result == 0 ? a.getName().compareTo(b.getName()) : result;
+        }
+    };
+
+    /**
+     * Identity shared by timers and counters
+     */
+    public abstract static class Metric {
+
+        private final String name;
+
+        private final String dataset;
+
+        private final String table;
+
+        Metric(String name, String dataset, String table) {
+            this.name = name;
+            this.dataset = dataset;
+            this.table = table;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDataset() {
+            return dataset;
+        }
+
+        public String getTable() {
+            return table;
+        }
+    }
+
+    /**
+     * Count, total and maximum of recorded durations, with a histogram of power of two microsecond
+     * buckets from which percentiles are estimated
+     */
+    public static class Timer extends Metric {
+
+        private static final int BUCKETS = 32;
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        Timer(String name, String dataset, String table) {
+            super(name, dataset, table);
+        }
+
+        public void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            // bucket i holds durations below 2^i microseconds
+            int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+            histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getTotalMillis() {
+            return totalNanos.get() / 1e6;
+        }
+
+        public double getMeanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        public double getP50Millis() {
+            return getPercentileMillis(0.5);
+        }
+
+        public double getP95Millis() {
+            return getPercentileMillis(0.95);
+        }
+
+        public double getP99Millis() {
+            return getPercentileMillis(0.99);
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return upper bound of the histogram bucket holding the quantile, capped at the maximum
+         */
+        public double getPercentileMillis(double quantile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank) {
+                    return Math.min((1L << i) / 1e3, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        public String toString() {
+            return String.format("%s %s %s count=%d total=%.1fms mean=%.3fms p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms",
+                    getDataset(), getTable(), getName(), getCount(), getTotalMillis(), getMeanMillis(), getP50Millis(),
+                    getP95Millis(), getP99Millis(), getMaxMillis());
+        }
+    }
+
+    public static class Counter extends Metric {
+
+        private final AtomicLong count = new AtomicLong();
+
+        Counter(String name, String dataset, String table) {
+            super(name, dataset, table);
+        }
+
+        public void add(long n) {
+            count.addAndGet(n);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public String toString() {
+            return getDataset() + " " + getTable() + " " + getName() + " count=" + getCount();
+        }
+    }
+
+    /**
+     * Binds the dataset the current thread imports, until it is restored
+     *
+     * @param dataset name of the dataset or template
+     * @return the dataset bound before, to pass to {@link #restoreDataset(String)}
+     */
+    public static String setDataset(String dataset) {
+        String previous = currentDataset.get();
+        currentDataset.set(dataset);
+        return previous;
+    }
+
+    public static void restoreDataset(String previous) {
+        if (previous == null) {
+            currentDataset.remove();
+        } else {
+            currentDataset.set(previous);
+        }
+    }
+
+    /**
+     * @return the dataset bound to the current thread, or null
+     */
+    public static String getDataset() {
+        return currentDataset.get();
+    }
+
+    /**
+     * Records the time since startNanos for the current dataset
+     *
+     * @param stage one of the stage constants
+     * @param table table the time was spent on, or null
+     * @param startNanos value of System.nanoTime() when the stage started
+     * @return the recorded duration in nanoseconds
+     */
+    public static long stop(String stage, String table, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        timer(stage, table).record(nanos);
+        return nanos;
+    }
+
+    public static void increment(String counter, String table) {
+        add(counter, table, 1);
+    }
+
+    public static void add(String counter, String table, long n) {
+        String dataset = dataset();
+        table = table == null ? ANY : table;
+        String key = key(counter, dataset, table);
+        Counter c = counters.get(key);
+        if (c == null) {
+            counters.putIfAbsent(key, new Counter(counter, dataset, table));
+            c = counters.get(key);
+        }
+        c.add(n);
+    }
+
+    /**
+     * @return the timer of a stage for the current dataset, created if missing
+     */
+    public static Timer timer(String stage, String table) {
+        String dataset = dataset();
+        table = table == null ? ANY : table;
+        String key = key(stage, dataset, table);
+        Timer timer = timers.get(key);
+        if (timer == null) {
+            timers.putIfAbsent(key, new Timer(stage, dataset, table));
+            timer = timers.get(key);
+        }
+        return timer;
+    }
+
+    /**
+     * @return all timers sorted by dataset, table and stage
+     */
+    public static List<Timer> getTimers() {
+        List<Timer> result = new ArrayList<Timer>(timers.values());
+        Collections.sort(result, BY_DATASET_TABLE_NAME);
+        return result;
+    }
+
+    /**
+     * @return all counters sorted by dataset, table and name
+     */
+    public static List<Counter> getCounters() {
+        List<Counter> result = new ArrayList<Counter>(counters.values());
+        Collections.sort(result, BY_DATASET_TABLE_NAME);
+        return result;
+    }
+
+    public static void reset() {
+        timers.clear();
+        counters.clear();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, replacing a registration left by an
+     * earlier start of the module
+     */
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(new MBeanImpl(), ImportMetricsMBean.class), name);
+        } catch (Exception e) {
+            log.warn("Unable to register import metrics with JMX", e);
+        }
+    }
+
+    public static void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            log.warn("Unable to unregister import metrics from JMX", e);
+        }
+    }
+
+    private static String dataset() {
+        String dataset = currentDataset.get();
+        return dataset == null ? ANY : dataset;
+    }
+
+    private static String key(String name, String dataset, String table) {
+        return dataset + '\u0000' + table + '\u0000' + name;
+    }
+
+    private static class MBeanImpl implements ImportMetricsMBean {
+
+        public String[] getTimers() {
+            List<String> result = new ArrayList<String>();
+            for (Timer timer : ImportMetrics.getTimers()) {
+                result.add(timer.toString());
+            }
+            return result.toArray(new String[result.size()]);
+        }
+
+        public String[] getCounters() {
+            List<String> result = new ArrayList<String>();
+            for (Counter counter : ImportMetrics.getCounters()) {
+                result.add(counter.toString());
+            }
+            return result.toArray(new String[result.size()]);
+        }
+
+        public void reset() {
+            ImportMetrics.reset();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the load a migration puts on the OpenMRS database, for runs next to a live instance. Rows
+ * and commits are taken from token buckets: one per dataset, limited by
+ * {@value #GP_DATASET_ROWS_PER_SECOND}, and one for the whole migration, limited by
+ * {@value #GP_ROWS_PER_SECOND} and {@value #GP_COMMITS_PER_SECOND}. A limit of 0, the default, does
+ * not throttle.
+ * <p>
+ * When {@value #GP_MAX_PROBE_MILLIS} is set, a probe query is timed on a connection of its own; while
+ * it is slower than that, the limits are halved, down to a sixteenth, and an unlimited migration is
+ * paused. They recover gradually once the probe is fast again.
+ * <p>
+ * Waits only happen between transactions, never while the import holds the locks of uncommitted
+ * rows: rows are taken before a row is started, or by {@link BulkLoadSession} once its chunk is
+ * committed, and the probe and commits are taken by {@link #afterCommit()}.
+ * <p>
+ * The global properties are read again, and the probe run, every {@value #REFRESH_MILLIS}
+ * milliseconds, so limits can be changed while a migration runs.
+ */
+public class ImportThrottle {
+
+    protected static final Log log = LogFactory.getLog(ImportThrottle.class);
+
+    public static final String GP_ROWS_PER_SECOND = "spreadsheetimport.throttle.rowsPerSecond";
+
+    public static final String GP_COMMITS_PER_SECOND = "spreadsheetimport.throttle.commitsPerSecond";
+
+    /**
+     * Limits of datasets, as name=rows per second pairs separated by commas; * names the default
+     */
+    public static final String GP_DATASET_ROWS_PER_SECOND = "spreadsheetimport.throttle.datasetRowsPerSecond";
+
+    public static final String GP_MAX_PROBE_MILLIS = "spreadsheetimport.throttle.maxProbeMillis";
+
+    public static final String GP_PROBE_QUERY = "spreadsheetimport.throttle.probeQuery";
+
+    public static final String DEFAULT_PROBE_QUERY = "select count(*) from encounter "
+            + "where encounter_id > (select coalesce(max(encounter_id), 0) - 100 from encounter)";
+
+    private static final long REFRESH_MILLIS = 5000;
+
+    private static final double MIN_BACKOFF = 1.0 / 16;
+
+    private static final long MAX_PAUSE_MILLIS = 30000;
+
+    private static final TokenBucket globalRows = new TokenBucket();
+
+    private static final TokenBucket globalCommits = new TokenBucket();
+
+    // shared by all datasets, the database is
+    private static volatile double backoff = 1;
+
+    private static volatile long nextGlobalRefresh;
+
+    private static volatile long nextProbe;
+
+    private static volatile long maxProbeNanos;
+
+    private static volatile String probeQuery;
+
+    // whether the dataset being imported has a limit of its own
+    private static volatile boolean datasetLimited;
+
+    private final String dataset;
+
+    private final TokenBucket rows = new TokenBucket();
+
+    private long nextRefresh;
+
+    /**
+     * A token bucket holding up to a second of tokens
+     */
+    static class TokenBucket {
+
+        private double perSecond;
+
+        private double tokens;
+
+        private long last = System.nanoTime();
+
+        synchronized void setRate(double perSecond) {
+            this.perSecond = perSecond;
+            tokens = Math.min(tokens, perSecond);
+        }
+
+        /**
+         * Takes tokens, which may be borrowed from the future
+         *
+         * @return nanoseconds to wait before using them
+         */
+        synchronized long take(double factor, int count) {
+            if (perSecond <= 0) {
+                return 0;
+            }
+            double rate = perSecond * factor;
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - last) * rate / TimeUnit.SECONDS.toNanos(1));
+            last = now;
+            tokens -= count;
+            return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+
+        synchronized boolean isLimited() {
+            return perSecond > 0;
+        }
+    }
+
+    private ImportThrottle(String dataset) {
+        this.dataset = dataset;
+    }
+
+    /**
+     * @param dataset name of the dataset or template, as used in {@value #GP_DATASET_ROWS_PER_SECOND}
+     * @return a throttle for the rows of one import of the dataset
+     */
+    public static ImportThrottle forDataset(String dataset) {
+        return new ImportThrottle(dataset);
+    }
+
+    /**
+     * Waits until the next row of the dataset may be imported. Must be called with no rows left
+     * uncommitted, since their locks would be held while waiting.
+     */
+    public void acquireRow() {
+        acquireRows(1);
+    }
+
+    /**
+     * Waits until the next rows of the dataset may be imported, e.g. by a set based statement, or
+     * until rows just committed together may be followed by others
+     *
+     * @param count number of rows
+     */
+    public void acquireRows(int count) {
+        try {
+            sleep(take(count));
+        } catch (InterruptedException e) {
+            // the migration is being stopped, let it go on to notice
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the next row of the dataset may be imported, for processors which import a whole
+     * dataset in one transaction. The rows imported so far are committed before waiting, or when the
+     * probe is due, so that their locks are not held meanwhile.
+     *
+     * @param conn connection the rows are imported with
+     */
+    public void acquireRow(Connection conn) throws SQLException {
+        long nanos = take(1);
+        if (nanos > 0 || (maxProbeNanos > 0 && System.nanoTime() >= nextProbe)) {
+            conn.commit();
+            afterCommit();
+        }
+        try {
+            sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes rows from the buckets, reading the limits again when due
+     *
+     * @return nanoseconds to wait before importing them
+     */
+    private long take(int count) {
+        long now = System.nanoTime();
+        if (now >= nextRefresh) {
+            rows.setRate(getDatasetRowsPerSecond());
+            datasetLimited = rows.isLimited();
+            refreshGlobal();
+            nextRefresh = now + TimeUnit.MILLISECONDS.toNanos(REFRESH_MILLIS);
+        }
+        double factor = backoff;
+        return Math.max(rows.take(factor, count), globalRows.take(factor, count));
+    }
+
+    /**
+     * Waits, once a transaction of the migration has been committed, until the next one may be
+     * started. While the probe is slow this is where an unlimited migration pauses.
+     */
+    public static void afterCommit() {
+        try {
+            refreshGlobal();
+            long now = System.nanoTime();
+            if (maxProbeNanos > 0 && now >= nextProbe) {
+                nextProbe = now + TimeUnit.MILLISECONDS.toNanos(REFRESH_MILLIS);
+                probe();
+            } else if (maxProbeNanos <= 0) {
+                backoff = 1;
+            }
+            sleep(globalCommits.take(backoff, 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void refreshGlobal() {
+        long now = System.nanoTime();
+        if (now >= nextGlobalRefresh) {
+            nextGlobalRefresh = now + TimeUnit.MILLISECONDS.toNanos(REFRESH_MILLIS);
+            globalRows.setRate(getDouble(GP_ROWS_PER_SECOND));
+            globalCommits.setRate(getDouble(GP_COMMITS_PER_SECOND));
+            maxProbeNanos = TimeUnit.MILLISECONDS.toNanos((long) getDouble(GP_MAX_PROBE_MILLIS));
+            probeQuery = StringUtils.defaultIfBlank(Context.getAdministrationService().getGlobalProperty(GP_PROBE_QUERY),
+                    DEFAULT_PROBE_QUERY);
+        }
+    }
+
+    /**
+     * Adjusts the limits to the time the probe takes, pausing while it is slow if there are no limits
+     * to scale down
+     */
+    private static void probe() throws InterruptedException {
+        boolean limited = globalRows.isLimited() || globalCommits.isLimited() || datasetLimited;
+        long probeNanos = runProbe();
+        while (probeNanos > maxProbeNanos) {
+            backoff = Math.max(MIN_BACKOFF, backoff / 2);
+            log.info("Probe took " + TimeUnit.NANOSECONDS.toMillis(probeNanos) + " ms, throttling the migration to "
+                    + backoff + " of its limits");
+            if (limited) {
+                return;
+            }
+            // nothing to scale down, wait for the database instead
+            sleep(Math.min(TimeUnit.MILLISECONDS.toNanos(MAX_PAUSE_MILLIS), (long) (TimeUnit.SECONDS.toNanos(1) / backoff)));
+            probeNanos = runProbe();
+        }
+        if (backoff < 1) {
+            backoff = Math.min(1, backoff * 1.25);
+        }
+    }
+
+    /**
+     * Times the probe query on a connection of its own, so that it neither joins nor waits for the
+     * import's transaction
+     *
+     * @return the time the probe query took, 0 if it failed
+     */
+    private static long runProbe() {
+        try {
+            Connection conn = DatabaseBackend.openConnection();
+            try {
+                long start = System.nanoTime();
+                Statement s = conn.createStatement();
+                try {
+                    s.executeQuery(probeQuery).close();
+                } finally {
+                    s.close();
+                }
+                return System.nanoTime() - start;
+            } finally {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            log.warn("Throttle probe failed, ignoring it: " + e.getMessage());
+            return 0;
+        }
+    }
+
+
+    private double getDatasetRowsPerSecond() {
+        String value = Context.getAdministrationService().getGlobalProperty(GP_DATASET_ROWS_PER_SECOND);
+        double defaultLimit = 0;
+        if (StringUtils.isNotBlank(value)) {
+            for (String pair : value.split(",")) {
+                String name = StringUtils.substringBefore(pair, "=").trim();
+                String limit = StringUtils.substringAfter(pair, "=").trim();
+                try {
+                    if (name.equalsIgnoreCase(dataset)) {
+                        return Double.parseDouble(limit);
+                    } else if ("*".equals(name)) {
+                        defaultLimit = Double.parseDouble(limit);
+                    }
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid limit in " + GP_DATASET_ROWS_PER_SECOND + ": " + pair);
+                }
+            }
+        }
+        return defaultLimit;
+    }
+
+    private static double getDouble(String property) {
+        String value = Context.getAdministrationService().getGlobalProperty(property);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + property + ": " + value);
+            }
+        }
+        return 0;
+    }
+
+    private static void sleep(long nanos) throws InterruptedException {
+        if (nanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+}
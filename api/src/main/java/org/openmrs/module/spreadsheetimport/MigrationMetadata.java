@@ -0,0 +1,242 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ids of the metadata the migration refers to by uuid: identifier, person attribute, encounter,
+ * order and relationship types, and care settings. All of them are resolved with a single query and
+ * kept as an immutable snapshot, shared by the processors and safe to read from any thread.
+ * <p>
+ * The snapshot is loaded on first use, warmed by the module activator, and reloaded at the start of
+ * every migration run with {@link #reload()}, since the metadata or
+ * {@value MigrationRunner#GP_SOURCE_PRIMARY_IDENTIFIER_TYPE} may have changed in between.
+ */
+public class MigrationMetadata {
+
+    protected static final Log log = LogFactory.getLog(MigrationMetadata.class);
+
+    public static final String UNIQUE_PATIENT_NUMBER = "05ee9cf4-7242-4a17-b4d4-00f707265c8a";
+
+    public static final String NATIONAL_ID = "49af6cdc-7968-4abb-bf46-de10d7f4859f";
+
+    public static final String IQCARE_PERSON_PK = "b3d6de9f-f215-4259-9805-8638c887e46b";
+
+    public static final String TELEPHONE_CONTACT = "b2c38640-2603-4629-aebd-3b54f33f1e3a";
+
+    public static final String EMAIL_ADDRESS = "b8d0b331-1d2d-4a9a-b741-1816f498bdb6";
+
+    public static final String ALTERNATE_PHONE_CONTACT = "94614350-84c8-41e0-ac29-86bc107069be";
+
+    public static final String NEAREST_HEALTH_CENTER = "27573398-4651-4ce5-89d8-abec5998165c";
+
+    private static final String IDENTIFIER_TYPE = "patient_identifier_type";
+
+    private static final String ATTRIBUTE_TYPE = "person_attribute_type";
+
+    private static final String ENCOUNTER_TYPE = "encounter_type";
+
+    private static final String ORDER_TYPE = "order_type";
+
+    private static final String CARE_SETTING = "care_setting";
+
+    private static final String RELATIONSHIP_TYPE = "relationship_type";
+
+    private static volatile MigrationMetadata current = null;
+
+    // metadata table to uuid to id
+    private final Map<String, Map<String, Integer>> ids;
+
+    private final Integer primaryIdentifierTypeId;
+
+    private MigrationMetadata(Map<String, Map<String, Integer>> ids, Integer primaryIdentifierTypeId) {
+        this.ids = ids;
+        this.primaryIdentifierTypeId = primaryIdentifierTypeId;
+    }
+
+    /**
+     * Returns the metadata of the current run, loading it on first use
+     */
+    public static MigrationMetadata get() throws SQLException {
+        MigrationMetadata result = current;
+        if (result == null) {
+            synchronized (MigrationMetadata.class) {
+                result = current;
+                if (result == null) {
+                    result = load();
+                    current = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads the metadata again, for a new run
+     */
+    public static MigrationMetadata reload() throws SQLException {
+        synchronized (MigrationMetadata.class) {
+            current = load();
+            return current;
+        }
+    }
+
+    /**
+     * Loads the metadata ahead of the first run, e.g. at module startup. Failures are logged; the
+     * metadata is then loaded by the run.
+     */
+    public static void warm() {
+        try {
+            get();
+        } catch (Exception e) {
+            log.warn("Unable to load migration metadata, it will be loaded by the migration: " + e.getMessage());
+        }
+    }
+
+    public static void invalidate() {
+        current = null;
+    }
+
+    /**
+     * @return the id of the patient identifier type of the given uuid, or null if it does not exist
+     */
+    public Integer getIdentifierTypeId(String uuid) {
+        return getId(IDENTIFIER_TYPE, uuid);
+    }
+
+    public Integer getAttributeTypeId(String uuid) {
+        return getId(ATTRIBUTE_TYPE, uuid);
+    }
+
+    public Integer getEncounterTypeId(String uuid) {
+        return getId(ENCOUNTER_TYPE, uuid);
+    }
+
+    public Integer getOrderTypeId(String uuid) {
+        return getId(ORDER_TYPE, uuid);
+    }
+
+    public Integer getCareSettingId(String uuid) {
+        return getId(CARE_SETTING, uuid);
+    }
+
+    public Integer getRelationshipTypeId(String uuid) {
+        return getId(RELATIONSHIP_TYPE, uuid);
+    }
+
+    /**
+     * @return the id of the identifier type configured in
+     * {@value MigrationRunner#GP_SOURCE_PRIMARY_IDENTIFIER_TYPE}, or null
+     */
+    public Integer getPrimaryIdentifierTypeId() {
+        return primaryIdentifierTypeId;
+    }
+
+    private Integer getId(String table, String uuid) {
+        Map<String, Integer> tableIds = ids.get(table);
+        return tableIds == null ? null : tableIds.get(uuid);
+    }
+
+    /**
+     * @return the uuids resolved for every metadata table
+     */
+    private static Map<String, List<String>> getRequiredUuids(String primaryIdentifierTypeUuid) {
+        Map<String, List<String>> uuids = new LinkedHashMap<String, List<String>>();
+        List<String> identifierTypes = new ArrayList<String>(Arrays.asList(UNIQUE_PATIENT_NUMBER, NATIONAL_ID, IQCARE_PERSON_PK));
+        if (StringUtils.isNotBlank(primaryIdentifierTypeUuid)) {
+            identifierTypes.add(primaryIdentifierTypeUuid);
+        }
+        uuids.put(IDENTIFIER_TYPE, identifierTypes);
+        uuids.put(ATTRIBUTE_TYPE, Arrays.asList(TELEPHONE_CONTACT, EMAIL_ADDRESS, ALTERNATE_PHONE_CONTACT, NEAREST_HEALTH_CENTER));
+        uuids.put(ENCOUNTER_TYPE, Arrays.asList(LabOrderDetails.ENCOUNTER_TYPE_UUID));
+        uuids.put(ORDER_TYPE, Arrays.asList(LabOrderDetails.ORDER_TYPE_UUID));
+        uuids.put(CARE_SETTING, Arrays.asList(LabOrderDetails.CARE_SETTING_UUID));
+        uuids.put(RELATIONSHIP_TYPE, Arrays.asList(RelationshipDetails.PARENT_CHILD_TYPE_UUID, RelationshipDetails.SIBLING_TYPE_UUID,
+                RelationshipDetails.SPOUSE_TYPE, RelationshipDetails.SEXUAL_PARTNER_TYPE));
+        return uuids;
+    }
+
+    private static MigrationMetadata load() throws SQLException {
+        long start = System.currentTimeMillis();
+        String primaryIdentifierTypeUuid = StringUtils.trimToNull(Context.getAdministrationService()
+                .getGlobalProperty(MigrationRunner.GP_SOURCE_PRIMARY_IDENTIFIER_TYPE));
+        Map<String, List<String>> uuids = getRequiredUuids(primaryIdentifierTypeUuid);
+
+        // one select per metadata table, all sent as a single statement
+        StringBuilder sql = new StringBuilder();
+        List<String> parameters = new ArrayList<String>();
+        for (Map.Entry<String, List<String>> e : uuids.entrySet()) {
+            if (sql.length() > 0) {
+                sql.append(" union all ");
+            }
+            String table = e.getKey();
+            sql.append("select '").append(table).append("', uuid, ").append(table).append("_id from ").append(table)
+                    .append(" where uuid in (").append(StringUtils.repeat("?", ", ", e.getValue().size())).append(")");
+            parameters.addAll(e.getValue());
+        }
+
+        Map<String, Map<String, Integer>> ids = new HashMap<String, Map<String, Integer>>();
+        for (String table : uuids.keySet()) {
+            ids.put(table, new HashMap<String, Integer>());
+        }
+        Connection conn = DatabaseBackend.openConnection();
+        try {
+            PreparedStatement ps = conn.prepareStatement(sql.toString());
+            try {
+                for (int i = 0; i < parameters.size(); i++) {
+                    ps.setString(i + 1, parameters.get(i));
+                }
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    ids.get(rs.getString(1)).put(rs.getString(2), rs.getInt(3));
+                }
+                rs.close();
+            } finally {
+                ps.close();
+            }
+        } finally {
+            conn.close();
+        }
+
+        for (Map.Entry<String, List<String>> e : uuids.entrySet()) {
+            for (String uuid : e.getValue()) {
+                if (!ids.get(e.getKey()).containsKey(uuid)) {
+                    log.warn("No " + e.getKey() + " with uuid " + uuid + " found, rows referring to it will not be migrated");
+                }
+            }
+            ids.put(e.getKey(), Collections.unmodifiableMap(ids.get(e.getKey())));
+        }
+        Integer primaryIdentifierTypeId = primaryIdentifierTypeUuid == null ? null : ids.get(IDENTIFIER_TYPE).get(primaryIdentifierTypeUuid);
+        if (log.isInfoEnabled()) {
+            log.info("Loaded migration metadata in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        return new MigrationMetadata(Collections.unmodifiableMap(ids), primaryIdentifierTypeId);
+    }
+}
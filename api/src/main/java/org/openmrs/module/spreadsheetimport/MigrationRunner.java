@@ -0,0 +1,301 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a full migration from the migration database: users, demographics, the post demographics
+ * script, every template dataset, labs and relationships. Each stage is timed; the results are
+ * available from {@link #getStageResults()} once {@link #run()} returns.
+ */
+public class MigrationRunner {
+
+    protected static final Log log = LogFactory.getLog(MigrationRunner.class);
+
+    public static final String GP_MIGRATION_DATABASE = "spreadsheetimport.migrationDatabase";
+
+    public static final String GP_SOURCE_PRIMARY_IDENTIFIER_TYPE = "spreadsheetimport.sourcePrimaryIdentifierType";
+
+    public static final String POST_DEMOGRAPHICS_SCRIPT = "post_demographics_processing_query.sql";
+
+    private final boolean rollbackTransaction;
+
+    private final List<String> messages = new ArrayList<String>();
+
+    private final List<StageResult> stageResults = new ArrayList<StageResult>();
+
+    private long totalNanos;
+
+    /**
+     * Time taken and rows processed by one stage of a migration
+     */
+    public static class StageResult {
+
+        private final String name;
+
+        private final long rows;
+
+        private final long nanos;
+
+        StageResult(String name, long rows, long nanos) {
+            this.name = name;
+            this.rows = rows;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return the dataset name as shown in the migration progress
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public double getRowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+
+        public String toString() {
+            return name + ": " + rows + " rows in " + TimeUnit.MILLISECONDS.convert(nanos, TimeUnit.NANOSECONDS) + " ms ("
+                    + Math.round(getRowsPerSecond()) + " rows/s)";
+        }
+    }
+
+    private abstract class Stage {
+
+        final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        abstract void execute() throws Exception;
+    }
+
+    public MigrationRunner(boolean rollbackTransaction) {
+        this.rollbackTransaction = rollbackTransaction;
+    }
+
+    /**
+     * Runs the migration
+     *
+     * @return the messages of the run, for display
+     */
+    public String run() throws Exception {
+        long startTime = System.nanoTime();
+        final String migrationDatabase = Context.getAdministrationService().getGlobalProperty(GP_MIGRATION_DATABASE);
+        final String[] successfulProcessMsg = new String[1];
+        // existing values are read again, the database may have changed since the last run
+        DuplicateValueIndex.invalidate();
+        IdentifierPatientIndex.invalidate();
+        MigrationMetadata.reload();
+
+        DbImportUtil.setRowCountForDatasets(migrationDatabase);
+        runStage(new Stage("Users") {
+
+            void execute() {
+                DbImportUtil.processUsers(messages, migrationDatabase);
+            }
+        });
+        runStage(new Stage("Demographics") {
+
+            void execute() {
+                successfulProcessMsg[0] = DbImportUtil.processDemographicsDataset(messages, migrationDatabase);
+            }
+        });
+        runStage(new Stage("Post demographics") {
+
+            void execute() {
+                doPostDemographics();
+            }
+        });
+
+        processOtherDatasets(migrationDatabase);
+
+        runStage(new Stage("Lab (VL and CD4)") {
+
+            void execute() {
+                DbImportUtil.processViralLoadAndCD4Labs(messages, migrationDatabase);
+            }
+        });
+        runStage(new Stage("Patient Relationships") {
+
+            void execute() {
+                DbImportUtil.processPatientRelationships(messages, migrationDatabase);
+            }
+        });
+
+        // errors are written in the background, make sure they are in the database when the run ends
+        ImportErrorSink.getInstance().flush(TimeUnit.MINUTES.toMillis(1));
+
+        totalNanos = System.nanoTime() - startTime;
+        long timeTakenInMin = TimeUnit.MINUTES.convert(totalNanos, TimeUnit.NANOSECONDS);
+        boolean succeeded = (successfulProcessMsg[0] != null);
+
+        if (log.isInfoEnabled()) {
+            for (StageResult result : stageResults) {
+                log.info(result);
+            }
+        }
+
+        String messageString = "";
+        for (int i = 0; i < messages.size(); i++) {
+            if (i != 0) {
+                messageString += "<br />";
+            }
+            messageString += messages.get(i);
+        }
+        if (succeeded) {
+            messageString += "Successfully migrated all data. Time taken in minutes: " + timeTakenInMin;
+        }
+
+        return messageString;
+    }
+
+    /**
+     * @return the stages of the last run in the order they ran
+     */
+    public List<StageResult> getStageResults() {
+        return Collections.unmodifiableList(stageResults);
+    }
+
+    /**
+     * @return wall time of the last run
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    private void runStage(Stage stage) throws Exception {
+        String previousDataset = ImportMetrics.setDataset(stage.name);
+        long start = System.nanoTime();
+        try {
+            stage.execute();
+        } finally {
+            ImportMetrics.restoreDataset(previousDataset);
+        }
+        long nanos = System.nanoTime() - start;
+
+        long rows = 0;
+        Properties progress = DbImportUtil.migrationProgressMap.get(stage.name);
+        if (progress != null && progress.getProperty("processedCount") != null) {
+            rows = Long.parseLong(progress.getProperty("processedCount"));
+        }
+        stageResults.add(new StageResult(stage.name, rows, nanos));
+    }
+
+    private void processOtherDatasets(final String migrationDatabase) throws Exception {
+        // get processing order for datasets and associated configs for grouped obs
+
+        Map<String, String> datasetMap = DbImportUtil.getProcessingOrderAndGroupedObsConfig();
+        Map<String, Integer> tableToTemplateMap = DbImportUtil.getTemplateDatasetMap();
+        final String primaryIdentifierType = getMigrationPrimaryIdentifierType();
+
+        for (Map.Entry<String, String> e : datasetMap.entrySet()) {
+            final String dataset = e.getKey();
+            final String grpObsConfigFile = e.getValue();
+            Integer templateId = tableToTemplateMap.get(dataset);
+            final SpreadsheetImportTemplate template = templateId == null ? null
+                    : Context.getService(SpreadsheetImportService.class).getTemplateForImport(templateId);
+            if (template == null) {
+                log.warn("No template found for dataset " + dataset + ", skipping it");
+                messages.add("Skipped dataset " + dataset + ": no template found for it");
+                continue;
+            }
+
+            log.info("Processing " + dataset + " dataset");
+            runStage(new Stage(template.getName()) {
+
+                void execute() {
+                    try {
+                        DbImportUtil.importTemplate(template, messages, rollbackTransaction, primaryIdentifierType, grpObsConfigFile, migrationDatabase);
+                        log.info("Completed processing " + dataset + " dataset");
+                    } catch (Exception e1) {
+                        log.error("Unable to import dataset " + dataset, e1);
+                        messages.add("Unable to import dataset " + dataset + ": " + e1.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    private String getMigrationPrimaryIdentifierType() throws SQLException {
+        Integer primaryIdentifierTypeId = MigrationMetadata.get().getPrimaryIdentifierTypeId();
+        return primaryIdentifierTypeId == null ? null : primaryIdentifierTypeId.toString();
+    }
+
+    /**
+     * Handles housekeeping after processing demographics.
+     * These include:
+     * 1. adding patient_id column to all datasets
+     * 2. add index on Person_Id column which holds an identifier from source database
+     * 3. updates patient_id column with patient_id values generated by OpenMRS after processing demographics
+     *
+     * The method executes a sql script provided in the migration config directory
+     */
+    private void doPostDemographics() {
+        ResourceDatabasePopulator rdp = new ResourceDatabasePopulator();
+        File configFile = OpenmrsUtil.getDirectoryInApplicationDataDirectory(Context.getAdministrationService().getGlobalProperty(DbImportUtil.GP_MIGRATION_CONFIG_DIR));
+
+        String fullFilePath = configFile.getPath() + File.separator + POST_DEMOGRAPHICS_SCRIPT;
+        rdp.addScript(new FileSystemResource(fullFilePath));
+        rdp.setSqlScriptEncoding("UTF-8");
+        rdp.setIgnoreFailedDrops(true);
+        Connection conn = null;
+
+        try {
+            conn = DatabaseBackend.openConnection();
+            rdp.populate(conn);
+            log.info("Completed running post-demographics housekeeping script");
+        } catch (Exception e) {
+            log.error("Unable to run post-demographics housekeeping script " + fullFilePath, e);
+        } finally {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    log.debug("Unable to close connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
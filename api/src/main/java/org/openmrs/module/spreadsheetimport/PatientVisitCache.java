@@ -0,0 +1,61 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Visits of the patient being imported, by the day they were started on, so that the encounters of
+ * a patient on the same day look their visit up once. Only the current patient's visits are kept:
+ * they are dropped as soon as a row of another patient is imported. Datasets are read ordered by
+ * patient (see {@link SourceRowPipeline}), so the cache holds a single patient's working set and
+ * every encounter after the first of a visit is a hit.
+ * <p>
+ * Visits inserted by a row are only valid once the row is committed; {@link #clear()} must be
+ * called when a row is rolled back.
+ */
+public class PatientVisitCache {
+
+    private String patientId;
+
+    private final Map<String, String> visitIdByDate = new HashMap<String, String>();
+
+    /**
+     * @param patientId patient of the row being imported
+     * @param encounterDate day of the encounter, as yyyy-MM-dd
+     * @return id of the patient's visit started on that day, or null if not known yet
+     */
+    public String get(String patientId, String encounterDate) {
+        if (!patientId.equals(this.patientId)) {
+            this.patientId = patientId;
+            visitIdByDate.clear();
+        }
+        String visitId = visitIdByDate.get(encounterDate);
+        ImportMetrics.increment(visitId == null ? ImportMetrics.VISIT_CACHE_MISSES : ImportMetrics.VISIT_CACHE_HITS, "visit");
+        return visitId;
+    }
+
+    /**
+     * Records the visit found or inserted for the patient passed to the last {@link #get(String, String)}
+     */
+    public void put(String encounterDate, String visitId) {
+        visitIdByDate.put(encounterDate, visitId);
+    }
+
+    public void clear() {
+        patientId = null;
+        visitIdByDate.clear();
+    }
+}
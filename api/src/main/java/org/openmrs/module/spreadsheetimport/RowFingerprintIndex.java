@@ -0,0 +1,201 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fingerprints of the source rows of a dataset imported by earlier runs, kept in
+ * spreadsheetimport_row_fingerprint. With {@value #GP_DELTA_MODE} on, a row whose fingerprint is
+ * known is skipped without touching the OpenMRS tables, so a catch-up run only imports the rows
+ * added or changed in the source since the last run. A changed row has a new fingerprint and is
+ * imported as a new row; what was imported from its earlier version is left as it is.
+ * <p>
+ * A fingerprint is the first 64 bits of the MD5 of all values of the row, each prefixed by its
+ * length. The fingerprints of a dataset are loaded once, sorted, at the start of its import; those
+ * of imported rows are written in batches on the import connection and committed with it. A run which stops abnormally may
+ * therefore import up to {@value #BATCH_SIZE} rows again on the next run.
+ */
+public class RowFingerprintIndex {
+
+    protected static final Log log = LogFactory.getLog(RowFingerprintIndex.class);
+
+    public static final String GP_DELTA_MODE = "spreadsheetimport.deltaMode";
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final String INSERT = "insert ignore into spreadsheetimport_row_fingerprint "
+            + "(dataset, fingerprint, source_key, date_created) values (?, ?, ?, now())";
+
+    private final String dataset;
+
+    private final long[] fingerprints;
+
+    private final List<Object[]> pending = new ArrayList<Object[]>();
+
+    private RowFingerprintIndex(String dataset, long[] fingerprints) {
+        this.dataset = dataset;
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * @return true if rows imported by earlier runs are skipped
+     */
+    public static boolean isEnabled() {
+        String value = Context.getAdministrationService().getGlobalProperty(GP_DELTA_MODE);
+        return Boolean.valueOf(StringUtils.trimToEmpty(value));
+    }
+
+    /**
+     * Loads the fingerprints of the rows of a dataset imported by earlier runs
+     */
+    public static RowFingerprintIndex load(Connection conn, String dataset) throws SQLException {
+        long start = System.nanoTime();
+        long[] fingerprints = new long[1024];
+        int size = 0;
+        PreparedStatement ps = conn.prepareStatement("select fingerprint from spreadsheetimport_row_fingerprint "
+                + "where dataset = ? order by fingerprint");
+        try {
+            ps.setString(1, dataset);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                if (size == fingerprints.length) {
+                    fingerprints = Arrays.copyOf(fingerprints, size * 2);
+                }
+                fingerprints[size++] = rs.getLong(1);
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        ImportMetrics.stop(ImportMetrics.SOURCE_READ, "spreadsheetimport_row_fingerprint", start);
+        if (log.isInfoEnabled()) {
+            log.info("Rows of " + dataset + " imported by earlier runs: " + size);
+        }
+        return new RowFingerprintIndex(dataset, Arrays.copyOf(fingerprints, size));
+    }
+
+    /**
+     * @param rs result set positioned on a source row
+     * @return the fingerprint of all values of the row
+     */
+    public static long fingerprint(ResultSet rs) throws SQLException {
+        String[] values = new String[rs.getMetaData().getColumnCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rs.getString(i + 1);
+        }
+        return fingerprint(values);
+    }
+
+    /**
+     * @param values values of a source row as read with ResultSet.getString, in column order
+     * @return the fingerprint of all values of the row
+     */
+    public static long fingerprint(String[] values) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            for (String value : values) {
+                // null and empty must not be confused, nor values split differently: each value is
+                // prefixed by its length, so no content can pass for the start of the next value
+                if (value == null) {
+                    md5.update((byte) 0);
+                } else {
+                    byte[] bytes = value.getBytes("UTF-8");
+                    md5.update((byte) 1);
+                    md5.update(new byte[]{(byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+                            (byte) (bytes.length >>> 8), (byte) bytes.length});
+                    md5.update(bytes);
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = md5.digest();
+        long fingerprint = 0;
+        for (int i = 0; i < 8; i++) {
+            fingerprint = (fingerprint << 8) | (digest[i] & 0xff);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return true if a row with this fingerprint was imported by an earlier run
+     */
+    public boolean contains(long fingerprint) {
+        return Arrays.binarySearch(fingerprints, fingerprint) >= 0;
+    }
+
+    /**
+     * Records a row imported by this run, writing the fingerprints recorded so far once there are
+     * enough of them
+     *
+     * @param sourceKey identifier of the row in the source, kept for reference
+     */
+    public void add(Connection conn, long fingerprint, String sourceKey) throws SQLException {
+        pending.add(new Object[]{fingerprint, StringUtils.left(sourceKey, 255)});
+        if (pending.size() >= BATCH_SIZE) {
+            flush(conn);
+        }
+    }
+
+    /**
+     * Writes the recorded fingerprints and commits them, with the rows imported before them
+     */
+    public void flush(Connection conn) throws SQLException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        PreparedStatement ps = conn.prepareStatement(INSERT);
+        try {
+            for (Object[] row : pending) {
+                ps.setString(1, dataset);
+                ps.setLong(2, (Long) row[0]);
+                ps.setString(3, (String) row[1]);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        } finally {
+            ps.close();
+        }
+        if (!conn.getAutoCommit()) {
+            conn.commit();
+        }
+        ImportMetrics.stop(ImportMetrics.COMMIT, dataset, start);
+        pending.clear();
+    }
+
+    public int size() {
+        return fingerprints.length;
+    }
+}
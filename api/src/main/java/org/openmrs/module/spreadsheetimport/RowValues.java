@@ -0,0 +1,94 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.Arrays;
+
+/**
+ * Values of the row being imported and the keys generated for it, in slots indexed by the import
+ * index of the template columns. Template columns themselves are never modified during an import,
+ * so one template can be imported by several threads, each with its own row values.
+ * <p>
+ * Values are kept as rendered for SQL: numbers as Integer or Double, text and dates quoted, and ""
+ * for an empty cell.
+ */
+public class RowValues {
+
+    private Object[] values;
+
+    private String[] generatedKeys;
+
+    /**
+     * @param template template whose rows are held; only its column count is used
+     */
+    public RowValues(SpreadsheetImportTemplate template) {
+        int size = 0;
+        for (SpreadsheetImportTemplateColumn column : template.getColumns()) {
+            if (column.getImportIdx() != null) {
+                size = Math.max(size, column.getImportIdx() + 1);
+            }
+        }
+        values = new Object[size];
+        generatedKeys = new String[size];
+    }
+
+    /**
+     * @return the value of the column in this row, or null if it has not been read
+     */
+    public Object getValue(SpreadsheetImportTemplateColumn column) {
+        int slot = slot(column);
+        return slot < values.length ? values[slot] : null;
+    }
+
+    public void setValue(SpreadsheetImportTemplateColumn column, Object value) {
+        values[ensureSlot(column)] = value;
+    }
+
+    /**
+     * @return the key generated, or found, for the row inserted from the column's table, or null
+     */
+    public String getGeneratedKey(SpreadsheetImportTemplateColumn column) {
+        int slot = slot(column);
+        return slot < generatedKeys.length ? generatedKeys[slot] : null;
+    }
+
+    public void setGeneratedKey(SpreadsheetImportTemplateColumn column, String generatedKey) {
+        generatedKeys[ensureSlot(column)] = generatedKey;
+    }
+
+    /**
+     * Forgets the values and generated keys, before the next row is read
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        Arrays.fill(generatedKeys, null);
+    }
+
+    private static int slot(SpreadsheetImportTemplateColumn column) {
+        if (column.getImportIdx() == null) {
+            throw new IllegalArgumentException("column " + column.getName() + " has no import index");
+        }
+        return column.getImportIdx();
+    }
+
+    private int ensureSlot(SpreadsheetImportTemplateColumn column) {
+        int slot = slot(column);
+        if (slot >= values.length) {
+            // columns added to the template after these values were created
+            values = Arrays.copyOf(values, slot + 1);
+            generatedKeys = Arrays.copyOf(generatedKeys, slot + 1);
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Cache of the table, column, primary key and foreign key metadata of the OpenMRS schema. The
+ * metadata is read with two information_schema queries and kept as an immutable snapshot, so it can
+ * be shared by concurrent readers. Call {@link #invalidate()} after the schema changes; the next
+ * read reloads it.
+ */
+public class SchemaMetadataCache {
+
+    protected static final Log log = LogFactory.getLog(SchemaMetadataCache.class);
+
+    private static volatile Snapshot snapshot = null;
+
+    /**
+     * Immutable view of the schema metadata
+     */
+    public static class Snapshot {
+
+        private final Map<String, String> tableColumnMap;
+
+        private final Map<String, List<String>> tableColumnListMap;
+
+        private final Map<String, List<String>> columns;
+
+        private final Map<String, List<String>> primaryKeys;
+
+        private final Map<String, Set<String>> notNullColumns;
+
+        private final Map<String, Map<String, String>> importedKeys;
+
+        private final Map<String, Map<String, String>> requiredImportedKeys;
+
+        private Snapshot(Map<String, String> tableColumnMap, Map<String, List<String>> tableColumnListMap,
+                         Map<String, List<String>> columns, Map<String, List<String>> primaryKeys,
+                         Map<String, Set<String>> notNullColumns,
+                         Map<String, Map<String, String>> importedKeys,
+                         Map<String, Map<String, String>> requiredImportedKeys) {
+            this.tableColumnMap = Collections.unmodifiableMap(tableColumnMap);
+            this.tableColumnListMap = Collections.unmodifiableMap(tableColumnListMap);
+            this.columns = columns;
+            this.primaryKeys = primaryKeys;
+            this.notNullColumns = notNullColumns;
+            this.importedKeys = importedKeys;
+            this.requiredImportedKeys = requiredImportedKeys;
+        }
+
+        /**
+         * @return table.column to pretty name, for every importable column including primary keys
+         */
+        public Map<String, String> getTableColumnMap() {
+            return tableColumnMap;
+        }
+
+        /**
+         * @return table to its importable columns, excluding primary keys
+         */
+        public Map<String, List<String>> getTableColumnListMap() {
+            return tableColumnListMap;
+        }
+
+        /**
+         * @return all columns of a table in ordinal order, empty if unknown
+         */
+        public List<String> getColumns(String tableName) {
+            List<String> result = columns.get(tableName);
+            return result == null ? Collections.<String>emptyList() : result;
+        }
+
+        /**
+         * @return the primary key columns of a table, empty if unknown
+         */
+        public List<String> getPrimaryKeys(String tableName) {
+            List<String> result = primaryKeys.get(tableName);
+            return result == null ? Collections.<String>emptyList() : result;
+        }
+
+        /**
+         * @return the NOT NULL columns of a table, empty if unknown
+         */
+        public Set<String> getNotNullColumns(String tableName) {
+            Set<String> result = notNullColumns.get(tableName);
+            return result == null ? Collections.<String>emptySet() : result;
+        }
+
+        /**
+         * @return foreign key column to referenced table, in constraint order, empty if unknown
+         */
+        public Map<String, String> getImportedKeys(String tableName) {
+            Map<String, String> result = importedKeys.get(tableName);
+            return result == null ? Collections.<String, String>emptyMap() : result;
+        }
+
+        /**
+         * @return referenced table to foreign key column, for the NOT NULL foreign keys of a table,
+         *         empty if unknown
+         */
+        public Map<String, String> getRequiredImportedKeys(String tableName) {
+            Map<String, String> result = requiredImportedKeys.get(tableName);
+            return result == null ? Collections.<String, String>emptyMap() : result;
+        }
+    }
+
+    /**
+     * Returns the cached metadata, loading it on first use or after {@link #invalidate()}.
+     */
+    public static Snapshot get() throws Exception {
+        Snapshot result = snapshot;
+        if (result == null) {
+            synchronized (SchemaMetadataCache.class) {
+                result = snapshot;
+                if (result == null) {
+                    result = load();
+                    snapshot = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discards the cached metadata; it is reloaded on the next read
+     */
+    public static void invalidate() {
+        snapshot = null;
+    }
+
+    private static Snapshot load() throws Exception {
+        long start = System.currentTimeMillis();
+
+        Map<String, List<String>> columns = new TreeMap<String, List<String>>();
+        Map<String, List<String>> primaryKeys = new HashMap<String, List<String>>();
+        Map<String, Set<String>> notNullColumns = new HashMap<String, Set<String>>();
+        Map<String, Map<String, String>> importedKeys = new HashMap<String, Map<String, String>>();
+
+        Connection conn = DatabaseBackend.openConnection();
+        Statement s = null;
+        try {
+            s = conn.createStatement();
+
+            ResultSet rs = s.executeQuery("select TABLE_NAME, COLUMN_NAME, COLUMN_KEY, IS_NULLABLE from information_schema.COLUMNS"
+                    + " where TABLE_SCHEMA = DATABASE() order by TABLE_NAME, ORDINAL_POSITION");
+            while (rs.next()) {
+                String tableName = rs.getString(1);
+                String columnName = rs.getString(2);
+                List<String> tableColumns = columns.get(tableName);
+                if (tableColumns == null) {
+                    tableColumns = new ArrayList<String>();
+                    columns.put(tableName, tableColumns);
+                    primaryKeys.put(tableName, new ArrayList<String>());
+                    notNullColumns.put(tableName, new LinkedHashSet<String>());
+                }
+                tableColumns.add(columnName);
+                if ("PRI".equals(rs.getString(3))) {
+                    primaryKeys.get(tableName).add(columnName);
+                }
+                if (!"YES".equals(rs.getString(4))) {
+                    notNullColumns.get(tableName).add(columnName);
+                }
+            }
+            rs.close();
+
+            rs = s.executeQuery("select TABLE_NAME, COLUMN_NAME, REFERENCED_TABLE_NAME from information_schema.KEY_COLUMN_USAGE"
+                    + " where TABLE_SCHEMA = DATABASE() and REFERENCED_TABLE_NAME is not null"
+                    + " order by TABLE_NAME, CONSTRAINT_NAME, ORDINAL_POSITION");
+            while (rs.next()) {
+                String tableName = rs.getString(1);
+                Map<String, String> tableImportedKeys = importedKeys.get(tableName);
+                if (tableImportedKeys == null) {
+                    tableImportedKeys = new LinkedHashMap<String, String>();
+                    importedKeys.put(tableName, tableImportedKeys);
+                }
+                tableImportedKeys.put(rs.getString(2), rs.getString(3));
+            }
+            rs.close();
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                }
+            }
+            try {
+                conn.close();
+            } catch (SQLException e) {
+            }
+        }
+
+        Map<String, String> tableColumnMap = new TreeMap<String, String>();
+        Map<String, List<String>> tableColumnListMap = new TreeMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> entry : columns.entrySet()) {
+            String tableName = entry.getKey();
+            List<String> columnNames = new ArrayList<String>(entry.getValue());
+
+            // hack: only allow obs.value_coded to go through
+            if ("obs".equalsIgnoreCase(tableName) && importedKeys.containsKey(tableName)) {
+                for (String columnName : importedKeys.get(tableName).keySet()) {
+                    if (!"value_coded".equalsIgnoreCase(columnName)) {
+                        columnNames.remove(columnName);
+                    }
+                }
+            }
+
+            for (String columnName : columnNames) {
+                String tableDotColumn = tableName + "." + columnName;
+                tableColumnMap.put(tableDotColumn, DatabaseBackend.makePrettyTableDotColumn(tableDotColumn));
+            }
+
+            columnNames.removeAll(primaryKeys.get(tableName));
+            tableColumnListMap.put(tableName, Collections.unmodifiableList(columnNames));
+
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            primaryKeys.put(tableName, Collections.unmodifiableList(primaryKeys.get(tableName)));
+            notNullColumns.put(tableName, Collections.unmodifiableSet(notNullColumns.get(tableName)));
+        }
+        Map<String, Map<String, String>> requiredImportedKeys = new HashMap<String, Map<String, String>>();
+        for (Map.Entry<String, Map<String, String>> entry : importedKeys.entrySet()) {
+            String tableName = entry.getKey();
+            Map<String, String> required = new HashMap<String, String>();
+            for (Map.Entry<String, String> importedKey : entry.getValue().entrySet()) {
+                if (notNullColumns.containsKey(tableName) && notNullColumns.get(tableName).contains(importedKey.getKey())) {
+                    required.put(importedKey.getValue(), importedKey.getKey());
+                }
+            }
+            requiredImportedKeys.put(tableName, Collections.unmodifiableMap(required));
+            entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded metadata of " + columns.size() + " tables in " + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        return new Snapshot(tableColumnMap, tableColumnListMap, columns, primaryKeys, notNullColumns, importedKeys,
+                requiredImportedKeys);
+    }
+}
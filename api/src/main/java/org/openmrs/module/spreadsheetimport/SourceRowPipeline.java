@@ -0,0 +1,549 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and decodes the rows of a migration dataset ahead of their import. A reader thread streams
+ * the dataset over a connection of its own, and a decoder thread turns the rows read into
+ * {@link DecodedRow}s, while the importing thread writes the rows decoded before on its connection
+ * to OpenMRS. The stages are connected by bounded queues, so a slow writer holds the others back
+ * once {@value #QUEUE_CAPACITY} rows are waiting.
+ * <p>
+ * Rows are read ordered by patient and encounter date, unless {@value #GP_ORDERED_READS} is false,
+ * so that the rows of a patient are imported one after the other and per patient caches such as
+ * {@link PatientVisitCache} only hold the current patient. Without an index for the order the
+ * database sorts the dataset; the index is only added to the dataset table when
+ * {@value #GP_CREATE_ORDER_INDEX} is true, since that rebuilds the table.
+ * <p>
+ * A pipeline must be closed, which stops its threads and closes the reader's connection.
+ */
+public class SourceRowPipeline {
+
+    protected static final Log log = LogFactory.getLog(SourceRowPipeline.class);
+
+    public static final String GP_ORDERED_READS = "spreadsheetimport.orderedReads";
+
+    public static final String GP_CREATE_ORDER_INDEX = "spreadsheetimport.orderedReadsCreateIndex";
+
+    private static final int QUEUE_CAPACITY = 1000;
+
+    private static final String ORDER_INDEX = "spreadsheetimport_patient_date";
+
+    private static final String ENCOUNTER_DATE_COLUMN = "Encounter_Date";
+
+    private static final String MAIN_IDENTIFIER_COLUMN = "Person_Id";
+
+    private static final String INTERNAL_ID_COLUMN = "patient_id";
+
+    // marks the end of the rows in both queues
+    private static final Object END = new Object();
+
+    // how often a thread waiting to put the end marker checks whether the pipeline was closed
+    private static final long END_WAIT_MILLIS = 100;
+
+    private final String tableName;
+
+    private final Connection conn;
+
+    private final Statement statement;
+
+    private final ResultSet rs;
+
+    private final Map<String, Integer> indexByLabel = new HashMap<String, Integer>();
+
+    private final BlockingQueue<Object> read = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+
+    private final BlockingQueue<Object> decoded = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+
+    private Thread reader;
+
+    private Thread decoder;
+
+    private volatile Exception failure;
+
+    // set once the reader has read all rows
+    private volatile boolean readAll;
+
+    private volatile boolean closed;
+
+    /**
+     * A dataset row as read, before decoding
+     */
+    private static class SourceRow {
+
+        final String[] values;
+
+        final String encounterDate;
+
+        SourceRow(String[] values, String encounterDate) {
+            this.values = values;
+            this.encounterDate = encounterDate;
+        }
+    }
+
+    /**
+     * A dataset row read and decoded, ready to import
+     */
+    public static class DecodedRow {
+
+        private String sourceKey;
+
+        private String patientId;
+
+        private String encounterDate;
+
+        private long fingerprint;
+
+        private boolean unchanged;
+
+        private boolean hasData;
+
+        private RowValues values;
+
+        private GroupedObsPlan.Row groupedObsRow;
+
+        /**
+         * @return the Person_Id of the row, which identifies it in the source
+         */
+        public String getSourceKey() {
+            return sourceKey;
+        }
+
+        public String getPatientId() {
+            return patientId;
+        }
+
+        /**
+         * @return the encounter date as yyyy-MM-dd, or null
+         */
+        public String getEncounterDate() {
+            return encounterDate;
+        }
+
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return true if the row was imported by an earlier run; it is then not decoded
+         */
+        public boolean isUnchanged() {
+            return unchanged;
+        }
+
+        public boolean hasData() {
+            return hasData;
+        }
+
+        public RowValues getValues() {
+            return values;
+        }
+
+        /**
+         * @return values of the grouped observations, or null if the dataset has none
+         */
+        public GroupedObsPlan.Row getGroupedObsRow() {
+            return groupedObsRow;
+        }
+    }
+
+    private SourceRowPipeline(String tableName, Connection conn, Statement statement, ResultSet rs) throws SQLException {
+        this.tableName = tableName;
+        this.conn = conn;
+        this.statement = statement;
+        this.rs = rs;
+        ResultSetMetaData metaData = rs.getMetaData();
+        for (int i = metaData.getColumnCount(); i >= 1; i--) {
+            // the first of equally named columns wins, like ResultSet.findColumn
+            indexByLabel.put(metaData.getColumnLabel(i).toLowerCase(Locale.ENGLISH), i);
+        }
+    }
+
+    /**
+     * Opens a dataset for reading, streaming its rows from the server instead of loading them all
+     *
+     * @param migrationDatabase database of the dataset
+     * @param tableName dataset table
+     */
+    public static SourceRowPipeline open(String migrationDatabase, String tableName) throws SQLException {
+        return open(migrationDatabase, tableName, null);
+    }
+
+    /**
+     * Opens the rows of a dataset left to import
+     *
+     * @param afterPatientId only rows of a greater patient_id are read, e.g. those left by
+     *                       {@link TemplatePushdown}; null to read all rows
+     * @see #open(String, String)
+     */
+    public static SourceRowPipeline open(String migrationDatabase, String tableName, String afterPatientId) throws SQLException {
+        Connection conn = DatabaseBackend.openConnection();
+        try {
+            String orderBy = isOrderedReads() ? getOrderBy(conn, migrationDatabase, tableName) : "";
+            String where = afterPatientId == null ? "" : " where " + INTERNAL_ID_COLUMN + " > ?";
+            PreparedStatement statement = conn.prepareStatement("select * from " + migrationDatabase + "." + tableName
+                    + where + orderBy, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // Connector/J streams a result set row by row with this fetch size
+            statement.setFetchSize(Integer.MIN_VALUE);
+            if (afterPatientId != null) {
+                statement.setString(1, afterPatientId);
+            }
+            long start = System.nanoTime();
+            ResultSet rs = statement.executeQuery();
+            ImportMetrics.stop(ImportMetrics.SOURCE_READ, tableName, start);
+            return new SourceRowPipeline(tableName, conn, statement, rs);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    public static boolean isOrderedReads() {
+        String value = Context.getAdministrationService().getGlobalProperty(GP_ORDERED_READS);
+        return StringUtils.isBlank(value) || Boolean.valueOf(value.trim());
+    }
+
+    /**
+     * @return true if an index for the order may be added to dataset tables
+     */
+    public static boolean isCreateOrderIndex() {
+        String value = Context.getAdministrationService().getGlobalProperty(GP_CREATE_ORDER_INDEX);
+        return Boolean.valueOf(StringUtils.trimToEmpty(value));
+    }
+
+    /**
+     * Adds an index on the columns the dataset is read ordered by, if the table has none starting
+     * with them and {@value #GP_CREATE_ORDER_INDEX} allows it. Failing to add it, e.g. on a text
+     * column or without the privilege, only slows the read down.
+     *
+     * @return the order by clause of the dataset query, empty if the dataset has no patient_id
+     */
+    private static String getOrderBy(Connection conn, String migrationDatabase, String tableName) throws SQLException {
+        List<String> orderColumns = new ArrayList<String>();
+        Map<String, List<String>> indexColumns = new HashMap<String, List<String>>();
+        PreparedStatement ps = conn.prepareStatement("select column_name from information_schema.COLUMNS "
+                + "where table_schema = ? and table_name = ? and column_name in (?, ?) order by column_name = ? desc");
+        try {
+            ps.setString(1, migrationDatabase);
+            ps.setString(2, tableName);
+            ps.setString(3, INTERNAL_ID_COLUMN);
+            ps.setString(4, ENCOUNTER_DATE_COLUMN);
+            ps.setString(5, INTERNAL_ID_COLUMN);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                orderColumns.add(rs.getString(1).toLowerCase(Locale.ENGLISH));
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        if (!orderColumns.contains(INTERNAL_ID_COLUMN.toLowerCase(Locale.ENGLISH))) {
+            return "";
+        }
+
+        ps = conn.prepareStatement("select index_name, column_name from information_schema.STATISTICS "
+                + "where table_schema = ? and table_name = ? order by index_name, seq_in_index");
+        try {
+            ps.setString(1, migrationDatabase);
+            ps.setString(2, tableName);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                List<String> columns = indexColumns.get(rs.getString(1));
+                if (columns == null) {
+                    columns = new ArrayList<String>();
+                    indexColumns.put(rs.getString(1), columns);
+                }
+                columns.add(rs.getString(2).toLowerCase(Locale.ENGLISH));
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        boolean indexed = false;
+        for (List<String> columns : indexColumns.values()) {
+            if (columns.size() >= orderColumns.size() && columns.subList(0, orderColumns.size()).equals(orderColumns)) {
+                indexed = true;
+                break;
+            }
+        }
+
+        String columnList = StringUtils.join(orderColumns, ", ");
+        if (!indexed && !isCreateOrderIndex()) {
+            log.info(tableName + " has no index on " + columnList + " and is sorted by the database; set "
+                    + GP_CREATE_ORDER_INDEX + " to add " + ORDER_INDEX);
+        } else if (!indexed) {
+            log.info("Adding index on " + columnList + " to " + tableName);
+            long start = System.currentTimeMillis();
+            Statement s = conn.createStatement();
+            try {
+                s.execute("alter table " + migrationDatabase + "." + tableName + " add index " + ORDER_INDEX
+                        + " (" + columnList + ")");
+                log.info("Added index on " + columnList + " to " + tableName + " in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            } catch (SQLException e) {
+                log.warn("Unable to add index on " + columnList + " to " + tableName + ", reading it sorted anyway: "
+                        + e.getMessage());
+            } finally {
+                s.close();
+            }
+        }
+        return " order by " + columnList;
+    }
+
+    /**
+     * @return meta data of the dataset, to compile the grouped observations against
+     */
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return rs.getMetaData();
+    }
+
+    /**
+     * Starts reading and decoding
+     *
+     * @param template template of the dataset
+     * @param groupedObsPlan grouped observations of the dataset, or null
+     * @param fingerprints rows imported by earlier runs, which are not decoded, or null
+     * @param locale locale used to recognise dates
+     */
+    public void start(final SpreadsheetImportTemplate template, final GroupedObsPlan groupedObsPlan,
+                      final RowFingerprintIndex fingerprints, final Locale locale) {
+        final String dataset = ImportMetrics.getDataset();
+        reader = new Thread("spreadsheetimport-reader-" + tableName) {
+
+            public void run() {
+                ImportMetrics.setDataset(dataset);
+                try {
+                    read();
+                } catch (Exception e) {
+                    fail(e);
+                }
+            }
+        };
+        decoder = new Thread("spreadsheetimport-decoder-" + tableName) {
+
+            public void run() {
+                ImportMetrics.setDataset(dataset);
+                try {
+                    decode(template, groupedObsPlan, fingerprints, locale);
+                } catch (Exception e) {
+                    fail(e);
+                }
+            }
+        };
+        reader.setDaemon(true);
+        decoder.setDaemon(true);
+        reader.start();
+        decoder.start();
+    }
+
+    /**
+     * Waits for the next decoded row
+     *
+     * @return the row, or null after the last one
+     * @throws Exception the exception which stopped the reader or decoder
+     */
+    public DecodedRow take() throws Exception {
+        Object row = decoded.take();
+        if (row == END) {
+            // put back for later calls
+            decoded.offer(END);
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        return (DecodedRow) row;
+    }
+
+    /**
+     * Stops the threads, if still running, and closes the reader's connection
+     */
+    public void close() {
+        closed = true;
+        if (!readAll) {
+            // the reader may be blocked on the socket, where an interrupt does not reach it, and
+            // closing a streamed result set would read the rest of it
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                log.debug("Unable to cancel the read of " + tableName + ": " + e.getMessage());
+            }
+        }
+        // nobody takes from the queues any more, so make room for threads blocked putting to them
+        read.clear();
+        decoded.clear();
+        if (reader != null) {
+            reader.interrupt();
+            decoder.interrupt();
+            try {
+                reader.join();
+                decoder.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            rs.close();
+            statement.close();
+        } catch (SQLException e) {
+            log.debug("Unable to close dataset " + tableName + ": " + e.getMessage());
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                log.debug("Unable to close connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void read() throws Exception {
+        int columnCount = rs.getMetaData().getColumnCount();
+        Integer encounterDateIndex = indexByLabel.get(ENCOUNTER_DATE_COLUMN.toLowerCase(Locale.ENGLISH));
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                boolean hasRow = rs.next();
+                ImportMetrics.stop(ImportMetrics.SOURCE_READ, tableName, start);
+                if (!hasRow) {
+                    readAll = true;
+                    break;
+                }
+                String[] values = new String[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    values[i] = rs.getString(i + 1);
+                }
+                String encounterDate = null;
+                if (encounterDateIndex != null) {
+                    java.util.Date date = rs.getDate(encounterDateIndex);
+                    if (date != null) {
+                        encounterDate = dateFormat.format(date);
+                    }
+                }
+                read.put(new SourceRow(values, encounterDate));
+            }
+        } finally {
+            putEnd(read);
+        }
+    }
+
+    private void decode(SpreadsheetImportTemplate template, GroupedObsPlan groupedObsPlan,
+                        RowFingerprintIndex fingerprints, Locale locale) throws Exception {
+        Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData = template.getMapOfUniqueImportToColumnSetSortedByImportIdx();
+        Map<SpreadsheetImportTemplateColumn, Integer> columnIndexes = new HashMap<SpreadsheetImportTemplateColumn, Integer>();
+        for (Set<SpreadsheetImportTemplateColumn> columnSet : rowData.values()) {
+            for (SpreadsheetImportTemplateColumn column : columnSet) {
+                columnIndexes.put(column, columnIndex(column.getName()));
+            }
+        }
+        int sourceKeyIndex = columnIndex(MAIN_IDENTIFIER_COLUMN);
+        int patientIdIndex = columnIndex(INTERNAL_ID_COLUMN);
+        try {
+            while (true) {
+                Object next = read.take();
+                if (next == END) {
+                    break;
+                }
+                String[] values = ((SourceRow) next).values;
+                long start = System.nanoTime();
+                DecodedRow row = new DecodedRow();
+                row.sourceKey = values[sourceKeyIndex];
+                if (fingerprints != null) {
+                    row.fingerprint = RowFingerprintIndex.fingerprint(values);
+                    if (fingerprints.contains(row.fingerprint)) {
+                        row.unchanged = true;
+                        decoded.put(row);
+                        continue;
+                    }
+                }
+                row.patientId = values[patientIdIndex];
+                row.encounterDate = ((SourceRow) next).encounterDate;
+                row.values = new RowValues(template);
+                for (Map.Entry<SpreadsheetImportTemplateColumn, Integer> e : columnIndexes.entrySet()) {
+                    Object value = DbImportUtil.toSqlValue(DbImportUtil.decodeSourceValue(values[e.getValue()], locale), true);
+                    row.hasData = true;
+                    row.values.setValue(e.getKey(), value == null ? "" : value);
+                }
+                if (groupedObsPlan != null) {
+                    row.groupedObsRow = groupedObsPlan.newRow();
+                    groupedObsPlan.extract(values, row.groupedObsRow, locale);
+                }
+                ImportMetrics.stop(ImportMetrics.VALUE_DECODE, tableName, start);
+                decoded.put(row);
+            }
+        } finally {
+            putEnd(decoded);
+        }
+    }
+
+    /**
+     * @return index in the values read of a dataset column
+     * @throws SQLException if the dataset has no such column, like ResultSet.findColumn
+     */
+    private int columnIndex(String name) throws SQLException {
+        Integer index = indexByLabel.get(name.toLowerCase(Locale.ENGLISH));
+        if (index == null) {
+            throw new SQLException("Column '" + name + "' not found in " + tableName);
+        }
+        return index - 1;
+    }
+
+    private void fail(Exception e) {
+        if (failure == null) {
+            failure = e;
+        }
+        if (!(e instanceof InterruptedException)) {
+            log.error("Unable to read dataset " + tableName, e);
+        }
+    }
+
+    /**
+     * Puts the end marker, unless the pipeline is being closed. The thread may have been interrupted
+     * already, which clears its interrupted status, so it must not block on a full queue that nobody
+     * takes from.
+     */
+    private void putEnd(BlockingQueue<Object> queue) {
+        try {
+            while (!closed) {
+                if (queue.offer(END, END_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
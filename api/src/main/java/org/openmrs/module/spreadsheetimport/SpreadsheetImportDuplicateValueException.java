@@ -20,8 +20,11 @@ public class SpreadsheetImportDuplicateValueException extends Exception {
 	
 	SpreadsheetImportTemplateColumn column;
 	
-	public SpreadsheetImportDuplicateValueException(SpreadsheetImportTemplateColumn column) {
+	Object value;
+	
+	public SpreadsheetImportDuplicateValueException(SpreadsheetImportTemplateColumn column, Object value) {
 		this.column = column;
+		this.value = value;
 	}
 	
 	public SpreadsheetImportTemplateColumn getColumn() {
@@ -32,4 +35,15 @@ public class SpreadsheetImportDuplicateValueException extends Exception {
 		this.column = column;
 	}
 	
+	/**
+	 * @return the duplicated value, as rendered for SQL
+	 */
+	public Object getValue() {
+		return value;
+	}
+	
+	public void setValue(Object value) {
+		this.value = value;
+	}
+	
 }
@@ -29,6 +29,10 @@ public class SpreadsheetImportModuleActivator implements Activator {
 	 */
 	public void startup() {
 		log.info("Starting Spreadsheet Import Module");
+		// the schema may have changed while the module was stopped
+		SchemaMetadataCache.invalidate();
+		ImportMetrics.registerMBean();
+		MigrationMetadata.warm();
 	}
 	
 	/**
@@ -36,6 +40,9 @@ public class SpreadsheetImportModuleActivator implements Activator {
 	 */
 	public void shutdown() {
 		log.info("Shutting down Spreadsheet Import Module");
+		ImportMetrics.unregisterMBean();
+		ImportErrorSink.shutdown();
+		MigrationMetadata.invalidate();
 	}
 	
 }
@@ -24,6 +24,8 @@ public class SpreadsheetImportSQLSyntaxException extends SQLSyntaxErrorException
 
 	private String sqlStatement;
 	private String sqlErrorMessage;
+	private String sqlErrorState;
+	private String tableName;
 	
 	public SpreadsheetImportSQLSyntaxException(String sqlStatement, String sqlErrorMessage) {
 		this.sqlStatement = sqlStatement;
@@ -45,5 +47,27 @@ public class SpreadsheetImportSQLSyntaxException extends SQLSyntaxErrorException
 	public void setSqlErrorMessage(String sqlErrorMessage) {
 		this.sqlErrorMessage = sqlErrorMessage;
 	}
+
+	/**
+	 * @return SQLSTATE reported by the database, if the error came from it
+	 */
+	public String getSqlErrorState() {
+		return sqlErrorState;
+	}
+
+	public void setSqlErrorState(String sqlErrorState) {
+		this.sqlErrorState = sqlErrorState;
+	}
+
+	/**
+	 * @return table being imported when the error occurred
+	 */
+	public String getTableName() {
+		return tableName;
+	}
+
+	public void setTableName(String tableName) {
+		this.tableName = tableName;
+	}
 		
 }
@@ -261,6 +261,76 @@ public class SpreadsheetImportTemplate {
 		return result;
 	}
 
+	/**
+	 * Creates a detached copy of this template's column graph (columns, pre-specified values and
+	 * column dependencies) for use by an import worker, so that workers do not touch the Hibernate
+	 * session of the original. Row values are kept apart from the columns, in {@link RowValues}.
+	 * Ids are preserved so the copy sorts exactly like the original.
+	 *
+	 * @return a working copy which is not attached to any Hibernate session
+	 */
+	public SpreadsheetImportTemplate copyForImport() {
+		SpreadsheetImportTemplate copy = new SpreadsheetImportTemplate();
+		copy.setId(id);
+		copy.setName(name);
+		copy.setDescription(description);
+		copy.setEncounter(encounter);
+		copy.setTargetForm(targetForm);
+
+		Map<SpreadsheetImportTemplateColumn, SpreadsheetImportTemplateColumn> columnCopies = new HashMap<SpreadsheetImportTemplateColumn, SpreadsheetImportTemplateColumn>();
+		for (SpreadsheetImportTemplateColumn column : columns) {
+			SpreadsheetImportTemplateColumn columnCopy = new SpreadsheetImportTemplateColumn();
+			columnCopy.setId(column.getId());
+			columnCopy.setTemplate(copy);
+			columnCopy.setName(column.getName());
+			columnCopy.setTableDotColumn(column.getTableDotColumn());
+			columnCopy.setDatasetIdx(column.getDatasetIdx());
+			columnCopy.setImportIdx(column.getImportIdx());
+			columnCopy.setDisallowDuplicateValue(column.getDisallowDuplicateValue());
+			columnCopies.put(column, columnCopy);
+			copy.getColumns().add(columnCopy);
+		}
+
+		for (SpreadsheetImportTemplatePrespecifiedValue prespecifiedValue : prespecifiedValues) {
+			SpreadsheetImportTemplatePrespecifiedValue prespecifiedValueCopy = new SpreadsheetImportTemplatePrespecifiedValue();
+			prespecifiedValueCopy.setId(prespecifiedValue.getId());
+			prespecifiedValueCopy.setTemplate(copy);
+			prespecifiedValueCopy.setTableDotColumn(prespecifiedValue.getTableDotColumn());
+			prespecifiedValueCopy.setValue(prespecifiedValue.getValue());
+			for (SpreadsheetImportTemplateColumnPrespecifiedValue cpv : prespecifiedValue.getColumnPrespecifiedValues()) {
+				SpreadsheetImportTemplateColumn columnCopy = columnCopies.get(cpv.getColumn());
+				if (columnCopy == null)
+					continue;
+				SpreadsheetImportTemplateColumnPrespecifiedValue cpvCopy = new SpreadsheetImportTemplateColumnPrespecifiedValue();
+				cpvCopy.setId(cpv.getId());
+				cpvCopy.setColumn(columnCopy);
+				cpvCopy.setPrespecifiedValue(prespecifiedValueCopy);
+				cpvCopy.setColumnName(cpv.getColumnName());
+				prespecifiedValueCopy.getColumnPrespecifiedValues().add(cpvCopy);
+				columnCopy.getColumnPrespecifiedValues().add(cpvCopy);
+			}
+			copy.getPrespecifiedValues().add(prespecifiedValueCopy);
+		}
+
+		for (SpreadsheetImportTemplateColumn column : columns) {
+			for (SpreadsheetImportTemplateColumnColumn cc : column.getColumnColumnsImportBefore()) {
+				SpreadsheetImportTemplateColumn first = columnCopies.get(cc.getColumnImportFirst());
+				SpreadsheetImportTemplateColumn next = columnCopies.get(cc.getColumnImportNext());
+				if (first == null || next == null)
+					continue;
+				SpreadsheetImportTemplateColumnColumn ccCopy = new SpreadsheetImportTemplateColumnColumn();
+				ccCopy.setId(cc.getId());
+				ccCopy.setColumnImportFirst(first);
+				ccCopy.setColumnImportNext(next);
+				ccCopy.setColumnName(cc.getColumnName());
+				next.getColumnColumnsImportBefore().add(ccCopy);
+				first.getColumnColumnsImportAfter().add(ccCopy);
+			}
+		}
+
+		return copy;
+	}
+
 	public String getTest() {
 		return test;
 	}
@@ -152,29 +152,6 @@ public class SpreadsheetImportTemplateColumn implements Comparable {
 		return DatabaseBackend.makePrettyTableDotColumn(tableDotColumn);
 	}
 	
-	/**
-	 * Used during import.
-	 */
-	Object value;
-	
-	String generatedKey;
-	
-	public Object getValue() {
-		return value;
-	}
-	
-	public void setValue(Object value) {
-		this.value = value;
-	}
-	
-	public String getGeneratedKey() {
-		return generatedKey;
-	}
-	
-	public void setGeneratedKey(String generatedKey) {
-		this.generatedKey = generatedKey;
-	}
-	
 	public String toString() {
 		return "name=" + name + ", tableDotColumn=" + tableDotColumn + ", datasetIdx=" + (datasetIdx==null ? "-1" : datasetIdx.toString()) + ", importIdx=" + (importIdx==null ? "-1" : importIdx.toString()) + ", disallowDuplicate=" + (disallowDuplicateValue==null ? "false" : disallowDuplicateValue.toString()); 
 	}
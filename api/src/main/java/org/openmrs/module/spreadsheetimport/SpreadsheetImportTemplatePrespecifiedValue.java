@@ -104,6 +104,14 @@ public class SpreadsheetImportTemplatePrespecifiedValue implements Comparable {
 		return DatabaseBackend.makePrettyName(table);
 	}
 
+	/**
+	 * Table referenced by this pre-specified value
+	 */
+	public String getTableName() {
+		int idx = tableDotColumn.indexOf('.');
+		return tableDotColumn.substring(0, idx);
+	}
+	
 	/**
 	 * Map of name to idValue for tableName
 	 * 
@@ -23,18 +23,27 @@ import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openmrs.api.context.Context;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -44,7 +53,8 @@ public class SpreadsheetImportUtil {
 	/** Logger for this class and subclasses */
 	protected static final Log log = LogFactory.getLog(SpreadsheetImportUtil.class);
 
-	private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
+	/** Maximum number of sheets of one workbook which are imported at the same time */
+	public static final String GP_SHEET_IMPORT_THREADS = "spreadsheetimport.sheetImportThreads";
 
 
 	/**
@@ -83,11 +93,14 @@ public class SpreadsheetImportUtil {
 //			mapUiToCs.put(ui, new TreeSet<SpreadsheetImportTemplateColumn>());
 //		}
 				
+		// Foreign keys come from the shared metadata cache, so no connection is needed per table
+		SchemaMetadataCache.Snapshot metadata = SchemaMetadataCache.get();
+
 		// Find requirements
 		for (UniqueImport key : mapUiToCs.keySet()) {
 			String tableName = key.getTableName();
 			
-			Map<String, String> mapIkTnToCn = DatabaseBackend.getMapOfImportedKeyTableNameToColumnNamesForTable(tableName);
+			Map<String, String> mapIkTnToCn = new HashMap<String, String>(metadata.getRequiredImportedKeys(tableName));
 			
 			if ("patient_identifier".equals(tableName))
 				mapIkTnToCn.put("patient", "patient_id");
@@ -218,7 +231,33 @@ public class SpreadsheetImportUtil {
 	
 	public static File importTemplate(SpreadsheetImportTemplate template, MultipartFile file, String sheetName,
 	                                     List<String> messages, boolean rollbackTransaction) throws Exception {
-
+		List<String> sheetNames = new ArrayList<String>();
+		if (StringUtils.hasText(sheetName)) {
+			sheetNames.add(sheetName);
+		}
+		return importTemplate(template, file, sheetNames, false, messages, rollbackTransaction);
+	}
+	
+	/**
+	 * Imports several sheets of one workbook. The cells of every sheet are read on the calling
+	 * thread, since workbooks are not thread safe; the rows of each sheet are then written on a
+	 * worker pool, with their own copy of the template and their own database connection. The
+	 * messages of all sheets are merged in sheet order and prefixed with the sheet name.
+	 * 
+	 * @param template the template to import
+	 * @param file the uploaded workbook
+	 * @param sheetNames the sheets to import; when empty only the first sheet is imported, unless
+	 *            allSheets is set
+	 * @param allSheets import every sheet of the workbook, ignoring sheetNames
+	 * @param messages receives the merged report
+	 * @param rollbackTransaction whether the import should be rolled back
+	 * @return the processed workbook, or null if any sheet failed
+	 * @throws Exception
+	 */
+	public static File importTemplate(SpreadsheetImportTemplate template, MultipartFile file, List<String> sheetNames,
+	                                  boolean allSheets, List<String> messages, boolean rollbackTransaction)
+	    throws Exception {
+		
 		if (file.isEmpty()) {
 			messages.add("file must not be empty");
 			return null;
@@ -226,13 +265,159 @@ public class SpreadsheetImportUtil {
 		
 		// Open file
 		Workbook wb = WorkbookFactory.create(file.getInputStream());
-
-		Sheet sheet;
-		if (!StringUtils.hasText(sheetName)) {
-			sheet = wb.getSheetAt(0);
+		
+		List<Sheet> sheets = new ArrayList<Sheet>();
+		if (allSheets) {
+			for (int i = 0; i < wb.getNumberOfSheets(); i++) {
+				sheets.add(wb.getSheetAt(i));
+			}
+		} else if (sheetNames.isEmpty()) {
+			sheets.add(wb.getSheetAt(0));
+		} else {
+			for (String sheetName : sheetNames) {
+				Sheet sheet = wb.getSheet(sheetName.trim());
+				if (sheet == null) {
+					messages.add("Sheet not found: " + sheetName);
+					return null;
+				}
+				sheets.add(sheet);
+			}
+		}
+		
+		boolean succeeded;
+		if (sheets.size() == 1) {
+			succeeded = importSheet(template, sheets.get(0), messages, rollbackTransaction);
 		} else {
-			sheet = wb.getSheet(sheetName);
+			succeeded = importSheets(template, sheets, messages, rollbackTransaction);
 		}
+		if (!succeeded) {
+			return null;
+		}
+		
+		// write back Excel file to a temp location
+		File returnFile = File.createTempFile("sim", ".xls");
+		FileOutputStream fos = new FileOutputStream(returnFile);
+		wb.write(fos);
+		fos.close();
+		
+		return returnFile;
+	}
+	
+	/**
+	 * Number of sheets imported at the same time, from the global property, never more than the
+	 * number of available processors.
+	 */
+	private static int getSheetImportThreads() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		String value = Context.getAdministrationService().getGlobalProperty(GP_SHEET_IMPORT_THREADS);
+		if (StringUtils.hasText(value)) {
+			try {
+				int threads = Integer.parseInt(value.trim());
+				if (threads > 0) {
+					return Math.min(threads, processors);
+				}
+			} catch (NumberFormatException e) {
+				log.warn("Invalid value for " + GP_SHEET_IMPORT_THREADS + ": " + value);
+			}
+		}
+		return processors;
+	}
+	
+	private static boolean importSheets(SpreadsheetImportTemplate template, List<Sheet> sheets, List<String> messages,
+	                                    final boolean rollbackTransaction) throws Exception {
+		
+		// the workbook is not thread safe, so all sheets are read here and only the rows are written concurrently
+		List<SheetRows> sheetRows = new ArrayList<SheetRows>();
+		List<List<String>> sheetMessages = new ArrayList<List<String>>();
+		for (Sheet sheet : sheets) {
+			List<String> messagesForSheet = new ArrayList<String>();
+			sheetMessages.add(messagesForSheet);
+			sheetRows.add(readSheet(template, sheet, messagesForSheet));
+		}
+		
+		int threads = Math.min(getSheetImportThreads(), sheets.size());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		try {
+			for (int i = 0; i < sheets.size(); i++) {
+				final SheetRows rows = sheetRows.get(i);
+				if (rows == null) {
+					results.add(null);
+					continue;
+				}
+				// copy on this thread, while the template is still attached to the session
+				final SpreadsheetImportTemplate templateCopy = template.copyForImport();
+				final List<String> messagesForSheet = sheetMessages.get(i);
+				results.add(executor.submit(new Callable<Boolean>() {
+					
+					public Boolean call() throws Exception {
+						// rows are written with JDBC only, no user context is needed
+						return writeSheet(templateCopy, rows, messagesForSheet, rollbackTransaction);
+					}
+				}));
+			}
+			
+			boolean succeeded = true;
+			Exception exception = null;
+			for (int i = 0; i < sheets.size(); i++) {
+				String sheetName = sheets.get(i).getSheetName();
+				try {
+					if (results.get(i) == null || !results.get(i).get()) {
+						succeeded = false;
+					}
+				} catch (ExecutionException e) {
+					log.error("Error importing sheet " + sheetName, e.getCause());
+					succeeded = false;
+					if (exception == null && e.getCause() instanceof Exception) {
+						exception = (Exception) e.getCause();
+					}
+					sheetMessages.get(i).add("Error: " + e.getCause().getMessage());
+				}
+				for (String message : sheetMessages.get(i)) {
+					messages.add("Sheet " + sheetName + ": " + message);
+				}
+			}
+			if (exception != null) {
+				throw exception;
+			}
+			return succeeded;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private static boolean importSheet(SpreadsheetImportTemplate template, Sheet sheet, List<String> messages,
+	                                   boolean rollbackTransaction) throws Exception {
+		SheetRows rows = readSheet(template, sheet, messages);
+		return rows != null && writeSheet(template, rows, messages, rollbackTransaction);
+	}
+	
+	/**
+	 * Cell values of a sheet, read from the workbook before they are written to the database
+	 */
+	private static class SheetRows {
+		
+		private final List<String> columnNames;
+		
+		// cell values by column index: "" for a missing cell, null for a blank one
+		private final List<Object[]> rows = new ArrayList<Object[]>();
+		
+		SheetRows(List<String> columnNames) {
+			this.columnNames = columnNames;
+		}
+	}
+	
+	/**
+	 * Checks the header of a sheet against the template and reads the values of its rows. Workbooks
+	 * are not thread safe, so this must run on the thread which opened the workbook.
+	 * 
+	 * @return the rows, or null if the header does not match the template
+	 */
+	private static SheetRows readSheet(SpreadsheetImportTemplate template, Sheet sheet, List<String> messages) {
+		
+		// not shared between sheets, SimpleDateFormat is not thread safe
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
 		
 		// Header row
 		Row firstRow = sheet.getRow(0);
@@ -267,13 +452,12 @@ public class SpreadsheetImportUtil {
 			messages.add("Extra column names present, these will not be processed: " + toString(columnNamesOnlyInSheet));
 		}
 		
-		// Process rows
+		SheetRows sheetRows = new SheetRows(columnNames);
 		boolean skipThisRow = true;
 		for (Row row : sheet) {
 			if (skipThisRow == true) {
 				skipThisRow = false;
 			} else {
-				boolean rowHasData = false;
 				// attempt to process the extra encounter_datetime
 				String encounterDateColumn = "Encounter Date";
 				String rowEncDate = null;
@@ -284,107 +468,92 @@ public class SpreadsheetImportUtil {
 
 					if (DateUtil.isCellDateFormatted(encDateCell)) {
 						java.util.Date encDate = encDateCell.getDateCellValue();
-						rowEncDate = DATE_FORMAT.format(encDate);// "'" + new java.sql.Timestamp(encDate.getTime()).toString() + "'";
+						rowEncDate = dateFormat.format(encDate);// "'" + new java.sql.Timestamp(encDate.getTime()).toString() + "'";
 					} else {
 						rowEncDate = encDateCell.getRichStringCellValue().toString();
 					}
 				}
+				
+				Object[] values = new Object[columnNames.size()];
+				for (int idx = 0; idx < values.length; idx++) {
+					Cell cell = row.getCell(idx);
+					
+					Object value = null;
+					// check for empty cell (new Encounter)
+					if (cell == null) {
+						values[idx] = "";
+						continue;
+					}
+
+					switch (cell.getCellType()) {
+						case Cell.CELL_TYPE_BOOLEAN:
+							value = new Boolean(cell.getBooleanCellValue());
+							break;
+						case Cell.CELL_TYPE_ERROR:
+							value = new Byte(cell.getErrorCellValue());
+							break;
+						case Cell.CELL_TYPE_FORMULA:
+						case Cell.CELL_TYPE_NUMERIC:
+							if (DateUtil.isCellDateFormatted(cell)) {
+								java.util.Date date = cell.getDateCellValue();
+								value = "'" + new java.sql.Timestamp(date.getTime()).toString() + "'";
+							} else {
+								value = cell.getNumericCellValue();
+							}
+							break;
+						case Cell.CELL_TYPE_STRING:
+							// Escape for SQL
+							value = "'" + cell.getRichStringCellValue() + "'";
+							break;
+					}
+					values[idx] = value;
+				}
+				sheetRows.rows.add(values);
+			}
+		}
+		return sheetRows;
+	}
+	
+	/**
+	 * Validates and writes the rows read from a sheet, on a connection of its own
+	 */
+	private static boolean writeSheet(SpreadsheetImportTemplate template, SheetRows sheetRows, List<String> messages,
+	                                  boolean rollbackTransaction) throws Exception {
+		
+		Connection conn = DatabaseBackend.openConnection();
+		RowValues rowValues = new RowValues(template);
+		try {
+			// Process rows
+			for (Object[] values : sheetRows.rows) {
+				boolean rowHasData = false;
 				Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData = template
 				        .getMapOfUniqueImportToColumnSetSortedByImportIdx();
+				rowValues.clear();
 				
 				for (UniqueImport uniqueImport : rowData.keySet()) {
 					Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
 					for (SpreadsheetImportTemplateColumn column : columnSet) {
-												
-						int idx = columnNames.indexOf(column.getName());
-						Cell cell = row.getCell(idx);
 						
-						Object value = null;
-						// check for empty cell (new Encounter)
-						if (cell == null) {
-							rowHasData = true;
-							column.setValue("");
-							continue;
-						}
-
-						switch (cell.getCellType()) {
-							case Cell.CELL_TYPE_BOOLEAN:
-								value = new Boolean(cell.getBooleanCellValue());
-								break;
-							case Cell.CELL_TYPE_ERROR:
-								value = new Byte(cell.getErrorCellValue());
-								break;
-							case Cell.CELL_TYPE_FORMULA:
-							case Cell.CELL_TYPE_NUMERIC:
-								if (DateUtil.isCellDateFormatted(cell)) {
-									java.util.Date date = cell.getDateCellValue();
-									value = "'" + new java.sql.Timestamp(date.getTime()).toString() + "'";
-								} else {
-									value = cell.getNumericCellValue();
-								}
-								break;
-							case Cell.CELL_TYPE_STRING:
-								// Escape for SQL
-								value = "'" + cell.getRichStringCellValue() + "'";
-								break;
-						}
+						int idx = sheetRows.columnNames.indexOf(column.getName());
+						Object value = idx < values.length ? values[idx] : "";
 						if (value != null) {
 							rowHasData = true;
-							column.setValue(value);
+							rowValues.setValue(column, value);
 						} else
-							column.setValue("");
+							rowValues.setValue(column, "");
 					}
 				}
 				
-				for (UniqueImport uniqueImport : rowData.keySet()) {
-					Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
-					boolean isFirst = true;
-					for (SpreadsheetImportTemplateColumn column : columnSet) {
-
-						if (isFirst) {
-							// Should be same for all columns in unique import
-//							System.out.println("SpreadsheetImportUtil.importTemplate: column.getColumnPrespecifiedValues(): " + column.getColumnPrespecifiedValues().size());
-							if (column.getColumnPrespecifiedValues().size() > 0) {
-								Set<SpreadsheetImportTemplateColumnPrespecifiedValue> columnPrespecifiedValueSet = column.getColumnPrespecifiedValues();
-								for (SpreadsheetImportTemplateColumnPrespecifiedValue columnPrespecifiedValue : columnPrespecifiedValueSet) {
-//									System.out.println(columnPrespecifiedValue.getPrespecifiedValue().getValue());
-								}
-							}
-						}
-					}
-				}
-				
-				
-				
 				if (rowHasData) {
 					Exception exception = null;
 					try {
-						DatabaseBackend.validateData(rowData);
-						/*String encounterId = DatabaseBackend.importData(rowData, rowEncDate, rollbackTransaction);
-						if (encounterId != null) {
-							for (UniqueImport uniqueImport : rowData.keySet()) {
-								Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
-								for (SpreadsheetImportTemplateColumn column : columnSet) {
-									//Write generated encounter_id in the Encounter ID column
-									if ("encounter".equals(column.getTableName())) {
-										int idx = columnNames.indexOf(column.getName());
-										Cell cell = row.getCell(idx);
-										if (cell == null)											
-											cell = row.createCell(idx);
-										cell.setCellValue(encounterId);
-									}
-								}
-							}
-						}*/
+						DatabaseBackend.validateData(rowData, rowValues, conn);
 					} catch (SpreadsheetImportTemplateValidationException e) {
 						messages.add("Validation failed: " + e.getMessage());
-						return null;
-					} /*catch (SpreadsheetImportDuplicateValueException e) {
-						messages.add("found duplicate value for column " + e.getColumn().getName() + " with value " + e.getColumn().getValue());
-						return null;
-					}*/ catch (SpreadsheetImportSQLSyntaxException e) {
+						return false;
+					} catch (SpreadsheetImportSQLSyntaxException e) {
 						messages.add("SQL syntax error: \"" + e.getSqlErrorMessage() + "\".<br/>Attempted SQL Statement: \"" + e.getSqlStatement() + "\"");
-						return null;
+						return false;
 					} catch (Exception e) {
 						exception = e;
 					}
@@ -393,14 +562,13 @@ public class SpreadsheetImportUtil {
 					}
 				}
 			}
+		} finally {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+			}
 		}
 		
-		// write back Excel file to a temp location
-		File returnFile = File.createTempFile("sim", ".xls");
-		FileOutputStream fos = new FileOutputStream(returnFile);
-		wb.write(fos);
-		fos.close();
-		
-		return returnFile;
+		return true;
 	}
 }
@@ -0,0 +1,405 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Imports a migration dataset with INSERT ... SELECT statements run by the database, instead of
+ * reading every row into Java. Only templates which map dataset columns to obs of one encounter per
+ * row can be compiled: one encounter import, and obs imports of a single value column whose other
+ * columns are pre-specified or the encounter id. {@link #compile(Connection, SpreadsheetImportTemplate, String, String)}
+ * returns null for any other template, which is then imported row by row.
+ * <p>
+ * The dataset is first copied into a temporary table, ordered by patient, with a uuid for the
+ * encounter of each row. Visits and encounters are created from it, and the encounter ids are
+ * written back to it, before one statement per obs column inserts the observations. These
+ * statements run on chunks of about {@value #CHUNK_ROWS} rows, a range of patients each, which are
+ * committed one by one: their rows are taken from the dataset's {@link ImportThrottle} before each
+ * chunk is started, and {@link ImportThrottle#afterCommit()} waits once it is committed.
+ * <p>
+ * A failing statement rolls back its chunk only. Since a set based statement cannot tell which row
+ * failed, the rows from that chunk on are then imported row by row, which records failed rows one
+ * by one: {@link #getImportedThroughPatientId()} tells where the chunks committed stopped.
+ * <p>
+ * Enabled by {@value #GP_PUSHDOWN}, off by default.
+ */
+public class TemplatePushdown {
+
+    protected static final Log log = LogFactory.getLog(TemplatePushdown.class);
+
+    public static final String GP_PUSHDOWN = "spreadsheetimport.pushdown";
+
+    private static final String ROWS = "spreadsheetimport_pushdown_rows";
+
+    private static final List<String> DATE_TYPES = Arrays.asList("date", "datetime", "timestamp");
+
+    private static final String DAY_START = "timestamp(:day)";
+
+    private static final String DAY_END = "timestamp(:day, '23:59:59')";
+
+    private static final int CHUNK_ROWS = 1000;
+
+    // replaced by the row ids of a chunk
+    private static final String RANGE = ":range";
+
+    private final String sourceTable;
+
+    // statements run once, copying the dataset
+    private final List<String> statements = new ArrayList<String>();
+
+    // statements run on every chunk, restricted to it by RANGE
+    private final List<String> chunkStatements = new ArrayList<String>();
+
+    private int importedRows;
+
+    private String importedThroughPatientId;
+
+    private TemplatePushdown(String sourceTable) {
+        this.sourceTable = sourceTable;
+    }
+
+    /**
+     * @return true if {@value #GP_PUSHDOWN} allows set based imports
+     */
+    public static boolean isEnabled() {
+        String value = Context.getAdministrationService().getGlobalProperty(GP_PUSHDOWN);
+        return Boolean.valueOf(StringUtils.trimToEmpty(value));
+    }
+
+    /**
+     * Compiles a template into set based statements
+     *
+     * @param conn connection to the OpenMRS database, used to read the dataset's column types
+     * @param template template of the dataset
+     * @param migrationDatabase database holding the dataset
+     * @param sourceTable dataset table
+     * @return the compiled import, or null if the template has to be imported row by row
+     */
+    public static TemplatePushdown compile(Connection conn, SpreadsheetImportTemplate template, String migrationDatabase,
+                                           String sourceTable) throws SQLException {
+        Map<String, String> sourceTypes = getColumnTypes(conn, migrationDatabase, sourceTable);
+        if (!sourceTypes.containsKey("patient_id")) {
+            return notExpressible(template, "the dataset has no patient_id column");
+        }
+
+        Set<SpreadsheetImportTemplateColumn> encounterColumns = null;
+        List<Set<SpreadsheetImportTemplateColumn>> obsImports = new ArrayList<Set<SpreadsheetImportTemplateColumn>>();
+        Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> imports = template.getMapOfUniqueImportToColumnSetSortedByImportIdx();
+        for (Map.Entry<UniqueImport, Set<SpreadsheetImportTemplateColumn>> e : imports.entrySet()) {
+            String tableName = e.getKey().getTableName();
+            for (SpreadsheetImportTemplateColumn column : e.getValue()) {
+                if (Boolean.TRUE.equals(column.getDisallowDuplicateValue())) {
+                    return notExpressible(template, "column " + column.getName() + " disallows duplicate values");
+                }
+            }
+            if ("encounter".equals(tableName) && encounterColumns == null && e.getValue().size() == 1) {
+                encounterColumns = e.getValue();
+            } else if ("obs".equals(tableName) && e.getValue().size() == 1) {
+                obsImports.add(e.getValue());
+            } else {
+                return notExpressible(template, "it imports " + e.getValue().size() + " column(s) into " + tableName);
+            }
+        }
+        if (encounterColumns == null || obsImports.isEmpty()) {
+            return notExpressible(template, "it does not import an encounter with obs");
+        }
+
+        TemplatePushdown pushdown = new TemplatePushdown(sourceTable);
+        String creator = String.valueOf(Context.getAuthenticatedUser().getId());
+        SpreadsheetImportTemplateColumn encounterColumn = encounterColumns.iterator().next();
+        if (!encounterColumn.getColumnColumnsImportBefore().isEmpty()) {
+            return notExpressible(template, "its encounter depends on other imports");
+        }
+
+        // dataset rows to import, with the uuid of their new encounter or an existing encounter id
+        StringBuilder copy = new StringBuilder("create temporary table ").append(ROWS)
+                .append(" (row_id int not null auto_increment primary key, encounter_id int null, visit_id int null, ")
+                .append("key (encounter_uuid)) select uuid() encounter_uuid, src.patient_id, ")
+                .append(sourceTypes.containsKey("encounter_date") ? "date(src.Encounter_Date)" : "cast(null as date)")
+                .append(" encounter_date, nullif(trim(src.").append(quote(encounterColumn.getName()))
+                .append("), '') existing_encounter_id");
+        for (int i = 0; i < obsImports.size(); i++) {
+            SpreadsheetImportTemplateColumn column = obsImports.get(i).iterator().next();
+            if (!sourceTypes.containsKey(column.getName().toLowerCase(Locale.ENGLISH))) {
+                return notExpressible(template, "column " + column.getName() + " is not in the dataset");
+            }
+            copy.append(", src.").append(quote(column.getName())).append(" v").append(i);
+        }
+        // chunks are ranges of row ids, hence of patients
+        copy.append(" from ").append(quote(migrationDatabase)).append(".").append(quote(sourceTable))
+                .append(" src where src.patient_id is not null and src.patient_id <> '' order by src.patient_id");
+        pushdown.statements.add("drop temporary table if exists " + ROWS);
+        pushdown.statements.add(copy.toString());
+
+        // a visit per patient and day, unless the patient already has one
+        pushdown.chunkStatements.add("insert into visit (patient_id, visit_type_id, date_started, date_stopped, creator, date_created, uuid) "
+                + "select d.patient_id, 1, " + day(DAY_START, "d.day") + ", " + day(DAY_END, "d.day") + ", " + creator + ", now(), uuid() "
+                + "from (select distinct t.patient_id, t.encounter_date day from " + ROWS
+                + " t where t.encounter_date is not null and t.existing_encounter_id is null and " + RANGE + ") d "
+                + "where not exists (select 1 from visit v where v.patient_id = d.patient_id and v.date_started between "
+                + day(DAY_START, "d.day") + " and " + day(DAY_END, "d.day") + ")");
+        pushdown.chunkStatements.add("update " + ROWS + " t set t.visit_id = (select min(v.visit_id) from visit v "
+                + "where v.patient_id = t.patient_id and v.date_started between " + day(DAY_START, "t.encounter_date") + " and "
+                + day(DAY_END, "t.encounter_date") + ") where t.encounter_date is not null and t.existing_encounter_id is null and "
+                + RANGE);
+
+        // encounters of the rows without an existing one
+        StringBuilder encounterNames = new StringBuilder("date_created, encounter_datetime");
+        StringBuilder encounterValues = new StringBuilder("now(), coalesce(t.encounter_date, now())");
+        appendPrespecifiedValues(encounterColumn, encounterNames, encounterValues);
+        pushdown.chunkStatements.add("insert into encounter (" + encounterNames + ", creator, uuid, visit_id) select "
+                + encounterValues + ", " + creator + ", t.encounter_uuid, t.visit_id from " + ROWS
+                + " t where t.existing_encounter_id is null and " + RANGE);
+        pushdown.chunkStatements.add("update " + ROWS + " t join encounter e on e.uuid = t.encounter_uuid "
+                + "set t.encounter_id = e.encounter_id where t.existing_encounter_id is null and " + RANGE);
+        pushdown.chunkStatements.add("update " + ROWS + " t set t.encounter_id = t.existing_encounter_id "
+                + "where t.existing_encounter_id is not null and " + RANGE);
+
+        // one statement per obs column
+        for (int i = 0; i < obsImports.size(); i++) {
+            SpreadsheetImportTemplateColumn column = obsImports.get(i).iterator().next();
+            String valueColumn = column.getColumnName();
+            String value = "t.v" + i;
+            if ("value_text".equals(valueColumn)) {
+                value = "nullif(replace(t.v" + i + ", '''', ''), 'NULL')";
+            } else if ("value_datetime".equals(valueColumn)) {
+                if (!DATE_TYPES.contains(sourceTypes.get(column.getName().toLowerCase(Locale.ENGLISH)))) {
+                    return notExpressible(template, "dates of column " + column.getName() + " are not stored as dates");
+                }
+            } else if (!"value_coded".equals(valueColumn) && !"value_numeric".equals(valueColumn)) {
+                return notExpressible(template, "column " + column.getName() + " is imported into obs." + valueColumn);
+            }
+            for (SpreadsheetImportTemplateColumnColumn columnColumn : column.getColumnColumnsImportBefore()) {
+                if (!"encounter_id".equals(columnColumn.getColumnName())
+                        || columnColumn.getColumnImportFirst() != encounterColumn) {
+                    return notExpressible(template, "obs of column " + column.getName() + " depend on "
+                            + columnColumn.getColumnName());
+                }
+            }
+            StringBuilder names = new StringBuilder(valueColumn);
+            StringBuilder values = new StringBuilder(value);
+            appendPrespecifiedValues(column, names, values);
+            pushdown.chunkStatements.add("insert into obs (" + names + ", encounter_id, obs_datetime, date_created, creator, uuid) "
+                    + "select " + values + ", t.encounter_id, coalesce(t.encounter_date, now()), now(), " + creator
+                    + ", uuid() from " + ROWS + " t where t.v" + i + " is not null and t.v" + i + " <> '' and " + RANGE);
+        }
+        return pushdown;
+    }
+
+    /**
+     * Copies the dataset and imports it chunk by chunk, committing each chunk. If a statement fails,
+     * its chunk is rolled back and the chunks committed before it are kept.
+     *
+     * @param rollbackTransaction true to roll every chunk back once done, as a trial run; no rows
+     *                            are then counted as imported
+     * @param throttle throttle of the dataset, the rows of each chunk are taken from before it starts
+     * @return number of dataset rows imported and committed
+     */
+    public int execute(Connection conn, boolean rollbackTransaction, ImportThrottle throttle) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        Statement s = conn.createStatement();
+        try {
+            for (String sql : statements) {
+                executeUpdate(s, sql);
+            }
+            conn.commit();
+            for (long[] chunk : getChunks(conn)) {
+                throttle.acquireRows((int) chunk[2]);
+                boolean failed = true;
+                try {
+                    String range = "t.row_id between " + chunk[0] + " and " + chunk[1];
+                    for (String sql : chunkStatements) {
+                        executeUpdate(s, sql.replace(RANGE, range));
+                    }
+                    failed = false;
+                } finally {
+                    long t = System.nanoTime();
+                    if (failed || rollbackTransaction) {
+                        conn.rollback();
+                    } else {
+                        conn.commit();
+                    }
+                    ImportMetrics.stop(ImportMetrics.COMMIT, sourceTable, t);
+                }
+                ImportThrottle.afterCommit();
+                if (!rollbackTransaction) {
+                    importedRows += (int) chunk[2];
+                    importedThroughPatientId = getPatientId(conn, chunk[1]);
+                }
+            }
+            return importedRows;
+        } finally {
+            try {
+                s.executeUpdate("drop temporary table if exists " + ROWS);
+            } catch (SQLException e) {
+                log.debug("Unable to drop " + ROWS + ": " + e.getMessage());
+            }
+            s.close();
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * @return number of dataset rows of the chunks committed
+     */
+    public int getImportedRows() {
+        return importedRows;
+    }
+
+    /**
+     * @return patient_id of the last patient of the chunks committed, null if none was; the rows of
+     * later patients are left to import
+     */
+    public String getImportedThroughPatientId() {
+        return importedThroughPatientId;
+    }
+
+    public List<String> getStatements() {
+        return statements;
+    }
+
+    public List<String> getChunkStatements() {
+        return chunkStatements;
+    }
+
+    private void executeUpdate(Statement s, String sql) throws SQLException {
+        if (log.isDebugEnabled()) {
+            log.debug(sql);
+        }
+        long t = System.nanoTime();
+        s.executeUpdate(sql);
+        ImportMetrics.stop(ImportMetrics.EXECUTE, sourceTable, t);
+        ImportMetrics.increment(ImportMetrics.STATEMENTS, sourceTable);
+    }
+
+    /**
+     * Cuts the copied rows into chunks of at least {@value #CHUNK_ROWS} rows, without splitting the
+     * rows of a patient
+     *
+     * @return first row id, last row id and number of rows of each chunk
+     */
+    private static List<long[]> getChunks(Connection conn) throws SQLException {
+        List<long[]> chunks = new ArrayList<long[]>();
+        Statement s = conn.createStatement();
+        try {
+            ResultSet rs = s.executeQuery("select row_id, patient_id from " + ROWS + " order by row_id");
+            long first = 0;
+            long last = 0;
+            int rows = 0;
+            String patientId = null;
+            while (rs.next()) {
+                long rowId = rs.getLong(1);
+                String rowPatientId = rs.getString(2);
+                if (rows >= CHUNK_ROWS && !rowPatientId.equals(patientId)) {
+                    chunks.add(new long[]{first, last, rows});
+                    rows = 0;
+                }
+                if (rows == 0) {
+                    first = rowId;
+                }
+                last = rowId;
+                patientId = rowPatientId;
+                rows++;
+            }
+            if (rows > 0) {
+                chunks.add(new long[]{first, last, rows});
+            }
+            rs.close();
+        } finally {
+            s.close();
+        }
+        return chunks;
+    }
+
+    private static String getPatientId(Connection conn, long rowId) throws SQLException {
+        Statement s = conn.createStatement();
+        try {
+            ResultSet rs = s.executeQuery("select patient_id from " + ROWS + " where row_id = " + rowId);
+            String patientId = rs.next() ? rs.getString(1) : null;
+            rs.close();
+            return patientId;
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Adds the pre-specified values of a column's import, with the patient taken from the dataset
+     */
+    private static void appendPrespecifiedValues(SpreadsheetImportTemplateColumn column, StringBuilder names, StringBuilder values) {
+        for (SpreadsheetImportTemplateColumnPrespecifiedValue prespecifiedValue : column.getColumnPrespecifiedValues()) {
+            String columnName = prespecifiedValue.getColumnName();
+            names.append(", ").append(columnName);
+            if ("patient_id".equals(columnName) || "person_id".equals(columnName)) {
+                values.append(", t.patient_id");
+            } else {
+                values.append(", ").append(prespecifiedValue.getPrespecifiedValue().getValue());
+            }
+        }
+    }
+
+    /**
+     * @return data types of the dataset columns, by lower cased column name
+     */
+    private static Map<String, String> getColumnTypes(Connection conn, String migrationDatabase, String sourceTable) throws SQLException {
+        Map<String, String> types = new HashMap<String, String>();
+        PreparedStatement ps = conn.prepareStatement("select column_name, data_type from information_schema.columns "
+                + "where table_schema = ? and table_name = ?");
+        try {
+            ps.setString(1, migrationDatabase);
+            ps.setString(2, sourceTable);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                types.put(rs.getString(1).toLowerCase(Locale.ENGLISH), rs.getString(2).toLowerCase(Locale.ENGLISH));
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        return types;
+    }
+
+    private static String day(String template, String day) {
+        return template.replace(":day", day);
+    }
+
+    private static String quote(String identifier) {
+        return "`" + identifier.replace("`", "``") + "`";
+    }
+
+    private static TemplatePushdown notExpressible(SpreadsheetImportTemplate template, String reason) {
+        if (log.isDebugEnabled()) {
+            log.debug("Template " + template.getName() + " is imported row by row: " + reason);
+        }
+        return null;
+    }
+}
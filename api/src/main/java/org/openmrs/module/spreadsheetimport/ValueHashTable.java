@@ -0,0 +1,172 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.Locale;
+
+/**
+ * Open addressing table of column values by their 64 bit hash, used by {@link DuplicateValueIndex}
+ * and {@link IdentifierPatientIndex}. Values are compared normalized, like MySQL's default
+ * collations compare them, see {@link #normalize(String)}.
+ * <p>
+ * A table created without values only holds hashes, so values sharing a hash share an entry and a
+ * hit has to be confirmed elsewhere. A table created with values keeps each normalized value and an
+ * int with it, and only takes a hash hit when the value matches.
+ */
+class ValueHashTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // a hash of 0 marks a free slot
+    private long[] hashes = new long[INITIAL_CAPACITY];
+
+    private String[] values;
+
+    private int[] payloads;
+
+    private int size;
+
+    /**
+     * @param withValues true to keep the values, and an int with each, besides their hashes
+     */
+    ValueHashTable(boolean withValues) {
+        if (withValues) {
+            values = new String[INITIAL_CAPACITY];
+            payloads = new int[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * @param normalized the normalized value, ignored by a table without values
+     * @return true if the table holds the value, or a value of the same hash if it has no values
+     */
+    synchronized boolean contains(String normalized) {
+        return find(hashOf(normalized), normalized) >= 0;
+    }
+
+    /**
+     * @return the int kept with a value, or missing if the table does not hold the value; only for
+     *         a table with values
+     */
+    synchronized int get(String normalized, int missing) {
+        int i = find(hashOf(normalized), normalized);
+        return i < 0 ? missing : payloads[i];
+    }
+
+    /**
+     * Adds a value
+     *
+     * @param normalized the normalized value
+     * @param payload int kept with the value, ignored by a table without values
+     * @param conflict int kept instead if the value is already held with another payload
+     */
+    synchronized void put(String normalized, int payload, int conflict) {
+        if (size * 2 >= hashes.length) {
+            grow();
+        }
+        insert(hashOf(normalized), normalized, payload, conflict);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the hash a value is stored by, {@link #hash(String)} unless overridden
+     */
+    long hashOf(String normalized) {
+        return hash(normalized);
+    }
+
+    private int find(long hash, String normalized) {
+        int mask = hashes.length - 1;
+        for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == hash && (values == null || values[i].equals(normalized))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long hash, String normalized, int payload, int conflict) {
+        int mask = hashes.length - 1;
+        int i = (int) hash & mask;
+        while (hashes[i] != 0) {
+            if (hashes[i] == hash && (values == null || values[i].equals(normalized))) {
+                if (payloads != null && payloads[i] != payload) {
+                    payloads[i] = conflict;
+                }
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        hashes[i] = hash;
+        if (values != null) {
+            values[i] = normalized;
+            payloads[i] = payload;
+        }
+        size++;
+    }
+
+    private void grow() {
+        long[] oldHashes = hashes;
+        String[] oldValues = values;
+        int[] oldPayloads = payloads;
+        hashes = new long[oldHashes.length * 2];
+        if (oldValues != null) {
+            values = new String[hashes.length];
+            payloads = new int[hashes.length];
+        }
+        size = 0;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0) {
+                if (oldValues == null) {
+                    insert(oldHashes[i], null, 0, 0);
+                } else {
+                    insert(oldHashes[i], oldValues[i], oldPayloads[i], oldPayloads[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param value a value as rendered for SQL, text being quoted
+     * @return the value without its quotes
+     */
+    static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("'") && value.endsWith("'")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    /**
+     * @return the value trimmed and lower cased, as MySQL's default collations compare it
+     */
+    static String normalize(String value) {
+        return value.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * 64 bit FNV-1a of a normalized value, never 0
+     */
+    static long hash(String normalized) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
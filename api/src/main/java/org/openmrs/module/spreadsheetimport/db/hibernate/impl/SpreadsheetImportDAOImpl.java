@@ -16,6 +16,7 @@ package org.openmrs.module.spreadsheetimport.db.hibernate.impl;
 import java.util.List;
 
 import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.CriteriaQuery;
@@ -47,7 +48,30 @@ public class SpreadsheetImportDAOImpl implements SpreadsheetImportDAO {
 	}
 	
 	public SpreadsheetImportTemplate getTemplateById(Integer id) {
-		return (SpreadsheetImportTemplate) sessionFactory.getCurrentSession().get(SpreadsheetImportTemplate.class, id);
+		SpreadsheetImportTemplate template = (SpreadsheetImportTemplate) sessionFactory.getCurrentSession().get(
+		    SpreadsheetImportTemplate.class, id);
+		if (template != null) {
+			initializeGraph(template);
+		}
+		return template;
+	}
+	
+	/**
+	 * The template is kept in the HTTP session by the editor, so its lazy collections must be loaded
+	 * while the Hibernate session is open. With subselect fetching, initializing the collection of
+	 * one element loads it for all of its siblings in a single query.
+	 */
+	private void initializeGraph(SpreadsheetImportTemplate template) {
+		Hibernate.initialize(template.getColumns());
+		Hibernate.initialize(template.getPrespecifiedValues());
+		for (SpreadsheetImportTemplatePrespecifiedValue prespecifiedValue : template.getPrespecifiedValues()) {
+			Hibernate.initialize(prespecifiedValue.getColumnPrespecifiedValues());
+		}
+		for (SpreadsheetImportTemplateColumn column : template.getColumns()) {
+			Hibernate.initialize(column.getColumnPrespecifiedValues());
+			Hibernate.initialize(column.getColumnColumnsImportBefore());
+			Hibernate.initialize(column.getColumnColumnsImportAfter());
+		}
 	}
 	
 	public SpreadsheetImportTemplate saveSpreadsheetImportTemplate(SpreadsheetImportTemplate template) {
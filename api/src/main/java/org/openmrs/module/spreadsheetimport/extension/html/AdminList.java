@@ -48,6 +48,7 @@ public class AdminList extends AdministrationSectionExt {
 		Map<String, String> map = new HashMap<String, String>();
 		
 		map.put("module/spreadsheetimport/spreadsheetimport.list", "Spreadsheet Import Template List");
+		map.put("module/spreadsheetimport/spreadsheetimportMetrics.list", "Spreadsheet Import Metrics");
 		
 		return map;
 	}
@@ -31,6 +31,17 @@ public interface SpreadsheetImportService extends OpenmrsService {
 	@Transactional(readOnly = true)
 	SpreadsheetImportTemplate getTemplateById(Integer id);
 	
+	/**
+	 * Returns a detached working copy of a template for an import run. The template graph is
+	 * loaded once and cached until the template is saved or deleted; every call returns a new copy,
+	 * so concurrent runs never share column state.
+	 * 
+	 * @param id the template id
+	 * @return a detached copy of the template, or null if it does not exist
+	 */
+	@Transactional(readOnly = true)
+	SpreadsheetImportTemplate getTemplateForImport(Integer id);
+	
 	@Transactional
 	SpreadsheetImportTemplate saveSpreadsheetImportTemplate(SpreadsheetImportTemplate template);
 	
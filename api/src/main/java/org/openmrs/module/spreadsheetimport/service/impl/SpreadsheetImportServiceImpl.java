@@ -15,6 +15,8 @@ package org.openmrs.module.spreadsheetimport.service.impl;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hibernate.SessionFactory;
 import org.openmrs.User;
@@ -28,6 +30,9 @@ public class SpreadsheetImportServiceImpl extends BaseOpenmrsService implements
 	
 	SpreadsheetImportDAO dao;
 	
+	/** Detached template graphs used for import runs, by template id */
+	private final Map<Integer, SpreadsheetImportTemplate> importSnapshots = new ConcurrentHashMap<Integer, SpreadsheetImportTemplate>();
+	
 	public SessionFactory getSessionFactory() {
 		return dao.getSessionFactory();
 	}
@@ -44,7 +49,21 @@ public class SpreadsheetImportServiceImpl extends BaseOpenmrsService implements
 		return dao.getTemplateById(id);
 	}
 	
+	public SpreadsheetImportTemplate getTemplateForImport(final Integer id) {
+		SpreadsheetImportTemplate snapshot = importSnapshots.get(id);
+		if (snapshot == null) {
+			SpreadsheetImportTemplate template = dao.getTemplateById(id);
+			if (template == null)
+				return null;
+			snapshot = template.copyForImport();
+			importSnapshots.put(id, snapshot);
+		}
+		return snapshot.copyForImport();
+	}
+	
 	public void deleteSpreadsheetImportTemplate(final SpreadsheetImportTemplate template) {
+		if (template.getId() != null)
+			importSnapshots.remove(template.getId());
 		dao.deleteSpreadsheetImportTemplate(template);
 	}
 	
@@ -64,6 +83,8 @@ public class SpreadsheetImportServiceImpl extends BaseOpenmrsService implements
 			template.setModifiedBy(modifiedBy);
 		}
 		dao.saveSpreadsheetImportTemplate(template);
+		if (template.getId() != null)
+			importSnapshots.remove(template.getId());
 		return template;
 	}
 	
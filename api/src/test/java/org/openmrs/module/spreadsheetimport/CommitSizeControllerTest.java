@@ -0,0 +1,138 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests how {@link CommitSizeController} sizes the chunks of a bulk load
+ */
+public class CommitSizeControllerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(3000);
+
+    @Test
+    public void chunkCommitted_shouldHalveTheSizeAfterALockWait() {
+        CommitSizeController controller = new CommitSizeController(1000, 100, 10000, 2000);
+        controller.lockWaited();
+        controller.chunkCommitted(1000, FAST);
+        Assert.assertEquals(500, controller.getCommitRows());
+    }
+
+    @Test
+    public void chunkCommitted_shouldHalveTheSizeAfterASlowChunk() {
+        CommitSizeController controller = new CommitSizeController(1000, 100, 10000, 2000);
+        controller.chunkCommitted(1000, SLOW);
+        Assert.assertEquals(500, controller.getCommitRows());
+    }
+
+    @Test
+    public void chunkCommitted_shouldForgetLockWaitsOfEarlierChunks() {
+        CommitSizeController controller = new CommitSizeController(1000, 100, 10000, 2000);
+        controller.lockWaited();
+        controller.chunkCommitted(1000, FAST);
+        controller.chunkCommitted(500, FAST);
+        Assert.assertEquals(600, controller.getCommitRows());
+    }
+
+    @Test
+    public void chunkCommitted_shouldGrowByTheMinimumAfterAFastFullChunk() {
+        CommitSizeController controller = new CommitSizeController(1000, 100, 10000, 2000);
+        controller.chunkCommitted(1000, FAST);
+        Assert.assertEquals(1100, controller.getCommitRows());
+        controller.chunkCommitted(1100, FAST);
+        Assert.assertEquals(1200, controller.getCommitRows());
+    }
+
+    @Test
+    public void chunkCommitted_shouldKeepTheSizeAfterAFastPartialChunk() {
+        CommitSizeController controller = new CommitSizeController(1000, 100, 10000, 2000);
+        controller.chunkCommitted(400, FAST);
+        Assert.assertEquals(1000, controller.getCommitRows());
+    }
+
+    @Test
+    public void chunkCommitted_shouldIgnoreEmptyChunks() {
+        CommitSizeController controller = new CommitSizeController(1000, 100, 10000, 2000);
+        controller.lockWaited();
+        controller.chunkCommitted(0, SLOW);
+        Assert.assertEquals(1000, controller.getCommitRows());
+    }
+
+    @Test
+    public void chunkCommitted_shouldNotShrinkBelowTheMinimum() {
+        CommitSizeController controller = new CommitSizeController(150, 100, 10000, 2000);
+        controller.chunkCommitted(150, SLOW);
+        Assert.assertEquals(100, controller.getCommitRows());
+        controller.chunkCommitted(100, SLOW);
+        Assert.assertEquals(100, controller.getCommitRows());
+    }
+
+    @Test
+    public void chunkCommitted_shouldNotGrowBeyondTheMaximum() {
+        CommitSizeController controller = new CommitSizeController(9950, 100, 10000, 2000);
+        controller.chunkCommitted(9950, FAST);
+        Assert.assertEquals(10000, controller.getCommitRows());
+        controller.chunkCommitted(10000, FAST);
+        Assert.assertEquals(10000, controller.getCommitRows());
+    }
+
+    @Test
+    public void chunkCommitted_shouldKeepAPinnedSize() {
+        CommitSizeController controller = new CommitSizeController(500, 500, 500, 2000);
+        controller.chunkCommitted(500, SLOW);
+        Assert.assertEquals(500, controller.getCommitRows());
+        controller.chunkCommitted(500, FAST);
+        Assert.assertEquals(500, controller.getCommitRows());
+    }
+
+    @Test
+    public void CommitSizeController_shouldClampTheInitialSizeToTheLimits() {
+        Assert.assertEquals(100, new CommitSizeController(5, 100, 1000, 2000).getCommitRows());
+        Assert.assertEquals(1000, new CommitSizeController(50000, 100, 1000, 2000).getCommitRows());
+    }
+
+    @Test
+    public void CommitSizeController_shouldRaiseAMaximumBelowTheMinimum() {
+        CommitSizeController controller = new CommitSizeController(50, 200, 100, 2000);
+        Assert.assertEquals(200, controller.getCommitRows());
+        controller.chunkCommitted(200, FAST);
+        Assert.assertEquals(200, controller.getCommitRows());
+    }
+
+    @Test
+    public void CommitSizeController_shouldCommitAtLeastOneRow() {
+        Assert.assertEquals(1, new CommitSizeController(0, 0, 0, 2000).getCommitRows());
+    }
+
+    @Test
+    public void isLockWait_shouldRecognizeDeadlocksAndLockWaitTimeouts() {
+        Assert.assertTrue(CommitSizeController.isLockWait(new SQLException("deadlock", "40001")));
+        Assert.assertTrue(CommitSizeController.isLockWait(new SQLException("lock wait timeout", "41000")));
+        Assert.assertFalse(CommitSizeController.isLockWait(new SQLException("duplicate", "23000")));
+        Assert.assertFalse(CommitSizeController.isLockWait(new IllegalStateException()));
+    }
+
+    @Test
+    public void isDeadlock_shouldOnlyRecognizeDeadlocks() {
+        Assert.assertTrue(CommitSizeController.isDeadlock(new SQLException("deadlock", "40001")));
+        Assert.assertFalse(CommitSizeController.isDeadlock(new SQLException("lock wait timeout", "41000")));
+    }
+}
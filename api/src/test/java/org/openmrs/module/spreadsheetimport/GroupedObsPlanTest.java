@@ -0,0 +1,134 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tests compiling grouped observations against a dataset and extracting the values of its rows
+ */
+public class GroupedObsPlanTest {
+
+    // dataset columns, in result set order
+    private static final String[] LABELS = {"Person_Id", "WEIGHT", "Visit_Date", "Notes", "Height"};
+
+    @Test
+    public void compile_shouldResolveTheColumnsOfEachGroup() throws Exception {
+        GroupedObsPlan plan = GroupedObsPlan.compile(getGroupedObservations(), getMetaData(LABELS));
+        Assert.assertEquals(2, plan.getGroupCount());
+        Assert.assertEquals(1000, plan.getGroupConceptId(0));
+        Assert.assertEquals(2000, plan.getGroupConceptId(1));
+        Assert.assertEquals(0, plan.getFirstColumn(0));
+        Assert.assertEquals(3, plan.getEndColumn(0));
+        Assert.assertEquals(3, plan.getFirstColumn(1));
+        Assert.assertEquals(4, plan.getEndColumn(1));
+        Assert.assertEquals(5089, plan.getQuestionConceptId(0));
+        Assert.assertEquals(3, plan.getTarget(0));
+        Assert.assertEquals(2, plan.getTarget(1));
+        Assert.assertEquals(GroupedObsPlan.NO_TARGET, plan.getTarget(2));
+        Assert.assertEquals(1, plan.getTarget(3));
+    }
+
+    @Test(expected = SQLException.class)
+    public void compile_shouldFailOnAColumnMissingFromTheDataset() throws Exception {
+        GroupedObsPlan.compile(getGroupedObservations(), getMetaData(new String[]{"Person_Id", "Weight", "Visit_Date"}));
+    }
+
+    @Test
+    public void extract_shouldKeepTheValuesOfEachGroup() throws Exception {
+        GroupedObsPlan plan = GroupedObsPlan.compile(getGroupedObservations(), getMetaData(LABELS));
+        GroupedObsPlan.Row row = plan.newRow();
+        plan.extract(new String[]{"12", "70.5", null, "", "  "}, row, Locale.US);
+        Assert.assertTrue(row.hasData(0));
+        Assert.assertFalse(row.hasData(1));
+        Assert.assertEquals("70.5", row.getValue(0));
+        Assert.assertNull(row.getValue(1));
+        Assert.assertNull(row.getValue(2));
+        Assert.assertNull(row.getValue(3));
+    }
+
+    @Test
+    public void extract_shouldReplaceTheValuesOfThePreviousRow() throws Exception {
+        GroupedObsPlan plan = GroupedObsPlan.compile(getGroupedObservations(), getMetaData(LABELS));
+        GroupedObsPlan.Row row = plan.newRow();
+        plan.extract(new String[]{"12", "70.5", null, "stable", "170"}, row, Locale.US);
+        Assert.assertTrue(row.hasData(1));
+        plan.extract(new String[]{"13", null, null, null, null}, row, Locale.US);
+        Assert.assertFalse(row.hasData(0));
+        Assert.assertFalse(row.hasData(1));
+        Assert.assertNull(row.getValue(0));
+        Assert.assertNull(row.getValue(3));
+    }
+
+    @Test
+    public void extract_shouldRewriteDatesOfTheLocaleAsTimestamps() throws Exception {
+        GroupedObsPlan plan = GroupedObsPlan.compile(getGroupedObservations(), getMetaData(LABELS));
+        GroupedObsPlan.Row row = plan.newRow();
+        plan.extract(new String[]{"12", null, "1/15/20", null, null}, row, Locale.US);
+        Assert.assertTrue(row.getValue(1).startsWith("2020-01-15 00:00:00"));
+        plan.extract(new String[]{"12", null, "2020-01-15", null, null}, row, Locale.US);
+        Assert.assertEquals("2020-01-15", row.getValue(1));
+    }
+
+    @Test
+    public void extract_shouldOnlyRewriteDatesOfDatetimeColumns() throws Exception {
+        GroupedObsPlan plan = GroupedObsPlan.compile(getGroupedObservations(), getMetaData(LABELS));
+        GroupedObsPlan.Row row = plan.newRow();
+        plan.extract(new String[]{"12", null, null, "1/15/20", null}, row, Locale.US);
+        Assert.assertEquals("1/15/20", row.getValue(3));
+    }
+
+    /**
+     * @return a group of weight, visit date and height, and one of notes
+     */
+    private static List<GroupedObservations> getGroupedObservations() {
+        Map<String, DatasetColumn> vitals = new LinkedHashMap<String, DatasetColumn>();
+        vitals.put("Weight", new DatasetColumn(5089, "value_numeric"));
+        vitals.put("Visit_Date", new DatasetColumn(1000, "value_datetime"));
+        vitals.put("Height", new DatasetColumn(5090, "value_complex"));
+        Map<String, DatasetColumn> notes = new LinkedHashMap<String, DatasetColumn>();
+        notes.put("Notes", new DatasetColumn(160632, "value_text"));
+        List<GroupedObservations> groups = new ArrayList<GroupedObservations>();
+        groups.add(new GroupedObservations(1000, vitals));
+        groups.add(new GroupedObservations(2000, notes));
+        return groups;
+    }
+
+    private static ResultSetMetaData getMetaData(final String[] labels) {
+        return (ResultSetMetaData) Proxy.newProxyInstance(GroupedObsPlanTest.class.getClassLoader(),
+                new Class[]{ResultSetMetaData.class}, new InvocationHandler() {
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getColumnCount".equals(method.getName())) {
+                            return labels.length;
+                        } else if ("getColumnLabel".equals(method.getName())) {
+                            return labels[(Integer) args[0] - 1];
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link PatientVisitCache}
+ */
+public class PatientVisitCacheTest {
+
+    @Test
+    public void get_shouldReturnTheVisitPutForTheSamePatientAndDay() {
+        PatientVisitCache visits = new PatientVisitCache();
+        Assert.assertNull(visits.get("7", "2020-01-15"));
+        visits.put("2020-01-15", "301");
+        Assert.assertEquals("301", visits.get("7", "2020-01-15"));
+        Assert.assertNull(visits.get("7", "2020-01-16"));
+    }
+
+    @Test
+    public void get_shouldForgetTheVisitsOfThePreviousPatient() {
+        PatientVisitCache visits = new PatientVisitCache();
+        visits.get("7", "2020-01-15");
+        visits.put("2020-01-15", "301");
+        Assert.assertNull(visits.get("8", "2020-01-15"));
+        // patient 7 is not remembered either once patient 8 is imported
+        Assert.assertNull(visits.get("7", "2020-01-15"));
+    }
+
+    @Test
+    public void clear_shouldForgetTheVisitsOfARolledBackRow() {
+        PatientVisitCache visits = new PatientVisitCache();
+        visits.get("7", "2020-01-15");
+        visits.put("2020-01-15", "301");
+        visits.clear();
+        Assert.assertNull(visits.get("7", "2020-01-15"));
+    }
+
+    @Test
+    public void get_shouldCountHitsAndMisses() {
+        String previous = ImportMetrics.setDataset("PatientVisitCacheTest");
+        try {
+            PatientVisitCache visits = new PatientVisitCache();
+            visits.get("7", "2020-01-15");
+            visits.put("2020-01-15", "301");
+            visits.get("7", "2020-01-15");
+            visits.get("7", "2020-01-15");
+            Assert.assertEquals(1, count(ImportMetrics.VISIT_CACHE_MISSES));
+            Assert.assertEquals(2, count(ImportMetrics.VISIT_CACHE_HITS));
+        } finally {
+            ImportMetrics.restoreDataset(previous);
+        }
+    }
+
+    private static long count(String name) {
+        long count = 0;
+        for (ImportMetrics.Counter counter : ImportMetrics.getCounters()) {
+            if (counter.getName().equals(name) && "PatientVisitCacheTest".equals(counter.getDataset())) {
+                count += counter.getCount();
+            }
+        }
+        return count;
+    }
+}
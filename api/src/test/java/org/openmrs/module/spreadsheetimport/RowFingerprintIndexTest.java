@@ -0,0 +1,64 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that row fingerprints tell apart rows which only differ in how their values are split
+ */
+public class RowFingerprintIndexTest {
+
+    @Test
+    public void fingerprint_shouldBeTheSameForEqualRows() {
+        Assert.assertEquals(fingerprint("12", "2020-01-15", null), fingerprint("12", "2020-01-15", null));
+    }
+
+    @Test
+    public void fingerprint_shouldTellNullAndEmptyApart() {
+        assertDistinct(fingerprint((String) null), fingerprint(""));
+        assertDistinct(fingerprint("a", null), fingerprint("a", ""));
+    }
+
+    @Test
+    public void fingerprint_shouldTellAnEmptyRowFromARowOfAnEmptyValue() {
+        assertDistinct(fingerprint(), fingerprint(""));
+        assertDistinct(fingerprint(), fingerprint((String) null));
+    }
+
+    @Test
+    public void fingerprint_shouldTellValuesSplitDifferentlyApart() {
+        assertDistinct(fingerprint("ab", ""), fingerprint("a", "b"));
+        assertDistinct(fingerprint("a", "bc"), fingerprint("ab", "c"));
+        assertDistinct(fingerprint("a\u001fb"), fingerprint("a", "b"));
+        assertDistinct(fingerprint("a\u0000"), fingerprint("a", null));
+        assertDistinct(fingerprint("a\u001f\u0001b"), fingerprint("a", "b"));
+        assertDistinct(fingerprint("a\u001f\u0000"), fingerprint("a", null));
+    }
+
+    @Test
+    public void fingerprint_shouldDependOnTheOrderOfTheValues() {
+        assertDistinct(fingerprint("a", "b"), fingerprint("b", "a"));
+        assertDistinct(fingerprint(null, "a"), fingerprint("a", null));
+    }
+
+    private static long fingerprint(String... values) {
+        return RowFingerprintIndex.fingerprint(values);
+    }
+
+    private static void assertDistinct(long a, long b) {
+        Assert.assertTrue("fingerprints should differ", a != b);
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the token buckets of {@link ImportThrottle}. Waits are only compared within a tolerance,
+ * since the buckets refill with the time the test takes.
+ */
+public class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static final long TOLERANCE = TimeUnit.MILLISECONDS.toNanos(200);
+
+    @Test
+    public void take_shouldNotWaitWithoutALimit() {
+        ImportThrottle.TokenBucket bucket = new ImportThrottle.TokenBucket();
+        Assert.assertFalse(bucket.isLimited());
+        Assert.assertEquals(0, bucket.take(1, 1000000));
+        bucket.setRate(0);
+        Assert.assertEquals(0, bucket.take(0.5, 1000000));
+    }
+
+    @Test
+    public void take_shouldWaitForTokensBeyondTheRate() {
+        ImportThrottle.TokenBucket bucket = new ImportThrottle.TokenBucket();
+        bucket.setRate(10);
+        Assert.assertTrue(bucket.isLimited());
+        assertAbout(SECOND, bucket.take(1, 10));
+    }
+
+    @Test
+    public void take_shouldAddUpTheWaitsOfTokensBorrowed() {
+        ImportThrottle.TokenBucket bucket = new ImportThrottle.TokenBucket();
+        bucket.setRate(10);
+        assertAbout(SECOND, bucket.take(1, 10));
+        assertAbout(2 * SECOND, bucket.take(1, 10));
+    }
+
+    @Test
+    public void take_shouldScaleTheRateByTheFactor() {
+        ImportThrottle.TokenBucket bucket = new ImportThrottle.TokenBucket();
+        bucket.setRate(100);
+        assertAbout(SECOND, bucket.take(0.5, 50));
+    }
+
+    @Test
+    public void take_shouldNotWaitForTokensRefilled() throws Exception {
+        ImportThrottle.TokenBucket bucket = new ImportThrottle.TokenBucket();
+        bucket.setRate(1000);
+        Thread.sleep(100);
+        Assert.assertEquals(0, bucket.take(1, 10));
+    }
+
+    @Test
+    public void setRate_shouldNotKeepMoreThanASecondOfTokens() throws Exception {
+        ImportThrottle.TokenBucket bucket = new ImportThrottle.TokenBucket();
+        bucket.setRate(1000);
+        Thread.sleep(100);
+        bucket.take(1, 0);
+        bucket.setRate(10);
+        // the tokens saved up at the higher rate are capped at a second of the new one
+        assertAbout(SECOND, bucket.take(1, 20));
+    }
+
+    private static void assertAbout(long expectedNanos, long actualNanos) {
+        Assert.assertTrue("expected about " + expectedNanos + " ns but was " + actualNanos,
+                Math.abs(expectedNanos - actualNanos) <= TOLERANCE);
+    }
+}
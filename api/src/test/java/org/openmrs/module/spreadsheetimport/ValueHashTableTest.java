@@ -0,0 +1,134 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the table behind {@link DuplicateValueIndex} and {@link IdentifierPatientIndex}, forcing
+ * hash collisions with a table which stores every value under the same hash
+ */
+public class ValueHashTableTest {
+
+    private static final int AMBIGUOUS = 0;
+
+    private static final int MISSING = -1;
+
+    /**
+     * A table in which all values collide
+     */
+    private static class CollidingTable extends ValueHashTable {
+
+        CollidingTable(boolean withValues) {
+            super(withValues);
+        }
+
+        @Override
+        long hashOf(String normalized) {
+            return 42;
+        }
+    }
+
+    @Test
+    public void get_shouldTellCollidingValuesApart() {
+        ValueHashTable table = new CollidingTable(true);
+        table.put("abc-1", 1, AMBIGUOUS);
+        table.put("abc-2", 2, AMBIGUOUS);
+        Assert.assertEquals(1, table.get("abc-1", MISSING));
+        Assert.assertEquals(2, table.get("abc-2", MISSING));
+        Assert.assertEquals(MISSING, table.get("abc-3", MISSING));
+        Assert.assertTrue(table.contains("abc-2"));
+        Assert.assertFalse(table.contains("abc-3"));
+        Assert.assertEquals(2, table.size());
+    }
+
+    @Test
+    public void contains_shouldTakeAnyValueOfTheSameHashWithoutValues() {
+        ValueHashTable table = new CollidingTable(false);
+        table.put("abc-1", 0, 0);
+        // the hit is confirmed by the caller
+        Assert.assertTrue(table.contains("abc-2"));
+        table.put("abc-2", 0, 0);
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void put_shouldMarkAValueHeldWithAnotherPayloadAsConflicting() {
+        ValueHashTable table = new ValueHashTable(true);
+        table.put("abc-1", 7, AMBIGUOUS);
+        table.put("abc-1", 7, AMBIGUOUS);
+        Assert.assertEquals(7, table.get("abc-1", MISSING));
+        table.put("abc-1", 8, AMBIGUOUS);
+        Assert.assertEquals(AMBIGUOUS, table.get("abc-1", MISSING));
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void put_shouldKeepCollidingValuesWhenGrowing() {
+        ValueHashTable table = new CollidingTable(true);
+        for (int i = 1; i <= 3000; i++) {
+            table.put("id-" + i, i, AMBIGUOUS);
+        }
+        Assert.assertEquals(3000, table.size());
+        for (int i = 1; i <= 3000; i++) {
+            Assert.assertEquals(i, table.get("id-" + i, MISSING));
+        }
+    }
+
+    @Test
+    public void put_shouldKeepConflictsWhenGrowing() {
+        ValueHashTable table = new ValueHashTable(true);
+        table.put("shared", 1, AMBIGUOUS);
+        table.put("shared", 2, AMBIGUOUS);
+        for (int i = 1; i <= 3000; i++) {
+            table.put("id-" + i, i, AMBIGUOUS);
+        }
+        Assert.assertEquals(AMBIGUOUS, table.get("shared", MISSING));
+        Assert.assertEquals(3000, table.get("id-3000", MISSING));
+    }
+
+    @Test
+    public void contains_shouldFindHashesAfterGrowing() {
+        ValueHashTable table = new ValueHashTable(false);
+        for (int i = 1; i <= 3000; i++) {
+            table.put("value " + i, 0, 0);
+        }
+        Assert.assertEquals(3000, table.size());
+        for (int i = 1; i <= 3000; i++) {
+            Assert.assertTrue(table.contains("value " + i));
+        }
+    }
+
+    @Test
+    public void normalize_shouldTrimAndLowerCase() {
+        Assert.assertEquals("abc-1", ValueHashTable.normalize("  ABC-1\t"));
+        Assert.assertEquals(ValueHashTable.hash("abc-1"), ValueHashTable.hash(ValueHashTable.normalize(" Abc-1 ")));
+    }
+
+    @Test
+    public void unquote_shouldOnlyRemoveEnclosingQuotes() {
+        Assert.assertEquals("abc", ValueHashTable.unquote("'abc'"));
+        Assert.assertEquals("", ValueHashTable.unquote("''"));
+        Assert.assertEquals("'", ValueHashTable.unquote("'"));
+        Assert.assertEquals("'abc", ValueHashTable.unquote("'abc"));
+        Assert.assertEquals("123", ValueHashTable.unquote("123"));
+    }
+
+    @Test
+    public void hash_shouldNeverBeZero() {
+        Assert.assertTrue(ValueHashTable.hash("") != 0);
+        Assert.assertTrue(ValueHashTable.hash("abc-1") != ValueHashTable.hash("abc-2"));
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.json.simple.parser.ParseException;
+import org.openmrs.module.spreadsheetimport.DbImportUtil;
+import org.openmrs.module.spreadsheetimport.GroupedObservations;
+
+/**
+ * In-memory H2 database in MySQL mode holding the subset of the OpenMRS schema written by the
+ * import, plus synthetic migration datasets.
+ */
+public class BenchmarkDatabase {
+
+	public static final String HTS_GROUPED_OBS_CONFIG = "HtsGroupedObservations.json";
+
+	/**
+	 * Opens (and creates on first use) a named in-memory database. The database lives until the JVM
+	 * exits, so several connections can share it.
+	 */
+	public static Connection open(String name) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+		Statement s = conn.createStatement();
+		try {
+			s.execute("create table if not exists benchmark_schema_loaded (id int)");
+			if (!s.executeQuery("select 1 from benchmark_schema_loaded").next()) {
+				for (String sql : readResource("benchmark-schema.sql").split(";")) {
+					if (sql.replaceAll("--.*", "").trim().length() > 0) {
+						s.execute(sql);
+					}
+				}
+				s.execute("insert into benchmark_schema_loaded values (1)");
+			}
+		}
+		finally {
+			s.close();
+		}
+		return conn;
+	}
+
+	/**
+	 * Grouped observations configured for the HTS datasets, as shipped in testdata
+	 */
+	public static List<GroupedObservations> loadGroupedObservations(String configFile) throws IOException, ParseException {
+		Reader reader = new InputStreamReader(getResource(configFile), "UTF-8");
+		try {
+			return DbImportUtil.parseGroupedDatasetConfig(reader);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Creates and fills a tr_hts_initial like dataset with the columns of
+	 * {@link BenchmarkTemplates#htsTemplate(int)} and of the HTS grouped observations.
+	 *
+	 * @param conn connection to the benchmark database
+	 * @param tableName name of the dataset table
+	 * @param rows number of rows
+	 * @param seed random seed, the same seed gives the same data
+	 */
+	public static void createHtsDataset(Connection conn, String tableName, int rows, long seed) throws Exception {
+		List<GroupedObservations> groups = loadGroupedObservations(HTS_GROUPED_OBS_CONFIG);
+
+		StringBuilder ddl = new StringBuilder("create table " + tableName
+		        + " (Person_Id varchar(20), patient_id int, Encounter_Date date, " + BenchmarkTemplates.ENCOUNTER_COLUMN
+		        + " varchar(20)");
+		StringBuilder insert = new StringBuilder("insert into " + tableName + " values (?, ?, ?, ?");
+		for (String[] column : BenchmarkTemplates.HTS_OBS_COLUMNS) {
+			ddl.append(", ").append(column[0]).append(" varchar(255)");
+			insert.append(", ?");
+		}
+		for (GroupedObservations group : groups) {
+			for (String column : group.getDatasetColumns().keySet()) {
+				ddl.append(", ").append(column).append(" varchar(255)");
+				insert.append(", ?");
+			}
+		}
+		ddl.append(")");
+		insert.append(")");
+
+		Statement s = conn.createStatement();
+		s.execute("drop table if exists " + tableName);
+		s.execute(ddl.toString());
+		s.close();
+
+		Random random = new Random(seed);
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		Calendar calendar = Calendar.getInstance();
+		PreparedStatement ps = conn.prepareStatement(insert.toString());
+		for (int row = 0; row < rows; row++) {
+			int idx = 1;
+			ps.setString(idx++, "MIG" + (100000 + row));
+			ps.setInt(idx++, row + 1);
+			calendar.set(2015 + random.nextInt(5), random.nextInt(12), 1 + random.nextInt(28));
+			ps.setDate(idx++, new java.sql.Date(calendar.getTimeInMillis()));
+			ps.setString(idx++, "");
+			for (String[] column : BenchmarkTemplates.HTS_OBS_COLUMNS) {
+				ps.setString(idx++, randomValue(column[1], random, dateFormat, calendar));
+			}
+			for (GroupedObservations group : groups) {
+				boolean tested = random.nextInt(4) > 0;
+				for (String column : group.getDatasetColumns().keySet()) {
+					String datatype = group.getDatasetColumns().get(column).getQuestionConceptDatatype();
+					ps.setString(idx++, tested ? randomValue(datatype, random, dateFormat, calendar) : null);
+				}
+			}
+			ps.addBatch();
+			if (row % 1000 == 999) {
+				ps.executeBatch();
+			}
+		}
+		ps.executeBatch();
+		ps.close();
+	}
+
+	/**
+	 * MySQL uuid() for H2, registered by benchmark-schema.sql
+	 */
+	public static String uuid() {
+		return UUID.randomUUID().toString();
+	}
+
+	static String randomValue(String datatype, Random random, SimpleDateFormat dateFormat, Calendar calendar) {
+		if (random.nextInt(10) == 0) {
+			return "";
+		}
+		if ("value_coded".equals(datatype)) {
+			return String.valueOf(1000 + random.nextInt(200));
+		} else if ("value_numeric".equals(datatype)) {
+			return random.nextBoolean() ? String.valueOf(random.nextInt(120)) : String.valueOf(random.nextInt(1000) / 10.0);
+		} else if ("value_datetime".equals(datatype)) {
+			calendar.set(2015 + random.nextInt(5), random.nextInt(12), 1 + random.nextInt(28));
+			return dateFormat.format(calendar.getTime());
+		}
+		return "Lot O'" + random.nextInt(100000);
+	}
+
+	static InputStream getResource(String name) throws IOException {
+		InputStream in = BenchmarkDatabase.class.getClassLoader().getResourceAsStream(name);
+		if (in == null) {
+			throw new IOException("Missing resource " + name);
+		}
+		return in;
+	}
+
+	static String readResource(String name) throws IOException {
+		Reader reader = new InputStreamReader(getResource(name), "UTF-8");
+		try {
+			StringBuilder result = new StringBuilder();
+			char[] buffer = new char[4096];
+			int read;
+			while ((read = reader.read(buffer)) > 0) {
+				result.append(buffer, 0, read);
+			}
+			return result.toString();
+		}
+		finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.SessionFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.module.spreadsheetimport.DatabaseBackend;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
+import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
+
+/**
+ * Read only stand-in for the module service when OpenMRS runs without the module, as in the end to
+ * end benchmark. Templates are loaded with {@link JdbcTemplateLoader} and cached.
+ */
+public class BenchmarkSpreadsheetImportService implements SpreadsheetImportService {
+
+	private final Map<Integer, SpreadsheetImportTemplate> templates = new HashMap<Integer, SpreadsheetImportTemplate>();
+
+	public SessionFactory getSessionFactory() {
+		return null;
+	}
+
+	public List<SpreadsheetImportTemplate> getAllTemplates() {
+		throw new UnsupportedOperationException();
+	}
+
+	public synchronized SpreadsheetImportTemplate getTemplateById(Integer id) {
+		if (!templates.containsKey(id)) {
+			try {
+				Connection conn = DatabaseBackend.openConnection();
+				try {
+					templates.put(id, new JdbcTemplateLoader(conn).load(id));
+				}
+				finally {
+					conn.close();
+				}
+			}
+			catch (Exception e) {
+				throw new APIException("Unable to load template " + id, e);
+			}
+		}
+		return templates.get(id);
+	}
+
+	public SpreadsheetImportTemplate getTemplateForImport(Integer id) {
+		SpreadsheetImportTemplate template = getTemplateById(id);
+		return template == null ? null : template.copyForImport();
+	}
+
+	public SpreadsheetImportTemplate saveSpreadsheetImportTemplate(SpreadsheetImportTemplate template) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void deleteSpreadsheetImportTemplate(SpreadsheetImportTemplate template) {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getPredfinedValueById(int id) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void onStartup() {
+	}
+
+	public void onShutdown() {
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumn;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumnColumn;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumnPrespecifiedValue;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplatePrespecifiedValue;
+
+/**
+ * Builds templates in memory, shaped like the encounter templates used for migration: one encounter
+ * column followed by obs columns which reference the encounter. Every entity gets an id, as the
+ * template collections are sorted by id.
+ */
+public class BenchmarkTemplates {
+
+	public static final String ENCOUNTER_COLUMN = "Encounter_ID";
+
+	/**
+	 * Obs columns of the HTS template: dataset column, obs value column, question concept
+	 */
+	public static final String[][] HTS_OBS_COLUMNS = { { "Ever_Tested", "value_coded", "164401" },
+	        { "Months_Since_Last_Test", "value_numeric", "164400" }, { "Client_Tested_As", "value_coded", "164959" },
+	        { "Test_Strategy", "value_coded", "164956" }, { "Final_Result", "value_coded", "159427" },
+	        { "Date_Result_Given", "value_datetime", "164848" }, { "Remarks", "value_text", "160632" } };
+
+	private int nextId = 1;
+
+	private final SpreadsheetImportTemplate template = new SpreadsheetImportTemplate();
+
+	private BenchmarkTemplates(String name) {
+		template.setId(1);
+		template.setName(name);
+		template.setEncounter(true);
+	}
+
+	/**
+	 * The HTS initial template
+	 *
+	 * @param extraObsColumns number of additional value_text obs columns, named Obs_1, Obs_2 and so
+	 *            on, to widen the template. These columns are not present in the benchmark dataset.
+	 */
+	public static SpreadsheetImportTemplate htsTemplate(int extraObsColumns) {
+		BenchmarkTemplates builder = new BenchmarkTemplates("HTS Initial");
+
+		SpreadsheetImportTemplateColumn encounter = builder.addColumn(ENCOUNTER_COLUMN, "encounter.encounter_id", 0);
+		builder.prespecify(encounter, "encounter_type", "encounter_type.encounter_type_id", "9");
+		builder.prespecify(encounter, "form_id", "form.form_id", "13");
+		builder.prespecify(encounter, "location_id", "location.location_id", "1");
+		// replaced with the patient of the row by importData
+		builder.prespecify(encounter, "patient_id", "patient.patient_id", "0");
+
+		int idx = 1;
+		for (String[] column : HTS_OBS_COLUMNS) {
+			builder.addObsColumn(encounter, column[0], column[1], column[2], idx++);
+		}
+		for (int i = 1; i <= extraObsColumns; i++) {
+			builder.addObsColumn(encounter, "Obs_" + i, "value_text", "160632", idx++);
+		}
+		return builder.template;
+	}
+
+	private SpreadsheetImportTemplateColumn addColumn(String name, String tableDotColumn, int importIdx) {
+		SpreadsheetImportTemplateColumn column = new SpreadsheetImportTemplateColumn();
+		column.setId(nextId++);
+		column.setTemplate(template);
+		column.setName(name);
+		column.setTableDotColumn(tableDotColumn);
+		column.setDatasetIdx(importIdx);
+		column.setImportIdx(importIdx);
+		column.setDisallowDuplicateValue(false);
+		template.getColumns().add(column);
+		return column;
+	}
+
+	private void addObsColumn(SpreadsheetImportTemplateColumn encounter, String name, String valueColumn,
+	                          String conceptId, int importIdx) {
+		SpreadsheetImportTemplateColumn column = addColumn(name, "obs." + valueColumn, importIdx);
+		prespecify(column, "concept_id", "concept.concept_id", conceptId);
+		// replaced with the patient of the row by importData
+		prespecify(column, "person_id", "person.person_id", "0");
+
+		SpreadsheetImportTemplateColumnColumn columnColumn = new SpreadsheetImportTemplateColumnColumn();
+		columnColumn.setId(nextId++);
+		columnColumn.setColumnImportFirst(encounter);
+		columnColumn.setColumnImportNext(column);
+		columnColumn.setColumnName("encounter_id");
+		column.getColumnColumnsImportBefore().add(columnColumn);
+		encounter.getColumnColumnsImportAfter().add(columnColumn);
+	}
+
+	private void prespecify(SpreadsheetImportTemplateColumn column, String columnName, String tableDotColumn, String value) {
+		SpreadsheetImportTemplatePrespecifiedValue prespecifiedValue = new SpreadsheetImportTemplatePrespecifiedValue();
+		prespecifiedValue.setId(nextId++);
+		prespecifiedValue.setTemplate(template);
+		prespecifiedValue.setTableDotColumn(tableDotColumn);
+		prespecifiedValue.setValue(value);
+		template.getPrespecifiedValues().add(prespecifiedValue);
+
+		SpreadsheetImportTemplateColumnPrespecifiedValue columnPrespecifiedValue = new SpreadsheetImportTemplateColumnPrespecifiedValue();
+		columnPrespecifiedValue.setId(nextId++);
+		columnPrespecifiedValue.setColumn(column);
+		columnPrespecifiedValue.setPrespecifiedValue(prespecifiedValue);
+		columnPrespecifiedValue.setColumnName(columnName);
+		prespecifiedValue.getColumnPrespecifiedValues().add(columnPrespecifiedValue);
+		column.getColumnPrespecifiedValues().add(columnPrespecifiedValue);
+	}
+}
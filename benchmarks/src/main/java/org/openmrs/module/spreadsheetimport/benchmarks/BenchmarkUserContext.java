@@ -0,0 +1,50 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.util.Locale;
+
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+
+/**
+ * User context standing in for an authenticated session, so import code calling
+ * Context.getAuthenticatedUser and Context.getLocale runs without a running OpenMRS.
+ */
+public class BenchmarkUserContext extends UserContext {
+
+	private final User user = new User(1);
+
+	@Override
+	public User getAuthenticatedUser() {
+		return user;
+	}
+
+	@Override
+	public Locale getLocale() {
+		return Locale.ENGLISH;
+	}
+
+	/**
+	 * Binds a benchmark user context to the current thread
+	 */
+	public static void install() {
+		Context.setUserContext(new BenchmarkUserContext());
+	}
+
+	public static void uninstall() {
+		Context.clearUserContext();
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes each dataset to &lt;directory&gt;/&lt;dataset&gt;.csv with a header row. Dates are written
+ * as yyyy-MM-dd and nulls as empty fields, so the files load with LOAD DATA INFILE ... FIELDS
+ * TERMINATED BY ',' OPTIONALLY ENCLOSED BY '"' IGNORE 1 LINES.
+ */
+public class CsvDatasetWriter implements DatasetWriter {
+
+	private final File directory;
+
+	private Writer out;
+
+	public CsvDatasetWriter(File directory) {
+		this.directory = directory;
+		directory.mkdirs();
+	}
+
+	public void begin(String dataset, List<SyntheticColumn> columns) throws Exception {
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, dataset + ".csv")), "UTF-8"),
+		        1 << 16);
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			out.write(columns.get(i).getName());
+		}
+		out.write('\n');
+	}
+
+	public void row(Object[] values) throws Exception {
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			if (values[i] != null) {
+				// java.sql.Date prints as yyyy-MM-dd
+				String value = values[i].toString();
+				if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0) {
+					out.write('"');
+					out.write(value.replace("\"", "\"\""));
+					out.write('"');
+				} else {
+					out.write(value);
+				}
+			}
+		}
+		out.write('\n');
+	}
+
+	public void end() throws Exception {
+		out.close();
+		out = null;
+	}
+
+	public void close() throws Exception {
+		if (out != null) {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.util.List;
+
+/**
+ * Destination of generated datasets. Datasets are written one at a time: begin, rows, end.
+ */
+public interface DatasetWriter {
+
+	/**
+	 * Starts a dataset, replacing any existing dataset of the same name
+	 */
+	void begin(String dataset, List<SyntheticColumn> columns) throws Exception;
+
+	/**
+	 * Writes one row. Values are Integer, Double, String, java.sql.Date or null, in column order.
+	 */
+	void row(Object[] values) throws Exception;
+
+	void end() throws Exception;
+
+	void close() throws Exception;
+}
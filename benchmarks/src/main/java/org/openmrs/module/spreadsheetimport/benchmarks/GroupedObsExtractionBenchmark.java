@@ -0,0 +1,103 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.spreadsheetimport.GroupedObsPlan;
+import org.openmrs.module.spreadsheetimport.GroupedObservations;
+
+/**
+ * Extraction of the HTS grouped observations from a dataset result set with a compiled
+ * {@link GroupedObsPlan}. Includes reading the rows from H2; {@link #readRows()} gives the cost of
+ * reading alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupedObsExtractionBenchmark {
+
+	private static final int ROWS = 1000;
+
+	private Connection conn;
+
+	private List<GroupedObservations> groupedObservations;
+
+	@Setup
+	public void setUp() throws Exception {
+		conn = BenchmarkDatabase.open("grouped_obs_extraction");
+		BenchmarkDatabase.createHtsDataset(conn, "tr_hts_initial", ROWS, 42);
+		groupedObservations = BenchmarkDatabase.loadGroupedObservations(BenchmarkDatabase.HTS_GROUPED_OBS_CONFIG);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		conn.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public int extract() throws Exception {
+		int groupsWithData = 0;
+		Statement s = conn.createStatement();
+		ResultSet rs = s.executeQuery("select * from tr_hts_initial");
+		GroupedObsPlan plan = GroupedObsPlan.compile(groupedObservations, rs.getMetaData());
+		GroupedObsPlan.Row row = plan.newRow();
+		while (rs.next()) {
+			plan.extract(rs, row, Locale.ENGLISH);
+			for (int g = 0; g < plan.getGroupCount(); g++) {
+				if (row.hasData(g)) {
+					groupsWithData++;
+				}
+			}
+		}
+		rs.close();
+		s.close();
+		return groupsWithData;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public int readRows() throws Exception {
+		int rows = 0;
+		Statement s = conn.createStatement();
+		ResultSet rs = s.executeQuery("select * from tr_hts_initial");
+		while (rs.next()) {
+			rows++;
+		}
+		rs.close();
+		s.close();
+		return rows;
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.spreadsheetimport.DatabaseBackend;
+import org.openmrs.module.spreadsheetimport.DbImportUtil;
+import org.openmrs.module.spreadsheetimport.GroupedObsPlan;
+import org.openmrs.module.spreadsheetimport.GroupedObservations;
+import org.openmrs.module.spreadsheetimport.RowValues;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumn;
+import org.openmrs.module.spreadsheetimport.UniqueImport;
+
+/**
+ * The per row work of DbImportUtil.importTemplate for the HTS initial dataset: binding the row to
+ * the template, extracting grouped observations and DatabaseBackend.importData, which creates the
+ * visit, the encounter and its obs. Every row is rolled back so the database does not grow between
+ * iterations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ImportDataBenchmark {
+
+	private static final int ROWS = 200;
+
+	private Connection datasetConn;
+
+	private Connection importConn;
+
+	private SpreadsheetImportTemplate template;
+
+	private List<GroupedObservations> groupedObservations;
+
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+	@Setup
+	public void setUp() throws Exception {
+		// user contexts are bound to the thread, setup runs on the benchmark thread for thread state
+		BenchmarkUserContext.install();
+		datasetConn = BenchmarkDatabase.open("import_data");
+		importConn = BenchmarkDatabase.open("import_data");
+		BenchmarkDatabase.createHtsDataset(datasetConn, "tr_hts_initial", ROWS, 42);
+		template = BenchmarkTemplates.htsTemplate(0);
+		groupedObservations = BenchmarkDatabase.loadGroupedObservations(BenchmarkDatabase.HTS_GROUPED_OBS_CONFIG);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		importConn.close();
+		datasetConn.close();
+		BenchmarkUserContext.uninstall();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public int importRows() throws Exception {
+		Locale locale = Locale.ENGLISH;
+		int imported = 0;
+		Statement s = datasetConn.createStatement();
+		ResultSet rs = s.executeQuery("select * from tr_hts_initial");
+		RowValues values = new RowValues(template);
+		GroupedObsPlan plan = GroupedObsPlan.compile(groupedObservations, rs.getMetaData());
+		GroupedObsPlan.Row groupedValues = plan.newRow();
+		while (rs.next()) {
+			String patientId = rs.getString("patient_id");
+			String encounterDate = rs.getDate("Encounter_Date") == null ? null : dateFormat.format(rs.getDate("Encounter_Date"));
+
+			Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData = template
+			        .getMapOfUniqueImportToColumnSetSortedByImportIdx();
+			for (Set<SpreadsheetImportTemplateColumn> columnSet : rowData.values()) {
+				for (SpreadsheetImportTemplateColumn column : columnSet) {
+					Object value = DbImportUtil.toSqlValue(DbImportUtil.decodeSourceValue(rs.getString(column.getName()), locale), true);
+					values.setValue(column, value == null ? "" : value);
+				}
+			}
+			plan.extract(rs, groupedValues, locale);
+
+			if (DatabaseBackend.importData(rowData, values, encounterDate, patientId, plan, groupedValues, true, importConn) != null) {
+				imported++;
+			}
+		}
+		rs.close();
+		s.close();
+		return imported;
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Writes datasets as tables of a database, e.g. the migration database of a local MySQL or the
+ * in-memory H2 database of the benchmarks. Rows are inserted in batches, committed per batch.
+ */
+public class JdbcDatasetWriter implements DatasetWriter {
+
+	private static final int BATCH_SIZE = 1000;
+
+	private final Connection conn;
+
+	private PreparedStatement insert;
+
+	private int pending;
+
+	public JdbcDatasetWriter(Connection conn) throws Exception {
+		this.conn = conn;
+		conn.setAutoCommit(false);
+	}
+
+	public void begin(String dataset, List<SyntheticColumn> columns) throws Exception {
+		StringBuilder ddl = new StringBuilder("create table " + dataset + " (");
+		StringBuilder sql = new StringBuilder("insert into " + dataset + " values (");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				ddl.append(", ");
+				sql.append(", ");
+			}
+			ddl.append(columns.get(i).getName()).append(" ").append(columns.get(i).getKind().getSqlType());
+			sql.append("?");
+		}
+		ddl.append(")");
+		sql.append(")");
+
+		Statement s = conn.createStatement();
+		try {
+			s.execute("drop table if exists " + dataset);
+			s.execute(ddl.toString());
+		}
+		finally {
+			s.close();
+		}
+		conn.commit();
+
+		insert = conn.prepareStatement(sql.toString());
+		pending = 0;
+	}
+
+	public void row(Object[] values) throws Exception {
+		for (int i = 0; i < values.length; i++) {
+			insert.setObject(i + 1, values[i]);
+		}
+		insert.addBatch();
+		if (++pending == BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	public void end() throws Exception {
+		flush();
+		insert.close();
+		insert = null;
+	}
+
+	public void close() throws Exception {
+		conn.close();
+	}
+
+	private void flush() throws Exception {
+		if (pending > 0) {
+			insert.executeBatch();
+			conn.commit();
+			pending = 0;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumn;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumnColumn;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumnPrespecifiedValue;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplatePrespecifiedValue;
+
+/**
+ * Loads template graphs straight from the spreadsheetimport tables, for benchmarks which run
+ * OpenMRS without the module's Hibernate mappings.
+ */
+public class JdbcTemplateLoader {
+
+	private final Connection conn;
+
+	public JdbcTemplateLoader(Connection conn) {
+		this.conn = conn;
+	}
+
+	/**
+	 * @return the template with its columns, pre-specified values and column dependencies, or null
+	 *         if there is no template with this id
+	 */
+	public SpreadsheetImportTemplate load(Integer id) throws SQLException {
+		SpreadsheetImportTemplate template = null;
+		ResultSet rs = query("select id, name, description, encounter, target_form from spreadsheetimport_template where id = ?",
+		    id);
+		if (rs.next()) {
+			template = new SpreadsheetImportTemplate();
+			template.setId(rs.getInt("id"));
+			template.setName(rs.getString("name"));
+			template.setDescription(rs.getString("description"));
+			template.setEncounter(rs.getBoolean("encounter"));
+			template.setTargetForm(rs.getString("target_form"));
+		}
+		close(rs);
+		if (template == null) {
+			return null;
+		}
+
+		Map<Integer, SpreadsheetImportTemplateColumn> columns = new HashMap<Integer, SpreadsheetImportTemplateColumn>();
+		rs = query("select id, name, database_table_dot_column, database_table_dataset_index, column_import_index, "
+		        + "disallow_duplicate_value from spreadsheetimport_template_column where template_id = ?", id);
+		while (rs.next()) {
+			SpreadsheetImportTemplateColumn column = new SpreadsheetImportTemplateColumn();
+			column.setId(rs.getInt("id"));
+			column.setTemplate(template);
+			column.setName(rs.getString("name"));
+			column.setTableDotColumn(rs.getString("database_table_dot_column"));
+			int datasetIdx = rs.getInt("database_table_dataset_index");
+			column.setDatasetIdx(rs.wasNull() ? null : datasetIdx);
+			column.setImportIdx(rs.getInt("column_import_index"));
+			column.setDisallowDuplicateValue(rs.getBoolean("disallow_duplicate_value"));
+			columns.put(column.getId(), column);
+			template.getColumns().add(column);
+		}
+		close(rs);
+
+		Map<Integer, SpreadsheetImportTemplatePrespecifiedValue> prespecifiedValues = new HashMap<Integer, SpreadsheetImportTemplatePrespecifiedValue>();
+		rs = query("select id, database_table_dot_column, value from spreadsheetimport_template_prespecified_value "
+		        + "where template_id = ?", id);
+		while (rs.next()) {
+			SpreadsheetImportTemplatePrespecifiedValue prespecifiedValue = new SpreadsheetImportTemplatePrespecifiedValue();
+			prespecifiedValue.setId(rs.getInt("id"));
+			prespecifiedValue.setTemplate(template);
+			prespecifiedValue.setTableDotColumn(rs.getString("database_table_dot_column"));
+			prespecifiedValue.setValue(rs.getString("value"));
+			prespecifiedValues.put(prespecifiedValue.getId(), prespecifiedValue);
+			template.getPrespecifiedValues().add(prespecifiedValue);
+		}
+		close(rs);
+
+		rs = query("select cpv.id, cpv.template_column_id, cpv.template_prespecified_value_id, cpv.foreign_key_column_name "
+		        + "from spreadsheetimport_template_column_prespecified_value cpv "
+		        + "join spreadsheetimport_template_column c on c.id = cpv.template_column_id where c.template_id = ?", id);
+		while (rs.next()) {
+			SpreadsheetImportTemplateColumn column = columns.get(rs.getInt("template_column_id"));
+			SpreadsheetImportTemplatePrespecifiedValue prespecifiedValue = prespecifiedValues.get(rs
+			        .getInt("template_prespecified_value_id"));
+			if (column == null || prespecifiedValue == null) {
+				continue;
+			}
+			SpreadsheetImportTemplateColumnPrespecifiedValue columnPrespecifiedValue = new SpreadsheetImportTemplateColumnPrespecifiedValue();
+			columnPrespecifiedValue.setId(rs.getInt("id"));
+			columnPrespecifiedValue.setColumn(column);
+			columnPrespecifiedValue.setPrespecifiedValue(prespecifiedValue);
+			columnPrespecifiedValue.setColumnName(rs.getString("foreign_key_column_name"));
+			column.getColumnPrespecifiedValues().add(columnPrespecifiedValue);
+			prespecifiedValue.getColumnPrespecifiedValues().add(columnPrespecifiedValue);
+		}
+		close(rs);
+
+		rs = query("select cc.id, cc.template_column_id_import_first, cc.template_column_id_import_next, "
+		        + "cc.foreign_key_column_name from spreadsheetimport_template_column_column cc "
+		        + "join spreadsheetimport_template_column c on c.id = cc.template_column_id_import_next where c.template_id = ?",
+		    id);
+		while (rs.next()) {
+			SpreadsheetImportTemplateColumn first = columns.get(rs.getInt("template_column_id_import_first"));
+			SpreadsheetImportTemplateColumn next = columns.get(rs.getInt("template_column_id_import_next"));
+			if (first == null || next == null) {
+				continue;
+			}
+			SpreadsheetImportTemplateColumnColumn columnColumn = new SpreadsheetImportTemplateColumnColumn();
+			columnColumn.setId(rs.getInt("id"));
+			columnColumn.setColumnImportFirst(first);
+			columnColumn.setColumnImportNext(next);
+			columnColumn.setColumnName(rs.getString("foreign_key_column_name"));
+			next.getColumnColumnsImportBefore().add(columnColumn);
+			first.getColumnColumnsImportAfter().add(columnColumn);
+		}
+		close(rs);
+
+		return template;
+	}
+
+	private ResultSet query(String sql, Integer id) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(sql);
+		ps.setInt(1, id);
+		return ps.executeQuery();
+	}
+
+	private void close(ResultSet rs) throws SQLException {
+		rs.getStatement().close();
+	}
+}
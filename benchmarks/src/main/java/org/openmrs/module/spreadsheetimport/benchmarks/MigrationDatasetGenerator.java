@@ -0,0 +1,585 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openmrs.module.spreadsheetimport.DbImportUtil;
+import org.openmrs.module.spreadsheetimport.GroupedObservations;
+import org.openmrs.module.spreadsheetimport.benchmarks.SyntheticColumn.Kind;
+
+/**
+ * Generates synthetic migration datasets at a configurable scale: tr_demographics, tr_users, every
+ * encounter dataset listed in TemplateDatasetMap.json, tr_vital_labs and tr_person_relationship.
+ * The same seed and options always produce the same data, and each dataset is generated from its
+ * own random stream, so generating a subset of the datasets gives the same rows.
+ * <p>
+ * Patient n of tr_demographics (counting from 0) is assumed to get person id firstPatientId + n on
+ * import, which is the patient_id written to the other datasets.
+ * <p>
+ * The columns of encounter datasets come from the templates of an OpenMRS database if one is
+ * given, otherwise from the grouped observation configs plus a number of generic obs columns.
+ * Run without arguments for usage.
+ */
+public class MigrationDatasetGenerator {
+
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	// noon, so adding whole days never lands on the previous date across DST changes
+	private static final long BASE_DATE_MILLIS = java.sql.Date.valueOf("2010-01-01").getTime() + DAY_MILLIS / 2;
+
+	private static final int DATE_RANGE_DAYS = 10 * 365;
+
+	private static final double GROUP_ABSENT_RATE = 0.3;
+
+	private static final Integer[] CODED_ANSWERS = { 1065, 1066, 1067, 703, 664, 1138, 1175, 5622 };
+
+	private static final Integer[] LAB_TESTS = { 856, 5497, 730 };
+
+	private static final Integer[] RELATIONSHIPS = { 1527, 971, 970, 972, 163565, 5617, 1528 };
+
+	private static final String[] FIRST_NAMES = { "Achieng", "Akinyi", "Atieno", "Chebet", "Jepkemboi", "Kamau", "Kariuki",
+	        "Kibet", "Kiprono", "Mwangi", "Njeri", "Nyambura", "Odhiambo", "Omondi", "Otieno", "Wanjiku", "Wafula", "Wekesa" };
+
+	private static final String[] LAST_NAMES = { "Barasa", "Cheruiyot", "Gitau", "Kiplagat", "Macharia", "Maina", "Mutua",
+	        "Njoroge", "Ochieng", "Okoth", "Onyango", "Ruto", "Simiyu", "Wambua", "Wanyama" };
+
+	private static final String[] PLACES = { "Kisumu", "Nakuru", "Kakamega", "Bungoma", "Kericho", "Nyeri", "Machakos",
+	        "Eldoret", "Homa Bay", "Migori" };
+
+	private static final String[] WORDS = { "Stable", "Referred", "Counselled", "Follow up", "Adherent", "Missed dose",
+	        "Transferred", "Lot O'Neill" };
+
+	private static final String[] REPEATING_DATASET_MARKERS = { "followup", "visit", "tracing", "activity", "adherence",
+	        "regimen" };
+
+	private final int patients;
+
+	private final long seed;
+
+	private int firstPatientId = 1;
+
+	private double coverage = 0.6;
+
+	private double visits = 6;
+
+	private double blankRate = 0.1;
+
+	private int obsColumns = 20;
+
+	private double relationshipRate = 0.3;
+
+	private File configDirectory;
+
+	private Connection templateConnection;
+
+	private boolean sourceLayout;
+
+	public MigrationDatasetGenerator(int patients, long seed) {
+		this.patients = patients;
+		this.seed = seed;
+	}
+
+	/**
+	 * Person id the first demographics row is expected to get on import
+	 */
+	public void setFirstPatientId(int firstPatientId) {
+		this.firstPatientId = firstPatientId;
+	}
+
+	/**
+	 * Share of patients with rows in each encounter dataset and in tr_vital_labs
+	 */
+	public void setCoverage(double coverage) {
+		this.coverage = coverage;
+	}
+
+	/**
+	 * Mean rows per covered patient in follow up like datasets and tr_vital_labs, others have one
+	 */
+	public void setVisits(double visits) {
+		this.visits = visits;
+	}
+
+	/**
+	 * Share of empty obs values
+	 */
+	public void setBlankRate(double blankRate) {
+		this.blankRate = blankRate;
+	}
+
+	/**
+	 * Generic obs columns of encounter datasets when the columns do not come from templates
+	 */
+	public void setObsColumns(int obsColumns) {
+		this.obsColumns = obsColumns;
+	}
+
+	/**
+	 * Relationships per patient in tr_person_relationship
+	 */
+	public void setRelationshipRate(double relationshipRate) {
+		this.relationshipRate = relationshipRate;
+	}
+
+	/**
+	 * Directory holding TemplateDatasetMap.json and the grouped observation configs, as configured
+	 * in spreadsheetimport.migrationConfigDirectory. Defaults to the copies on the classpath.
+	 */
+	public void setConfigDirectory(File configDirectory) {
+		this.configDirectory = configDirectory;
+	}
+
+	/**
+	 * OpenMRS database to read template columns from
+	 */
+	public void setTemplateConnection(Connection templateConnection) {
+		this.templateConnection = templateConnection;
+	}
+
+	/**
+	 * Writes the datasets as exported from the source system, before
+	 * post_demographics_processing_query.sql has run: encounter datasets have no patient_id column,
+	 * tr_vital_labs has an empty one and relationships refer to Index_Person_Id and
+	 * Relative_Person_Id. By default the datasets look as they do after the script.
+	 */
+	public void setSourceLayout(boolean sourceLayout) {
+		this.sourceLayout = sourceLayout;
+	}
+
+	/**
+	 * Generates the datasets
+	 *
+	 * @param writer destination
+	 * @param datasets names of the datasets to generate, or null for all
+	 */
+	public void generate(DatasetWriter writer, Collection<String> datasets) throws Exception {
+		if (include(datasets, "tr_demographics")) {
+			writeDemographics(writer);
+		}
+		if (include(datasets, "tr_users")) {
+			writeUsers(writer);
+		}
+
+		JSONArray templateDatasetMap;
+		Reader reader = openConfig("TemplateDatasetMap.json");
+		try {
+			templateDatasetMap = (JSONArray) new JSONParser().parse(reader);
+		}
+		finally {
+			reader.close();
+		}
+		for (Object o : templateDatasetMap) {
+			JSONObject entry = (JSONObject) o;
+			String dataset = (String) entry.get("dataset");
+			if (include(datasets, dataset)) {
+				Long templateId = (Long) entry.get("template_id");
+				writeEncounterDataset(writer, dataset, templateId == null ? null : templateId.intValue(),
+				    (String) entry.get("obsGroupConfig"));
+			}
+		}
+
+		if (include(datasets, "tr_vital_labs")) {
+			writeVitalLabs(writer);
+		}
+		if (include(datasets, "tr_person_relationship")) {
+			writeRelationships(writer);
+		}
+	}
+
+	private boolean include(Collection<String> datasets, String dataset) {
+		return datasets == null || datasets.contains(dataset);
+	}
+
+	private Random random(String dataset) {
+		return new Random(seed * 31 + dataset.hashCode());
+	}
+
+	private int patientId(int patient) {
+		return firstPatientId + patient;
+	}
+
+	private String personId(int patient) {
+		return String.valueOf(1000000 + patient);
+	}
+
+	private void writeDemographics(DatasetWriter writer) throws Exception {
+		List<SyntheticColumn> columns = new ArrayList<SyntheticColumn>();
+		for (String name : new String[] { "Person_Id", "UPN", "Patient_clinic_number", "National_id_no" }) {
+			columns.add(new SyntheticColumn(name, Kind.IDENTIFIER));
+		}
+		for (String name : new String[] { "First_Name", "Middle_Name", "Last_Name", "Sex" }) {
+			columns.add(new SyntheticColumn(name, Kind.TEXT));
+		}
+		columns.add(new SyntheticColumn("DOB", Kind.DATE));
+		for (String name : new String[] { "County", "Sub_county", "Ward", "Village", "Landmark", "Nearest_Health_Centre",
+		        "Postal_Address", "Phone_number", "Alternate_Phone_number", "Email_address", "Dead" }) {
+			columns.add(new SyntheticColumn(name, Kind.TEXT));
+		}
+		columns.add(new SyntheticColumn("Death_date", Kind.DATE));
+		for (String name : new String[] { "Marital_status", "Occupation", "Education_level" }) {
+			columns.add(new SyntheticColumn(name, Kind.CODED));
+		}
+
+		Random random = random("tr_demographics");
+		writer.begin("tr_demographics", columns);
+		for (int patient = 0; patient < patients; patient++) {
+			String county = pick(random, PLACES);
+			boolean dead = random.nextInt(50) == 0;
+			writer.row(new Object[] { personId(patient), String.valueOf(1360000000L + patient),
+			        "CCC-" + patient, random.nextInt(3) == 0 ? null : String.valueOf(20000000 + random.nextInt(20000000)),
+			        pick(random, FIRST_NAMES), random.nextBoolean() ? pick(random, FIRST_NAMES) : null, pick(random, LAST_NAMES),
+			        random.nextBoolean() ? "F" : "M", date(random.nextInt(DATE_RANGE_DAYS) - 60 * 365), county,
+			        county + " East", "Ward " + random.nextInt(20), pick(random, PLACES) + " village", null,
+			        county + " Hospital", "P.O. Box " + random.nextInt(10000), "07" + (10000000 + random.nextInt(90000000)),
+			        null, null, dead ? "1" : "0", dead ? date(random.nextInt(DATE_RANGE_DAYS)) : null,
+			        blank(random) ? null : pick(random, CODED_ANSWERS), blank(random) ? null : pick(random, CODED_ANSWERS),
+			        blank(random) ? null : pick(random, CODED_ANSWERS) });
+		}
+		writer.end();
+	}
+
+	private void writeUsers(DatasetWriter writer) throws Exception {
+		List<SyntheticColumn> columns = new ArrayList<SyntheticColumn>();
+		columns.add(new SyntheticColumn("User_Id", Kind.ID));
+		for (String name : new String[] { "First_Name", "Last_Name", "User_Name", "Status", "Designation", "GroupNames" }) {
+			columns.add(new SyntheticColumn(name, Kind.TEXT));
+		}
+		columns.add(new SyntheticColumn("OpenMRS_User_Id", Kind.ID));
+
+		String[][] roles = { { "Physician/Clinical Officer", "Clinical Staff" }, { "Data Manager", "Data Managers" },
+		        { "Nurse", "Triage" } };
+		Random random = random("tr_users");
+		writer.begin("tr_users", columns);
+		for (int user = 1; user <= Math.max(10, patients / 1000); user++) {
+			String[] role = roles[random.nextInt(roles.length)];
+			writer.row(new Object[] { user, pick(random, FIRST_NAMES), pick(random, LAST_NAMES), "user" + user,
+			        random.nextInt(10) == 0 ? "Inactive" : "Active", role[0], role[1], null });
+		}
+		writer.end();
+	}
+
+	private void writeEncounterDataset(DatasetWriter writer, String dataset, Integer templateId, String obsGroupConfig)
+	        throws Exception {
+		List<SyntheticColumn> columns = new ArrayList<SyntheticColumn>();
+		columns.add(new SyntheticColumn("Person_Id", Kind.IDENTIFIER));
+		if (!sourceLayout) {
+			columns.add(new SyntheticColumn("patient_id", Kind.ID));
+		}
+		columns.add(new SyntheticColumn("Encounter_Date", Kind.DATE));
+		int firstValueColumn = columns.size();
+
+		List<SyntheticColumn> templateColumns = getTemplateColumns(templateId);
+		if (templateColumns.isEmpty()) {
+			templateColumns.add(new SyntheticColumn("Encounter_ID", Kind.BLANK));
+			Kind[] kinds = { Kind.CODED, Kind.NUMERIC, Kind.TEXT, Kind.CODED, Kind.DATE };
+			for (int i = 1; i <= obsColumns; i++) {
+				templateColumns.add(new SyntheticColumn("Obs_" + i, kinds[i % kinds.length]));
+			}
+		}
+		for (SyntheticColumn column : templateColumns) {
+			if (!"Person_Id".equals(column.getName()) && !"patient_id".equals(column.getName())
+			        && !"Encounter_Date".equals(column.getName())) {
+				columns.add(column);
+			}
+		}
+
+		// group boundaries, so a group can be left out as a whole
+		int firstGroupColumn = columns.size();
+		List<Integer> groupEnds = new ArrayList<Integer>();
+		if (StringUtils.isNotBlank(obsGroupConfig)) {
+			Reader reader = openConfig(obsGroupConfig);
+			try {
+				for (GroupedObservations group : DbImportUtil.parseGroupedDatasetConfig(reader)) {
+					for (String name : new TreeSet<String>(group.getDatasetColumns().keySet())) {
+						columns.add(new SyntheticColumn(name, SyntheticColumn.kindOfDatatype(group.getDatasetColumns().get(name)
+						        .getQuestionConceptDatatype())));
+					}
+					groupEnds.add(columns.size());
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+
+		boolean repeating = isRepeating(dataset);
+		Random random = random(dataset);
+		writer.begin(dataset, columns);
+		Object[] row = new Object[columns.size()];
+		for (int patient = 0; patient < patients; patient++) {
+			if (random.nextDouble() >= coverage) {
+				continue;
+			}
+			int rows = repeating ? 1 + geometric(random, visits - 1) : 1;
+			int day = random.nextInt(DATE_RANGE_DAYS);
+			for (int r = 0; r < rows; r++) {
+				row[0] = personId(patient);
+				if (!sourceLayout) {
+					row[1] = patientId(patient);
+				}
+				row[firstValueColumn - 1] = date(day);
+				for (int i = firstValueColumn; i < firstGroupColumn; i++) {
+					row[i] = value(random, columns.get(i).getKind(), day);
+				}
+				int start = firstGroupColumn;
+				for (Integer end : groupEnds) {
+					boolean absent = random.nextDouble() < GROUP_ABSENT_RATE;
+					for (int i = start; i < end; i++) {
+						row[i] = absent ? null : value(random, columns.get(i).getKind(), day);
+					}
+					start = end;
+				}
+				writer.row(row);
+				day += 14 + random.nextInt(90);
+			}
+		}
+		writer.end();
+	}
+
+	private void writeVitalLabs(DatasetWriter writer) throws Exception {
+		List<SyntheticColumn> columns = new ArrayList<SyntheticColumn>();
+		columns.add(new SyntheticColumn("patient_id", Kind.ID));
+		columns.add(new SyntheticColumn("Person_Id", Kind.IDENTIFIER));
+		columns.add(new SyntheticColumn("Encounter_Date", Kind.DATE));
+		columns.add(new SyntheticColumn("OrderNumber", Kind.IDENTIFIER));
+		columns.add(new SyntheticColumn("Urgency", Kind.TEXT));
+		columns.add(new SyntheticColumn("Lab_test", Kind.CODED));
+		columns.add(new SyntheticColumn("Test_result", Kind.TEXT));
+		columns.add(new SyntheticColumn("Date_test_requested", Kind.DATE));
+		columns.add(new SyntheticColumn("Date_test_result_received", Kind.DATE));
+
+		Random random = random("tr_vital_labs");
+		writer.begin("tr_vital_labs", columns);
+		int order = 0;
+		for (int patient = 0; patient < patients; patient++) {
+			if (random.nextDouble() >= coverage) {
+				continue;
+			}
+			int rows = 1 + geometric(random, visits - 1);
+			int day = random.nextInt(DATE_RANGE_DAYS);
+			for (int r = 0; r < rows; r++) {
+				Integer labTest = pick(random, LAB_TESTS);
+				String result = labTest.intValue() == 856 && random.nextInt(3) == 0 ? "LDL" : String.valueOf(random
+				        .nextInt(labTest.intValue() == 730 ? 60 : 1500));
+				writer.row(new Object[] { sourceLayout ? null : patientId(patient), personId(patient), date(day), "ORD-" + (++order),
+				        random.nextInt(10) == 0 ? "STAT" : "ROUTINE", labTest, blank(random) ? null : result, date(day),
+				        date(day + 7 + random.nextInt(30)) });
+				day += 90 + random.nextInt(120);
+			}
+		}
+		writer.end();
+	}
+
+	private void writeRelationships(DatasetWriter writer) throws Exception {
+		List<SyntheticColumn> columns = new ArrayList<SyntheticColumn>();
+		if (sourceLayout) {
+			columns.add(new SyntheticColumn("Index_Person_Id", Kind.IDENTIFIER));
+			columns.add(new SyntheticColumn("Relative_Person_Id", Kind.IDENTIFIER));
+		} else {
+			columns.add(new SyntheticColumn("Person_a_person_id", Kind.ID));
+			columns.add(new SyntheticColumn("person_b_person_id", Kind.ID));
+		}
+		columns.add(new SyntheticColumn("Relationship", Kind.CODED));
+
+		Random random = random("tr_person_relationship");
+		writer.begin("tr_person_relationship", columns);
+		if (patients > 1) {
+			for (int patient = 0; patient < patients; patient++) {
+				int relationships = geometric(random, relationshipRate);
+				for (int r = 0; r < relationships; r++) {
+					int other = random.nextInt(patients - 1);
+					if (other >= patient) {
+						other++;
+					}
+					if (sourceLayout) {
+						writer.row(new Object[] { personId(patient), personId(other), pick(random, RELATIONSHIPS) });
+					} else {
+						writer.row(new Object[] { patientId(patient), patientId(other), pick(random, RELATIONSHIPS) });
+					}
+				}
+			}
+		}
+		writer.end();
+	}
+
+	private Object value(Random random, Kind kind, int day) {
+		if (kind == Kind.BLANK || blank(random)) {
+			return null;
+		}
+		switch (kind) {
+			case ID:
+				return patientId(random.nextInt(patients));
+			case IDENTIFIER:
+				return "MIG" + random.nextInt(100000000);
+			case DATE:
+				return date(day - random.nextInt(365));
+			case CODED:
+				return pick(random, CODED_ANSWERS);
+			case NUMERIC:
+				return random.nextInt(2000) / 10.0;
+			default:
+				return pick(random, WORDS) + " " + random.nextInt(1000);
+		}
+	}
+
+	private boolean blank(Random random) {
+		return random.nextDouble() < blankRate;
+	}
+
+	private static boolean isRepeating(String dataset) {
+		for (String marker : REPEATING_DATASET_MARKERS) {
+			if (dataset.contains(marker)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Number of failures before the first success, with the given mean
+	 */
+	private static int geometric(Random random, double mean) {
+		if (mean <= 0) {
+			return 0;
+		}
+		return (int) (Math.log(1 - random.nextDouble()) / Math.log(mean / (mean + 1)));
+	}
+
+	private static java.sql.Date date(int day) {
+		return new java.sql.Date(BASE_DATE_MILLIS + day * DAY_MILLIS);
+	}
+
+	private static <T> T pick(Random random, T[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private List<SyntheticColumn> getTemplateColumns(Integer templateId) throws Exception {
+		List<SyntheticColumn> columns = new ArrayList<SyntheticColumn>();
+		if (templateConnection == null || templateId == null) {
+			return columns;
+		}
+		PreparedStatement ps = templateConnection
+		        .prepareStatement("select name, database_table_dot_column from spreadsheetimport_template_column where template_id = ? order by column_import_index");
+		try {
+			ps.setInt(1, templateId);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				columns.add(new SyntheticColumn(rs.getString(1), SyntheticColumn.kindOfTableDotColumn(rs.getString(2))));
+			}
+			rs.close();
+		}
+		finally {
+			ps.close();
+		}
+		return columns;
+	}
+
+	private Reader openConfig(String name) throws Exception {
+		InputStream in = configDirectory == null ? BenchmarkDatabase.getResource(name) : new FileInputStream(new File(
+		        configDirectory, name));
+		return new InputStreamReader(in, "UTF-8");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("--")) {
+				usage();
+				return;
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		if (!options.containsKey("patients") || (!options.containsKey("jdbc") && !options.containsKey("csv"))) {
+			usage();
+			return;
+		}
+
+		MigrationDatasetGenerator generator = new MigrationDatasetGenerator(Integer.parseInt(options.get("patients")),
+		        Long.parseLong(getOption(options, "seed", "42")));
+		generator.setFirstPatientId(Integer.parseInt(getOption(options, "first-patient-id", "1")));
+		generator.setCoverage(Double.parseDouble(getOption(options, "coverage", "0.6")));
+		generator.setVisits(Double.parseDouble(getOption(options, "visits", "6")));
+		generator.setBlankRate(Double.parseDouble(getOption(options, "blank-rate", "0.1")));
+		generator.setObsColumns(Integer.parseInt(getOption(options, "obs-columns", "20")));
+		generator.setRelationshipRate(Double.parseDouble(getOption(options, "relationship-rate", "0.3")));
+		generator.setSourceLayout(Boolean.parseBoolean(getOption(options, "source-layout", "false")));
+		if (options.containsKey("config-dir")) {
+			generator.setConfigDirectory(new File(options.get("config-dir")));
+		}
+		if (options.containsKey("templates")) {
+			generator.setTemplateConnection(DriverManager.getConnection(options.get("templates"), options.get("user"),
+			    options.get("password")));
+		}
+
+		DatasetWriter writer = options.containsKey("jdbc") ? new JdbcDatasetWriter(DriverManager.getConnection(
+		    options.get("jdbc"), options.get("user"), options.get("password"))) : new CsvDatasetWriter(new File(
+		        options.get("csv")));
+		List<String> datasets = options.containsKey("datasets") ? Arrays.asList(options.get("datasets").split(",")) : null;
+
+		long start = System.currentTimeMillis();
+		try {
+			generator.generate(writer, datasets);
+		}
+		finally {
+			writer.close();
+			if (generator.templateConnection != null) {
+				generator.templateConnection.close();
+			}
+		}
+		System.out.println("Generated datasets for " + generator.patients + " patients in "
+		        + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private static String getOption(Map<String, String> options, String name, String defaultValue) {
+		return options.containsKey(name) ? options.get(name) : defaultValue;
+	}
+
+	private static void usage() {
+		System.out.println("Usage: java -cp benchmarks.jar " + MigrationDatasetGenerator.class.getName()
+		        + " --patients <n> (--jdbc <url> | --csv <directory>) [options]\n"
+		        + "  --user, --password      credentials for --jdbc and --templates\n"
+		        + "  --seed <n>              random seed, default 42\n"
+		        + "  --datasets <a,b>        datasets to generate, default all\n"
+		        + "  --first-patient-id <n>  person id of the first demographics row after import, default 1\n"
+		        + "  --coverage <0..1>       share of patients in each encounter dataset, default 0.6\n"
+		        + "  --visits <n>            mean rows per patient in follow up datasets, default 6\n"
+		        + "  --blank-rate <0..1>     share of empty obs values, default 0.1\n"
+		        + "  --obs-columns <n>       generic obs columns without --templates, default 20\n"
+		        + "  --relationship-rate <n> relationships per patient, default 0.3\n"
+		        + "  --config-dir <dir>      TemplateDatasetMap.json and grouped obs configs, default testdata\n"
+		        + "  --templates <url>       OpenMRS database to read template columns from\n"
+		        + "  --source-layout true    datasets as before post_demographics_processing_query.sql");
+	}
+}
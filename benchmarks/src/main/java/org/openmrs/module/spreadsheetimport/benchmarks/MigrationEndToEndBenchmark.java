@@ -0,0 +1,303 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.ServiceContext;
+import org.openmrs.module.spreadsheetimport.ImportMetrics;
+import org.openmrs.module.spreadsheetimport.MigrationRunner;
+import org.openmrs.module.spreadsheetimport.MigrationRunner.StageResult;
+import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
+
+import ch.vorburger.mariaDB4j.DB;
+import ch.vorburger.mariaDB4j.DBConfiguration;
+import ch.vorburger.mariaDB4j.DBConfigurationBuilder;
+
+/**
+ * Times a whole migration, as started from the Process Data page, against an embedded MariaDB.
+ * <p>
+ * The openmrs database is loaded from a KenyaEMR dump which includes the migration templates, then
+ * emptied with blank_kenyaemr_db_for_migration.sql. Source datasets for the requested number of
+ * patients are generated into migration_tr, the names post_demographics_processing_query.sql
+ * expects. OpenMRS is started without modules, templates are read straight from the database.
+ * <p>
+ * Rows per second of every dataset and the total wall time are printed and can be saved; given a
+ * baseline saved by an earlier run the benchmark exits with status 1 when a dataset got slower than
+ * the tolerance allows, so it can gate changes to the import. Run without arguments for usage.
+ */
+public class MigrationEndToEndBenchmark {
+
+	private static final String OPENMRS_DATABASE = "openmrs";
+
+	private static final String MIGRATION_DATABASE = "migration_tr";
+
+	private static final String CONFIG_DIRECTORY = "migration";
+
+	// IQCare person PK, see post_demographics_processing_query.sql
+	private static final String SOURCE_IDENTIFIER_TYPE = "b3d6de9f-f215-4259-9805-8638c887e46b";
+
+	private static final String TOTAL = "Total";
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+		}
+		if (!options.containsKey("kenyaemr-dump")) {
+			System.out.println("Usage: java -cp benchmarks.jar " + MigrationEndToEndBenchmark.class.getName()
+			        + " --kenyaemr-dump <file> [options]\n"
+			        + "  --patients <n>            patients to generate, default 10000\n"
+			        + "  --seed <n>                random seed, default 42\n"
+			        + "  --visits <n>              mean encounters per patient and dataset\n"
+			        + "  --coverage <0..1>         share of patients with rows in each dataset\n"
+			        + "  --openmrs-user <name>     OpenMRS user in the dump, default admin\n"
+			        + "  --openmrs-password <pw>   default Admin123\n"
+			        + "  --results <file>          save rows/s per dataset and total time\n"
+			        + "  --baseline <file>         results of an earlier run to compare with\n"
+			        + "  --tolerance <0..1>        allowed slowdown against the baseline, default 0.2");
+			return;
+		}
+		int patients = Integer.parseInt(getOption(options, "patients", "10000"));
+		double tolerance = Double.parseDouble(getOption(options, "tolerance", "0.2"));
+
+		File workDirectory = createTempDirectory();
+		DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+		config.setPort(0);
+		config.setDataDir(new File(workDirectory, "data").getPath());
+		DBConfiguration dbConfiguration = config.build();
+		DB db = DB.newEmbeddedDB(dbConfiguration);
+		db.start();
+		try {
+			db.createDB(OPENMRS_DATABASE);
+			db.createDB(MIGRATION_DATABASE);
+
+			log("Loading " + options.get("kenyaemr-dump"));
+			runMysqlClient(dbConfiguration, OPENMRS_DATABASE, new File(options.get("kenyaemr-dump")));
+			runMysqlClient(dbConfiguration, OPENMRS_DATABASE,
+			    copyResource("blank_kenyaemr_db_for_migration.sql", workDirectory));
+
+			String openmrsUrl = config.getURL(OPENMRS_DATABASE)
+			        + "?autoReconnect=true&sessionVariables=storage_engine=InnoDB&useUnicode=true&characterEncoding=UTF-8";
+			MigrationDatasetGenerator generator = new MigrationDatasetGenerator(patients, Long.parseLong(getOption(options,
+			    "seed", "42")));
+			if (options.containsKey("visits")) {
+				generator.setVisits(Double.parseDouble(options.get("visits")));
+			}
+			if (options.containsKey("coverage")) {
+				generator.setCoverage(Double.parseDouble(options.get("coverage")));
+			}
+			generateDatasets(generator, config, openmrsUrl);
+
+			File configDirectory = new File(workDirectory, CONFIG_DIRECTORY);
+			configDirectory.mkdirs();
+			copyResource("TemplateDatasetMap.json", configDirectory);
+			copyResource(BenchmarkDatabase.HTS_GROUPED_OBS_CONFIG, configDirectory);
+			copyResource(MigrationRunner.POST_DEMOGRAPHICS_SCRIPT, configDirectory);
+
+			Properties runtimeProperties = new Properties();
+			runtimeProperties.setProperty("application_data_directory", workDirectory.getPath());
+			runtimeProperties.setProperty("connection.driver_class", "com.mysql.jdbc.Driver");
+			Context.startup(openmrsUrl, "root", "", runtimeProperties);
+			try {
+				Context.openSession();
+				Context.authenticate(getOption(options, "openmrs-user", "admin"),
+				    getOption(options, "openmrs-password", "Admin123"));
+				saveGlobalProperty(MigrationRunner.GP_MIGRATION_DATABASE, MIGRATION_DATABASE);
+				saveGlobalProperty("spreadsheetimport.migrationConfigDirectory", CONFIG_DIRECTORY);
+				saveGlobalProperty(MigrationRunner.GP_SOURCE_PRIMARY_IDENTIFIER_TYPE, SOURCE_IDENTIFIER_TYPE);
+				ServiceContext.getInstance().setService(SpreadsheetImportService.class,
+				    new BenchmarkSpreadsheetImportService());
+
+				log("Migrating " + patients + " patients");
+				MigrationRunner runner = new MigrationRunner(false);
+				runner.run();
+
+				Properties results = report(runner);
+				if (options.containsKey("results")) {
+					store(results, new File(options.get("results")));
+				}
+				if (options.containsKey("baseline") && !compare(results, load(new File(options.get("baseline"))), tolerance)) {
+					System.exit(1);
+				}
+			}
+			finally {
+				Context.closeSession();
+				Context.shutdown();
+			}
+		}
+		finally {
+			db.stop();
+		}
+	}
+
+	private static void generateDatasets(MigrationDatasetGenerator generator, DBConfigurationBuilder config,
+	        String openmrsUrl) throws Exception {
+		log("Generating datasets");
+		generator.setSourceLayout(true);
+		Connection templates = DriverManager.getConnection(openmrsUrl, "root", "");
+		generator.setTemplateConnection(templates);
+		DatasetWriter writer = new JdbcDatasetWriter(DriverManager.getConnection(config.getURL(MIGRATION_DATABASE), "root",
+		    ""));
+		try {
+			generator.generate(writer, null);
+		}
+		finally {
+			writer.close();
+			templates.close();
+		}
+	}
+
+	private static Properties report(MigrationRunner runner) {
+		Properties results = new Properties();
+		System.out.println(String.format("%-45s %10s %10s %12s", "Dataset", "Rows", "Seconds", "Rows/s"));
+		for (StageResult result : runner.getStageResults()) {
+			System.out.println(String.format("%-45s %10d %10.1f %12.1f", result.getName(), result.getRows(),
+			    result.getNanos() / 1e9, result.getRowsPerSecond()));
+			results.setProperty(result.getName() + ".rows", String.valueOf(result.getRows()));
+			results.setProperty(result.getName() + ".rowsPerSecond", String.valueOf(result.getRowsPerSecond()));
+		}
+		long totalMillis = TimeUnit.MILLISECONDS.convert(runner.getTotalNanos(), TimeUnit.NANOSECONDS);
+		System.out.println(String.format("%-45s %10s %10.1f", TOTAL, "", totalMillis / 1e3));
+		results.setProperty(TOTAL + ".millis", String.valueOf(totalMillis));
+		System.out.println();
+		for (ImportMetrics.Timer timer : ImportMetrics.getTimers()) {
+			System.out.println(timer);
+		}
+		return results;
+	}
+
+	/**
+	 * @return false if a dataset or the total is slower than the baseline by more than the tolerance
+	 */
+	static boolean compare(Properties results, Properties baseline, double tolerance) {
+		List<String> regressions = new ArrayList<String>();
+		for (String key : results.stringPropertyNames()) {
+			if (!key.endsWith(".rowsPerSecond") || baseline.getProperty(key) == null) {
+				continue;
+			}
+			double current = Double.parseDouble(results.getProperty(key));
+			double before = Double.parseDouble(baseline.getProperty(key));
+			if (before > 0 && current < before * (1 - tolerance)) {
+				regressions.add(key + ": " + Math.round(current) + " rows/s, baseline " + Math.round(before));
+			}
+		}
+		String key = TOTAL + ".millis";
+		if (baseline.getProperty(key) != null) {
+			long current = Long.parseLong(results.getProperty(key));
+			long before = Long.parseLong(baseline.getProperty(key));
+			if (current > before * (1 + tolerance)) {
+				regressions.add(key + ": " + current + " ms, baseline " + before);
+			}
+		}
+		for (String regression : regressions) {
+			System.out.println("REGRESSION " + regression);
+		}
+		return regressions.isEmpty();
+	}
+
+	private static void saveGlobalProperty(String property, String value) {
+		GlobalProperty gp = Context.getAdministrationService().getGlobalPropertyObject(property);
+		if (gp == null) {
+			gp = new GlobalProperty(property);
+		}
+		gp.setPropertyValue(value);
+		Context.getAdministrationService().saveGlobalProperty(gp);
+	}
+
+	/**
+	 * Feeds a SQL file to the mysql client of the embedded database, which unlike JDBC handles
+	 * everything a mysqldump can contain
+	 */
+	private static void runMysqlClient(DBConfiguration config, String database, File sql) throws Exception {
+		ProcessBuilder pb = new ProcessBuilder(new File(config.getBaseDir(), "bin/mysql").getPath(), "--user=root",
+		        "--host=127.0.0.1", "--port=" + config.getPort(), "--default-character-set=utf8", database);
+		pb.redirectInput(sql);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+		int status = pb.start().waitFor();
+		if (status != 0) {
+			throw new IllegalStateException("mysql exited with " + status + " loading " + sql);
+		}
+	}
+
+	private static File copyResource(String name, File directory) throws Exception {
+		File file = new File(directory, name);
+		InputStream in = BenchmarkDatabase.getResource(name);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+		}
+		finally {
+			out.close();
+			in.close();
+		}
+		return file;
+	}
+
+	private static File createTempDirectory() throws Exception {
+		File directory = File.createTempFile("migration-benchmark", "");
+		directory.delete();
+		directory.mkdirs();
+		return directory;
+	}
+
+	private static Properties load(File file) throws Exception {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	private static void store(Properties properties, File file) throws Exception {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, "Migration benchmark results");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static String getOption(Map<String, String> options, String name, String defaultValue) {
+		return options.containsKey(name) ? options.get(name) : defaultValue;
+	}
+
+	private static void log(String message) {
+		System.out.println(message);
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumn;
+import org.openmrs.module.spreadsheetimport.UniqueImport;
+
+/**
+ * Grouping of template columns into unique imports, which the dataset import rebuilds for every
+ * row, and the working copy taken once per import.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowDataMapBenchmark {
+
+	/**
+	 * Obs columns added to the HTS template
+	 */
+	@Param({ "0", "30", "120" })
+	public int extraObsColumns;
+
+	private SpreadsheetImportTemplate template;
+
+	@Setup
+	public void setUp() {
+		template = BenchmarkTemplates.htsTemplate(extraObsColumns);
+	}
+
+	@Benchmark
+	public Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> sortedByImportIdx() {
+		return template.getMapOfUniqueImportToColumnSetSortedByImportIdx();
+	}
+
+	@Benchmark
+	public SpreadsheetImportTemplate copyForImport() {
+		return template.copyForImport();
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+/**
+ * A column of a generated migration dataset
+ */
+public class SyntheticColumn {
+
+	/**
+	 * What a column holds, which decides its SQL type and generated values
+	 */
+	public enum Kind {
+		/** OpenMRS person or patient id */
+		ID("int"),
+		/** source system identifier */
+		IDENTIFIER("varchar(50)"),
+		DATE("date"),
+		/** concept id answer */
+		CODED("int"),
+		NUMERIC("double"),
+		TEXT("varchar(255)"),
+		/** left empty by the source, e.g. the encounter id filled in by the import */
+		BLANK("varchar(20)");
+
+		private final String sqlType;
+
+		private Kind(String sqlType) {
+			this.sqlType = sqlType;
+		}
+
+		public String getSqlType() {
+			return sqlType;
+		}
+	}
+
+	private final String name;
+
+	private final Kind kind;
+
+	public SyntheticColumn(String name, Kind kind) {
+		this.name = name;
+		this.kind = kind;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * The kind of column which imports into a table.column of a template: obs values by their
+	 * value column, encounter ids blank, anything else text
+	 */
+	public static Kind kindOfTableDotColumn(String tableDotColumn) {
+		if ("obs.value_coded".equals(tableDotColumn)) {
+			return Kind.CODED;
+		} else if ("obs.value_numeric".equals(tableDotColumn)) {
+			return Kind.NUMERIC;
+		} else if ("obs.value_datetime".equals(tableDotColumn) || "obs.obs_datetime".equals(tableDotColumn)) {
+			return Kind.DATE;
+		} else if ("encounter.encounter_id".equals(tableDotColumn)) {
+			return Kind.BLANK;
+		}
+		return Kind.TEXT;
+	}
+
+	/**
+	 * The kind of a grouped observation column by its obs value column
+	 */
+	public static Kind kindOfDatatype(String datatype) {
+		return kindOfTableDotColumn("obs." + datatype);
+	}
+
+	public String toString() {
+		return name + " " + kind;
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openmrs.module.spreadsheetimport.DbImportUtil;
+
+/**
+ * Decoding of raw dataset values, done for every template and grouped observation column of every
+ * row. The samples mix the value kinds found in migration datasets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValueDecodingBenchmark {
+
+	private static final String[] SAMPLES = { "1065", "", "12.5", "2017-03-14", "3/14/17", "Lot O'Brien", "164401", null,
+	        "Negative", "0" };
+
+	private final Locale locale = Locale.ENGLISH;
+
+	@Benchmark
+	@OperationsPerInvocation(10)
+	public void decodeTemplateColumn(Blackhole blackhole) {
+		for (String sample : SAMPLES) {
+			blackhole.consume(DbImportUtil.toSqlValue(DbImportUtil.decodeSourceValue(sample, locale), true));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(10)
+	public void decodeGroupedObservationColumn(Blackhole blackhole) {
+		for (String sample : SAMPLES) {
+			blackhole.consume(DbImportUtil.toSqlValue(DbImportUtil.decodeSourceValue(sample, locale), false));
+		}
+	}
+}
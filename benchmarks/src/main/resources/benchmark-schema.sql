@@ -0,0 +1,82 @@
+-- Minimal subset of the OpenMRS schema written by DatabaseBackend.importData, for H2 in MySQL mode.
+-- Foreign keys are left out so rows can be imported without reference data.
+
+create alias if not exists uuid for "org.openmrs.module.spreadsheetimport.benchmarks.BenchmarkDatabase.uuid";
+
+create table person (
+  person_id int not null auto_increment primary key,
+  gender varchar(50) default '',
+  birthdate date,
+  dead tinyint not null default 0,
+  creator int not null default 0,
+  date_created datetime not null,
+  voided tinyint not null default 0,
+  uuid char(38) not null
+);
+
+create table patient (
+  patient_id int not null primary key,
+  creator int not null,
+  date_created datetime not null,
+  voided tinyint not null default 0
+);
+
+create table patient_identifier (
+  patient_identifier_id int not null auto_increment primary key,
+  patient_id int not null,
+  identifier varchar(50) not null,
+  identifier_type int not null,
+  preferred tinyint not null default 0,
+  location_id int,
+  creator int not null,
+  date_created datetime not null,
+  voided tinyint not null default 0,
+  uuid char(38) not null
+);
+create index patient_identifier_identifier on patient_identifier (identifier);
+
+create table visit (
+  visit_id int not null auto_increment primary key,
+  patient_id int not null,
+  visit_type_id int not null,
+  date_started datetime not null,
+  date_stopped datetime,
+  location_id int,
+  creator int not null,
+  date_created datetime not null,
+  voided tinyint not null default 0,
+  uuid char(38) not null
+);
+create index visit_patient on visit (patient_id, date_started);
+
+create table encounter (
+  encounter_id int not null auto_increment primary key,
+  encounter_type int not null,
+  patient_id int not null,
+  location_id int,
+  form_id int,
+  encounter_datetime datetime not null,
+  creator int not null,
+  date_created datetime not null,
+  voided tinyint not null default 0,
+  visit_id int,
+  uuid char(38) not null
+);
+
+create table obs (
+  obs_id int not null auto_increment primary key,
+  person_id int not null,
+  concept_id int not null,
+  encounter_id int,
+  obs_datetime datetime not null,
+  location_id int,
+  obs_group_id int,
+  value_coded int,
+  value_datetime datetime,
+  value_numeric double,
+  value_text text,
+  creator int not null,
+  date_created datetime not null,
+  voided tinyint not null default 0,
+  uuid char(38) not null
+);
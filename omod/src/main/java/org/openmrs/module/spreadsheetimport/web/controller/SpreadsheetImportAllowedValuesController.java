@@ -0,0 +1,87 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.web.controller;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.spreadsheetimport.AllowedValueIndex;
+import org.openmrs.module.spreadsheetimport.objects.NameValue;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Serves pages of allowed values for pre-specified values as JSON, so the template editor can
+ * search large tables such as concept on demand instead of rendering every row.
+ */
+@Controller
+public class SpreadsheetImportAllowedValuesController {
+
+	/**
+	 * Logger for this class
+	 */
+	protected final Log log = LogFactory.getLog(getClass());
+
+	private static final int MAX_LIMIT = 500;
+
+	@SuppressWarnings("unchecked")
+	@RequestMapping(value = "/module/spreadsheetimport/allowedValues.json", method = RequestMethod.GET)
+	public void getAllowedValues(@RequestParam(value = "table", required = true) String table,
+	                             @RequestParam(value = "q", required = false) String q,
+	                             @RequestParam(value = "start", required = false, defaultValue = "0") Integer start,
+	                             @RequestParam(value = "limit", required = false, defaultValue = "50") Integer limit,
+	                             HttpServletResponse response) throws IOException {
+
+		if (!Context.hasPrivilege("Save Spreadsheet Import Template")) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		AllowedValueIndex.Page page;
+		try {
+			page = AllowedValueIndex.getPage(table, q, start, Math.min(limit, MAX_LIMIT));
+		} catch (IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		} catch (Exception e) {
+			log.error("Error loading allowed values for " + table, e);
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return;
+		}
+
+		JSONArray values = new JSONArray();
+		for (NameValue nameValue : page.getValues()) {
+			JSONObject value = new JSONObject();
+			value.put("name", nameValue.getName());
+			value.put("value", nameValue.getValue());
+			values.add(value);
+		}
+		JSONObject result = new JSONObject();
+		result.put("total", page.getTotal());
+		result.put("start", page.getStart());
+		result.put("values", values);
+
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(result.toJSONString());
+	}
+}
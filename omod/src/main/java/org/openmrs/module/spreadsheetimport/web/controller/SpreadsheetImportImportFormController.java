@@ -74,7 +74,7 @@ public class SpreadsheetImportImportFormController {
 	public String processSubmit(@ModelAttribute("template") SpreadsheetImportTemplate template, 
 								ModelMap model, 
 	                            @RequestParam(value = "file", required = true) MultipartFile file,
-	                            @RequestParam(value = "sheet", required = true) String sheet,
+	                            @RequestParam(value = "sheet", required = false) String sheet,
 	                            HttpServletRequest request,
 	                            HttpServletResponse response) throws Exception {
 		
@@ -107,7 +107,19 @@ public class SpreadsheetImportImportFormController {
 			rollbackTransaction = false;
 		}
 
-		File returnedFile = SpreadsheetImportUtil.importTemplate(template, file, sheet, messages, rollbackTransaction);
+		// several sheets may be given separated by commas
+		List<String> sheetNames = new ArrayList<String>();
+		if (sheet != null) {
+			for (String sheetName : sheet.split(",")) {
+				if (!sheetName.trim().isEmpty()) {
+					sheetNames.add(sheetName.trim());
+				}
+			}
+		}
+		boolean allSheets = request.getParameter("allSheets") != null;
+
+		File returnedFile = SpreadsheetImportUtil.importTemplate(template, file, sheetNames, allSheets, messages,
+		    rollbackTransaction);
 		boolean succeeded = (returnedFile != null);
 
 		String messageString = "";
@@ -0,0 +1,56 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.web.controller;
+
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.openmrs.module.spreadsheetimport.ImportMetrics;
+import org.openmrs.web.WebConstants;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ModelAttribute;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * Shows the timers and counters of {@link ImportMetrics}, per dataset and table
+ */
+@Controller
+@RequestMapping("/module/spreadsheetimport/spreadsheetimportMetrics.list")
+public class SpreadsheetImportMetricsController {
+	
+	@ModelAttribute("timers")
+	List<ImportMetrics.Timer> populateTimers() {
+		return ImportMetrics.getTimers();
+	}
+	
+	@ModelAttribute("counters")
+	List<ImportMetrics.Counter> populateCounters() {
+		return ImportMetrics.getCounters();
+	}
+	
+	@RequestMapping(method = RequestMethod.GET)
+	public String showMetrics() {
+		return "/module/spreadsheetimport/spreadsheetimportMetrics";
+	}
+	
+	@RequestMapping(method = RequestMethod.POST, params = "reset")
+	public String reset(HttpServletRequest request) {
+		ImportMetrics.reset();
+		request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ATTR, "Import metrics have been reset");
+		return "redirect:/module/spreadsheetimport/spreadsheetimportMetrics.list";
+	}
+	
+}
@@ -9,8 +9,13 @@ import javax.servlet.http.HttpServletRequest;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.spreadsheetimport.AllowedValueIndex;
+import org.openmrs.module.spreadsheetimport.DuplicateValueIndex;
+import org.openmrs.module.spreadsheetimport.IdentifierPatientIndex;
+import org.openmrs.module.spreadsheetimport.SchemaMetadataCache;
 import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
 import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
+import org.openmrs.web.WebConstants;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.ServletRequestBindingException;
@@ -42,6 +47,16 @@ public class SpreadsheetImportTemplateListController<E> {
 		return "/module/spreadsheetimport/spreadsheetimportTemplateList";
 	}
 	
+	@RequestMapping(method = RequestMethod.POST, params = "refreshMetadata")
+	public String refreshMetadata(HttpServletRequest request) {
+		SchemaMetadataCache.invalidate();
+		AllowedValueIndex.invalidate();
+		DuplicateValueIndex.invalidate();
+		IdentifierPatientIndex.invalidate();
+		request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ATTR, "Database metadata will be reloaded on next use");
+		return "/module/spreadsheetimport/spreadsheetimportTemplateList";
+	}
+	
 	@RequestMapping(method = RequestMethod.POST)
 	public String delete(@ModelAttribute("templates") List<SpreadsheetImportTemplate> templates,
 	                     HttpServletRequest request) throws ServletRequestBindingException {
@@ -14,4 +14,9 @@
 			Import Templates
 		</a>
 	</li>
+	<li <c:if test='<%= request.getRequestURI().contains("spreadsheetimportMetrics") %>'>class="active"</c:if>>
+		<a href="spreadsheetimportMetrics.list">
+			Import Metrics
+		</a>
+	</li>
 </ul>
\ No newline at end of file
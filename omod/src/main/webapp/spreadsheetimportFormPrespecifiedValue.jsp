@@ -19,6 +19,40 @@
 <%@ taglib prefix="formsim" uri="http://www.springframework.org/tags/form" %>
 <%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
 
+<script type="text/javascript">
+	var allowedValueSearch = {};
+
+	// loads the first page of allowed values matching the search, after the user stops typing
+	function searchAllowedValues(idx, table, q) {
+		var search = allowedValueSearch[idx];
+		if (search && search.timer) {
+			clearTimeout(search.timer);
+		}
+		allowedValueSearch[idx] = { q: q, start: 0 };
+		allowedValueSearch[idx].timer = setTimeout(function() {
+			var select = $j('#allowedValues' + idx);
+			select.find('option:not(:selected)').remove();
+			loadAllowedValues(idx, table);
+		}, 300);
+	}
+
+	// appends the next page of allowed values to the select
+	function loadAllowedValues(idx, table) {
+		var search = allowedValueSearch[idx];
+		$j.getJSON('allowedValues.json', { table: table, q: search.q, start: search.start, limit: 50 }, function(page) {
+			var select = $j('#allowedValues' + idx);
+			var selected = select.val();
+			$j.each(page.values, function(i, nameValue) {
+				if (nameValue.value != selected) {
+					select.append($j('<option></option>').attr('value', nameValue.value).text(nameValue.name + ' (' + nameValue.value + ')'));
+				}
+			});
+			search.start = page.start + page.values.length;
+			$j('#moreAllowedValues' + idx).toggle(search.start < page.total);
+		});
+	}
+</script>
+
 <b>Step 2 of 2: Pre-specified Values</b>
 <p/>
 
@@ -54,13 +88,15 @@
 					<c:forEach var="prespecifiedValue" items="${template.prespecifiedValues}" varStatus="status">
 						<tr>
 							<td>${prespecifiedValue.prettyTableName}</td>
-							<td><formsim:select path="prespecifiedValues[${status.index}].value">
-
-
-
+							<td><formsim:select path="prespecifiedValues[${status.index}].value" id="allowedValues${status.index}">
 								<formsim:option value="${prespecifiedValue.value}" selected="true" label="${prespecifiedValue.value}"/>
-								<formsim:options items="${prespecifiedValue.mapNameToAllowedValue}" itemLabel="name" itemValue="value"  />
-							</formsim:select></td>
+							</formsim:select><br/>
+							<input type="text" size="20" placeholder="Search" onkeyup="searchAllowedValues(${status.index}, '${prespecifiedValue.tableName}', this.value)"/>
+							<input type="button" id="moreAllowedValues${status.index}" value="More" style="display: none"
+							       onclick="loadAllowedValues(${status.index}, '${prespecifiedValue.tableName}')"/>
+							<script type="text/javascript">
+								$j(document).ready(function() { searchAllowedValues(${status.index}, '${prespecifiedValue.tableName}', ''); });
+							</script></td>
 							<td><table>
 								<tr>
 									<th>Name</th>
@@ -25,7 +25,8 @@
 	<input type="hidden" name="id" value="${template.id}"/> <br/>
 	<b>${template.name}</b><br />
 	Spreadsheet to upload: <input type="file" name="file" /> <br/>
-	Sheet: <input type="text" name="sheet" value="Sheet1"/> <br/>
+	Sheet(s): <input type="text" name="sheet" value="Sheet1"/> (separate several sheets with commas) <br/>
+	<input type="checkbox" name="allSheets"/> Import all sheets <br/>
 <!-- BEGIN: FOR TESTING ONLY -->
 	<input type="checkbox" name="rollbackTransaction"/> Rollback transaction <br/>
 <!-- END: FOR TESTING ONLY -->
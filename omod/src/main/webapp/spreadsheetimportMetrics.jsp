@@ -0,0 +1,85 @@
+<%--
+  The contents of this file are subject to the OpenMRS Public License
+  Version 1.0 (the "License"); you may not use this file except in
+  compliance with the License. You may obtain a copy of the License at
+  http://license.openmrs.org
+
+  Software distributed under the License is distributed on an "AS IS"
+  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+  License for the specific language governing rights and limitations
+  under the License.
+
+  Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+
+--%>
+<%@ include file="/WEB-INF/template/include.jsp" %>
+<openmrs:require privilege="List Spreadsheet Import Templates" otherwise="/login.htm" redirect="/module/spreadsheetimport/spreadsheetimportMetrics.list"/>
+<%@ include file="/WEB-INF/template/header.jsp" %>
+<%@ include file="localHeader.jsp" %>
+
+<h2>Spreadsheet Import Metrics</h2>
+
+<p>Times are in milliseconds. Percentiles are upper bounds of power of two histogram buckets.</p>
+
+<c:if test="${fn:length(timers) == 0}">
+	<p>Nothing has been imported since the module started or the metrics were reset.</p>
+</c:if>
+
+<c:if test="${fn:length(timers) > 0}">
+	<h3>Timers</h3>
+	<table cellpadding="2">
+		<tr>
+			<th>Dataset</th>
+			<th>Table</th>
+			<th>Stage</th>
+			<th>Count</th>
+			<th>Total</th>
+			<th>Mean</th>
+			<th>p50</th>
+			<th>p95</th>
+			<th>p99</th>
+			<th>Max</th>
+		</tr>
+		<c:forEach var="timer" items="${timers}">
+			<tr>
+				<td>${timer.dataset}</td>
+				<td>${timer.table}</td>
+				<td>${timer.name}</td>
+				<td>${timer.count}</td>
+				<td><fmt:formatNumber value="${timer.totalMillis}" maxFractionDigits="1"/></td>
+				<td><fmt:formatNumber value="${timer.meanMillis}" maxFractionDigits="3"/></td>
+				<td><fmt:formatNumber value="${timer.p50Millis}" maxFractionDigits="3"/></td>
+				<td><fmt:formatNumber value="${timer.p95Millis}" maxFractionDigits="3"/></td>
+				<td><fmt:formatNumber value="${timer.p99Millis}" maxFractionDigits="3"/></td>
+				<td><fmt:formatNumber value="${timer.maxMillis}" maxFractionDigits="3"/></td>
+			</tr>
+		</c:forEach>
+	</table>
+</c:if>
+
+<c:if test="${fn:length(counters) > 0}">
+	<h3>Counters</h3>
+	<table cellpadding="2">
+		<tr>
+			<th>Dataset</th>
+			<th>Table</th>
+			<th>Name</th>
+			<th>Count</th>
+		</tr>
+		<c:forEach var="counter" items="${counters}">
+			<tr>
+				<td>${counter.dataset}</td>
+				<td>${counter.table}</td>
+				<td>${counter.name}</td>
+				<td>${counter.count}</td>
+			</tr>
+		</c:forEach>
+	</table>
+</c:if>
+
+<p />
+<form method="post">
+	<input type="submit" name="reset" value="Reset Metrics"/>
+</form>
+
+<%@ include file="/WEB-INF/template/footer.jsp" %>
@@ -46,4 +46,9 @@
 	</form>
 </c:if>
 
+<p />
+<form method="post">
+	<input type="submit" name="refreshMetadata" value="Refresh Database Metadata"/>
+</form>
+
 <%@ include file="/WEB-INF/template/footer.jsp" %>
\ No newline at end of file